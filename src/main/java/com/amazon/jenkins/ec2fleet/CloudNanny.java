@@ -3,6 +3,8 @@ package com.amazon.jenkins.ec2fleet;
 import hudson.Extension;
 import hudson.model.PeriodicWork;
 import hudson.slaves.Cloud;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 
 import java.io.IOException;
@@ -10,12 +12,21 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * {@link CloudNanny} is responsible for periodically running update (i.e. sync-state-with-AWS) cycles for {@link EC2FleetCloud}s.
+ * <p>
+ * Nanny only decides when cloud is due, update itself is executed in bounded pool, so one slow
+ * cloud (big fleet, throttled API) doesn't delay other clouds. If previous update of cloud
+ * is still running when cloud is due again, that cycle is skipped.
  */
 @Extension
 @SuppressWarnings("unused")
@@ -23,9 +34,18 @@ public class CloudNanny extends PeriodicWork {
 
     private static final Logger LOGGER = Logger.getLogger(CloudNanny.class.getName());
 
+    /**
+     * Max number of clouds updated in parallel.
+     */
+    private static final int POOL_SIZE = Integer.getInteger(CloudNanny.class.getName() + ".poolSize", 4);
+
     // the map should not hold onto fleet instances to allow deletion of fleets.
     private final Map<EC2FleetCloud, AtomicInteger> recurrenceCounters = Collections.synchronizedMap(new WeakHashMap<>());
 
+    private final Map<EC2FleetCloud, CycleStats> cycleStats = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private ExecutorService executor;
+
     @Override
     public long getRecurrencePeriod() {
         return 1000L;
@@ -39,6 +59,9 @@ public class CloudNanny extends PeriodicWork {
      */
     @Override
     protected void doRun() {
+        // new cloud objects after configuration change, take state of replaced ones before update
+        CloudStateHandoff.get().handOver(Jenkins.get(), getClouds());
+
         for (final Cloud cloud : getClouds()) {
             if (!(cloud instanceof EC2FleetCloud)) continue;
             final EC2FleetCloud fleetCloud = (EC2FleetCloud) cloud;
@@ -49,19 +72,50 @@ public class CloudNanny extends PeriodicWork {
                 continue;
             }
 
-            recurrenceCounter.set(fleetCloud.getCloudStatusIntervalSec());
+            final int intervalSec = fleetCloud.getCloudStatusIntervalSec();
+            recurrenceCounter.set(intervalSec);
+
+            final CycleStats stats = getCycleStats(fleetCloud);
+            if (stats.isRunning()) {
+                stats.skipped.incrementAndGet();
+                LOGGER.fine(String.format("Skip fleet '%s' update, previous one is still running", fleetCloud.name));
+                continue;
+            }
 
             try {
                 updateCloudWithScaler(getClouds(), fleetCloud);
-                // Update the cluster states
-                fleetCloud.update();
             } catch (Exception e) {
-                // could be a bad configuration or a real exception, we can't do too much here
                 LOGGER.log(Level.INFO, String.format("Error during fleet '%s' stats update", fleetCloud.name), e);
+                continue;
             }
+
+            stats.submit(getExecutor(), fleetCloud, intervalSec);
         }
     }
 
+    /**
+     * @param fleetCloud cloud
+     * @return stats of update cycles for cloud, never <code>null</code>
+     */
+    public CycleStats getCycleStats(EC2FleetCloud fleetCloud) {
+        synchronized (cycleStats) {
+            CycleStats stats = cycleStats.get(fleetCloud);
+            if (stats == null) {
+                stats = new CycleStats();
+                cycleStats.put(fleetCloud, stats);
+            }
+            return stats;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(POOL_SIZE,
+                    new NamingThreadFactory(new DaemonThreadFactory(), CloudNanny.class.getSimpleName()));
+        }
+        return executor;
+    }
+
     /**
      * We return {@link List} instead of original {@link jenkins.model.Jenkins.CloudList}
      * to simplify testing as jenkins list requires actual {@link Jenkins} instance.
@@ -84,7 +138,7 @@ public class CloudNanny extends PeriodicWork {
     }
 
     private EC2FleetCloud createCloudWithScaler(EC2FleetCloud oldCloud, EC2FleetCloud.ExecutorScaler scaler) {
-        return  new EC2FleetCloud(oldCloud.getDisplayName(), oldCloud.getAwsCredentialsId(),
+        final EC2FleetCloud cloud = new EC2FleetCloud(oldCloud.getDisplayName(), oldCloud.getAwsCredentialsId(),
                 oldCloud.getAwsCredentialsId(), oldCloud.getRegion(), oldCloud.getEndpoint(), oldCloud.getFleet(),
                 oldCloud.getLabelString(), oldCloud.getFsRoot(), oldCloud.getComputerConnector(),
                 oldCloud.isPrivateIpUsed(), oldCloud.isAlwaysReconnect(), oldCloud.getIdleMinutes(),
@@ -94,12 +148,70 @@ public class CloudNanny extends PeriodicWork {
                 oldCloud.getInitOnlineTimeoutSec(), oldCloud.getInitOnlineCheckIntervalSec(),
                 oldCloud.getCloudStatusIntervalSec(), oldCloud.isNoDelayProvision(),
                 oldCloud.isScaleExecutorsByWeight(), scaler);
+        cloud.copyOptionsFrom(oldCloud);
+        return cloud;
     }
 
     private AtomicInteger getRecurrenceCounter(EC2FleetCloud fleetCloud) {
-        AtomicInteger counter = new AtomicInteger(fleetCloud.getCloudStatusIntervalSec());
+        // first cycle is scheduled with jitter, so clouds added at the same time (restart, JCasC)
+        // will not call AWS in the same second forever
+        final int intervalSec = fleetCloud.getCloudStatusIntervalSec();
+        AtomicInteger counter = new AtomicInteger(1 + ThreadLocalRandom.current().nextInt(Math.max(1, intervalSec)));
         // If a counter already exists, return the value, otherwise set the new counter value and return it.
         AtomicInteger existing = recurrenceCounters.putIfAbsent(fleetCloud, counter);
         return existing != null ? existing : counter;
     }
+
+    /**
+     * Timing of update cycles for one cloud. Lag is time between moment when cloud was due
+     * and actual start of update, it grows when pool is saturated.
+     */
+    public static final class CycleStats {
+
+        private volatile Future<?> running;
+        private volatile long lastDurationMillis = -1;
+        private volatile long lastLagMillis = -1;
+        private final AtomicLong skipped = new AtomicLong();
+
+        private boolean isRunning() {
+            final Future<?> local = running;
+            return local != null && !local.isDone();
+        }
+
+        private void submit(final ExecutorService executor, final EC2FleetCloud fleetCloud, final int intervalSec) {
+            final long dueAt = System.currentTimeMillis();
+            running = executor.submit(() -> {
+                final long startedAt = System.currentTimeMillis();
+                lastLagMillis = startedAt - dueAt;
+                try {
+                    // Update the cluster states
+                    fleetCloud.update();
+                } catch (Exception e) {
+                    // could be a bad configuration or a real exception, we can't do too much here
+                    LOGGER.log(Level.INFO, String.format("Error during fleet '%s' stats update", fleetCloud.name), e);
+                } finally {
+                    lastDurationMillis = System.currentTimeMillis() - startedAt;
+                    if (lastDurationMillis + lastLagMillis > intervalSec * 1000L) {
+                        LOGGER.warning(String.format(
+                                "Fleet '%s' update took %d ms with lag %d ms, more than cloud status interval %d sec",
+                                fleetCloud.name, lastDurationMillis, lastLagMillis, intervalSec));
+                    }
+                }
+            });
+        }
+
+        public long getLastDurationMillis() {
+            return lastDurationMillis;
+        }
+
+        public long getLastLagMillis() {
+            return lastLagMillis;
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+    }
+
 }
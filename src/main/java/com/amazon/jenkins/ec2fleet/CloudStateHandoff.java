@@ -0,0 +1,103 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Carry runtime state over when {@link EC2FleetCloud} is replaced by new object with same name and fleet,
+ * which happens on each configuration save from UI or JCasC. Without it new cloud starts without pending
+ * provision and terminations, and planned nodes of old cloud are stranded till their timeouts.
+ * <p>
+ * Clouds are checked when Jenkins configuration is saved and on each {@link CloudNanny} run,
+ * as not every configuration change is followed by save. State itself is moved by
+ * {@link EC2FleetCloud#migrateStateFrom(EC2FleetCloud)}.
+ */
+@ThreadSafe
+public class CloudStateHandoff {
+
+    private static final Logger LOGGER = Logger.getLogger(CloudStateHandoff.class.getName());
+
+    private static final CloudStateHandoff INSTANCE = new CloudStateHandoff();
+
+    public static CloudStateHandoff get() {
+        return INSTANCE;
+    }
+
+    // clouds are known for that Jenkins only, weak to not keep Jenkins in tests
+    private WeakReference<Jenkins> jenkins = new WeakReference<>(null);
+    // weak to allow deletion of clouds
+    private final Map<String, WeakReference<EC2FleetCloud>> clouds = new HashMap<>();
+
+    CloudStateHandoff() {
+    }
+
+    /**
+     * Compare current clouds with known ones by name and migrate state of replaced clouds.
+     *
+     * @param jenkins Jenkins which owns clouds
+     * @param current current clouds
+     */
+    public void handOver(final Jenkins jenkins, final Iterable<Cloud> current) {
+        final List<EC2FleetCloud[]> replaced = new ArrayList<>();
+        synchronized (this) {
+            if (this.jenkins.get() != jenkins) {
+                this.jenkins = new WeakReference<>(jenkins);
+                clouds.clear();
+            }
+            for (final Cloud cloud : current) {
+                if (!(cloud instanceof EC2FleetCloud) || cloud.name == null) continue;
+                final EC2FleetCloud fleetCloud = (EC2FleetCloud) cloud;
+                final WeakReference<EC2FleetCloud> known = clouds.get(cloud.name);
+                final EC2FleetCloud previous = known == null ? null : known.get();
+                if (previous == fleetCloud) continue;
+
+                clouds.put(cloud.name, new WeakReference<>(fleetCloud));
+                if (previous != null && Objects.equals(previous.getFleet(), fleetCloud.getFleet())) {
+                    replaced.add(new EC2FleetCloud[]{previous, fleetCloud});
+                }
+            }
+        }
+
+        // outside of lock as migration waits for update of old cloud
+        for (final EC2FleetCloud[] pair : replaced) {
+            try {
+                pair[1].migrateStateFrom(pair[0]);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot move state of replaced cloud " + pair[0].name, e);
+            }
+        }
+    }
+
+    /**
+     * Catch configuration save, migration could wait for update of old cloud so it's not done in save call.
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class Listener extends SaveableListener {
+
+        @Override
+        public void onChange(final Saveable o, final XmlFile file) {
+            if (o instanceof Jenkins) {
+                final Jenkins jenkins = (Jenkins) o;
+                Timer.get().execute(() -> get().handOver(jenkins, jenkins.clouds));
+            }
+        }
+
+    }
+
+}
@@ -1,9 +1,17 @@
 package com.amazon.jenkins.ec2fleet;
 
+import com.amazon.jenkins.ec2fleet.aws.AWSRateLimiter;
 import com.amazon.jenkins.ec2fleet.aws.AwsPermissionChecker;
+import com.amazon.jenkins.ec2fleet.aws.DescribeInstancesCoalescer;
+import com.amazon.jenkins.ec2fleet.aws.EC2Api;
+import com.amazon.jenkins.ec2fleet.aws.FleetInstance;
+import com.amazon.jenkins.ec2fleet.aws.InstanceTypeInfoCache;
 import com.amazon.jenkins.ec2fleet.aws.RegionHelper;
+import com.amazon.jenkins.ec2fleet.aws.SingleFlight;
+import com.amazon.jenkins.ec2fleet.aws.TerminationService;
 import com.amazon.jenkins.ec2fleet.fleet.EC2Fleet;
 import com.amazon.jenkins.ec2fleet.fleet.EC2Fleets;
+import com.amazon.jenkins.ec2fleet.fleet.FleetStateCoalescer;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
@@ -15,9 +23,11 @@ import hudson.slaves.Cloud;
 import hudson.slaves.ComputerConnector;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.ListBoxModel.Option;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
@@ -30,22 +40,30 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.UUID;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -77,10 +95,24 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
     private static final int DEFAULT_INIT_ONLINE_CHECK_INTERVAL_SEC = 15;
 
     private static final int DEFAULT_MAX_TOTAL_USES = -1;
+    private static final int DEFAULT_DESCRIBE_CONCURRENCY = 1;
 
     private static final SimpleFormatter sf = new SimpleFormatter();
     private static final Logger LOGGER = Logger.getLogger(EC2FleetCloud.class.getName());
-    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Capacity push and pending instances poll, separate from {@link HashedWheelTimer} as they make AWS calls
+     * and should not delay planned node timeouts
+     */
+    private static final ScheduledExecutorService SCHEDULED_CALL_EXECUTOR = Executors.newScheduledThreadPool(2,
+            new NamingThreadFactory(new DaemonThreadFactory(), EC2FleetCloud.class.getSimpleName() + ".scheduledCall"));
+    private static final long CAPACITY_PUSH_DELAY_MILLIS = Long.getLong(
+            EC2FleetCloud.class.getName() + ".capacityPushDelayMillis", 500);
+    /**
+     * First delay of pending instances poll, doubled for each next attempt
+     */
+    private static final long PENDING_POLL_DELAY_MILLIS = Long.getLong(
+            EC2FleetCloud.class.getName() + ".pendingPollDelayMillis", 1000);
+    private static final int PENDING_POLL_MAX_ATTEMPTS = 4;
 
     /**
      * Replaced with {@link EC2FleetCloud#awsCredentialsId}
@@ -137,27 +169,115 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
     private final boolean noDelayProvision;
 
     /**
-     * {@link EC2FleetCloud#update()} updating this field, this is one thread
+     * Max number of parallel describe instances requests during update, optional, so
+     * <code>null</code> for configurations stored by older versions
+     *
+     * @see EC2Api#describeInstances(AmazonEC2, Set, int, int)
+     */
+    private Integer describeConcurrency;
+
+    /**
+     * @see DescribeInstancesCoalescer
+     */
+    private boolean describeCoalescing;
+
+    /**
+     * @see #pushCapacity()
+     */
+    private boolean capacityPushOnProvision;
+
+    /**
+     * @see IdleScanner
+     */
+    private boolean batchIdleScan;
+
+    /**
+     * @see EC2Api#describeInstancesByTag(AmazonEC2, String, String)
+     */
+    private boolean tagDiscovery;
+
+    /**
+     * @see FleetStateCoalescer
+     */
+    private boolean stateCoalescing;
+
+    /**
+     * @see #pollPendingInstances()
+     */
+    private boolean pendingInstancePoll;
+
+    /**
+     * {@link EC2FleetCloud#update()} updating stats, this is one thread
      * related to {@link CloudNanny}. At the same time {@link EC2RetentionStrategy}
      * call {@link EC2FleetCloud#scheduleToTerminate(String, boolean, EC2AgentTerminationReason)} to terminate instance when it is free
-     * and uses this field to know the current capacity.
+     * and uses stats to know the current capacity.
      * <p>
-     * It could be situation that <code>stats</code> is outdated and plugin will make wrong decision,
+     * It could be situation that stats are outdated and plugin will make wrong decision,
      * however refresh time is low and probability of this event is low. We preferred to reduce amount of calls
      * to API EC2 and increase plugin performance versus be precise. Any way outdated will be fixed after next update.
+     * <p>
+     * State is immutable and replaced by compare-and-set, so retention checks of all nodes
+     * don't block each other, provision and update.
+     */
+    private transient AtomicReference<FleetCloudState> state;
+
+    /**
+     * Instances which were submitted for termination and failed
      */
-    private transient FleetStateStats stats;
+    private transient ConcurrentMap<String, EC2AgentTerminationReason> terminationRetries;
 
-    private transient int toAdd;
+    /**
+     * Cloud which took state of this one, see {@link #migrateStateFrom(EC2FleetCloud)}
+     */
+    private transient volatile EC2FleetCloud successor;
 
-    private transient Map<String, EC2AgentTerminationReason> instanceIdsToTerminate;
+    /**
+     * <code>true</code> if stats are taken from {@link FleetStateStore} and not confirmed by update yet,
+     * guarded by <code>updateLock</code>
+     */
+    private transient boolean stateRestored;
 
-    private transient Set<NodeProvisioner.PlannedNode> plannedNodesCache;
+    private transient PlannedNodeTracker plannedNodes;
 
-    private transient ArrayList<ScheduledFuture<?>> plannedNodeScheduledFutures;
+    private transient FleetReconciler reconciler;
 
     // Counter to keep track of planned nodes per EC2FleetCloud, used in node's display name
-    private transient AtomicInteger plannedNodeCounter = new AtomicInteger(1);
+    private transient AtomicInteger plannedNodeCounter;
+
+    /**
+     * Guards {@link #update()} and {@link #pushCapacity()} from running in the same time,
+     * both modify target capacity based on <code>toAdd</code>
+     */
+    private transient ReentrantLock updateLock;
+
+    private transient AtomicBoolean capacityPushScheduled;
+
+    /**
+     * Instances terminated by update while fleet was modifying, target capacity is not reduced for them
+     * yet. Changed under <code>updateLock</code>
+     */
+    private transient Set<String> terminatedWhileModifying;
+
+    /**
+     * Instances scheduled to terminate for which {@link #pushCapacity()} already reduced target capacity,
+     * update terminates them without reducing it again. Changed under <code>updateLock</code>
+     */
+    private transient Set<String> capacityPushedForTermination;
+
+    /**
+     * Moment when update found fleet modifying first time, <code>0</code> if fleet is not modifying
+     */
+    private transient volatile long modifyingSince;
+
+    private transient AtomicLong totalModifyingMillis;
+
+    /**
+     * Instances described by update but not ready to be nodes (no IP or not running yet) to number of
+     * poll attempts done for them
+     */
+    private transient ConcurrentMap<String, Integer> pendingInstances;
+
+    private transient AtomicBoolean pendingPollScheduled;
 
     @DataBoundConstructor
     public EC2FleetCloud(@Nonnull final String name,
@@ -218,15 +338,101 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
         this.executorScaler = executorScaler == null ? new NoScaler().withNumExecutors(this.numExecutors) :
                                                        executorScaler.withNumExecutors(this.numExecutors);
         if (fleet != null) {
-            this.stats = EC2Fleets.get(fleet).getState(
-                    getAwsCredentialsId(), region, endpoint, getFleet());
+            this.state.set(FleetCloudState.EMPTY.withStats(getFleetState()));
         }
     }
 
+    /**
+     * Concurrent reads of same fleet state, like update and reconfiguration right after restart,
+     * share one call. Result is never taken from cache as it's used to scale.
+     */
+    private FleetStateStats getFleetState() {
+        return SingleFlight.get().execute(
+                Arrays.asList("getState", getAwsCredentialsId(), region, endpoint, getFleet()), false,
+                () -> EC2Fleets.get(fleet).getState(getAwsCredentialsId(), region, endpoint, getFleet()));
+    }
+
     public boolean isNoDelayProvision() {
         return noDelayProvision;
     }
 
+    public int getDescribeConcurrency() {
+        return describeConcurrency == null ? DEFAULT_DESCRIBE_CONCURRENCY : describeConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setDescribeConcurrency(final Integer describeConcurrency) {
+        this.describeConcurrency = describeConcurrency == null ? null : Math.max(1, describeConcurrency);
+    }
+
+    public boolean isDescribeCoalescing() {
+        return describeCoalescing;
+    }
+
+    @DataBoundSetter
+    public void setDescribeCoalescing(final boolean describeCoalescing) {
+        this.describeCoalescing = describeCoalescing;
+    }
+
+    public boolean isCapacityPushOnProvision() {
+        return capacityPushOnProvision;
+    }
+
+    @DataBoundSetter
+    public void setCapacityPushOnProvision(final boolean capacityPushOnProvision) {
+        this.capacityPushOnProvision = capacityPushOnProvision;
+    }
+
+    public boolean isBatchIdleScan() {
+        return batchIdleScan;
+    }
+
+    @DataBoundSetter
+    public void setBatchIdleScan(final boolean batchIdleScan) {
+        this.batchIdleScan = batchIdleScan;
+    }
+
+    public boolean isTagDiscovery() {
+        return tagDiscovery;
+    }
+
+    @DataBoundSetter
+    public void setTagDiscovery(final boolean tagDiscovery) {
+        this.tagDiscovery = tagDiscovery;
+    }
+
+    public boolean isStateCoalescing() {
+        return stateCoalescing;
+    }
+
+    @DataBoundSetter
+    public void setStateCoalescing(final boolean stateCoalescing) {
+        this.stateCoalescing = stateCoalescing;
+    }
+
+    public boolean isPendingInstancePoll() {
+        return pendingInstancePoll;
+    }
+
+    @DataBoundSetter
+    public void setPendingInstancePoll(final boolean pendingInstancePoll) {
+        this.pendingInstancePoll = pendingInstancePoll;
+    }
+
+    /**
+     * Copy options which are not constructor arguments, new option should be added here
+     * to be kept when cloud is recreated, see {@link CloudNanny}
+     */
+    void copyOptionsFrom(final EC2FleetCloud other) {
+        this.describeConcurrency = other.describeConcurrency;
+        this.describeCoalescing = other.describeCoalescing;
+        this.capacityPushOnProvision = other.capacityPushOnProvision;
+        this.batchIdleScan = other.batchIdleScan;
+        this.tagDiscovery = other.tagDiscovery;
+        this.stateCoalescing = other.stateCoalescing;
+        this.pendingInstancePoll = other.pendingInstancePoll;
+    }
+
     /**
      * Deprecated.Use {@link EC2FleetCloud#awsCredentialsId}
      *
@@ -337,36 +543,41 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
     }
 
     // Visible for testing
-    synchronized Set<NodeProvisioner.PlannedNode> getPlannedNodesCache() {
-        return plannedNodesCache;
+    PlannedNodeTracker getPlannedNodeTracker() {
+        return plannedNodes;
     }
 
-    // Visible for testing
-    synchronized ArrayList<ScheduledFuture<?>> getPlannedNodeScheduledFutures() { return plannedNodeScheduledFutures; }
+    /**
+     * @return number of planned nodes which are not matched to instance yet by age
+     * @see PlannedNodeTracker#getAgeDistribution()
+     */
+    public SortedMap<Long, Integer> getPlannedNodeAgeDistribution() {
+        return plannedNodes.getAgeDistribution();
+    }
 
     // Visible for testing
-    synchronized void setPlannedNodeScheduledFutures(final ArrayList<ScheduledFuture<?>> futures) {
-        this.plannedNodeScheduledFutures = futures;
+    Map<String, EC2AgentTerminationReason> getInstanceIdsToTerminate() {
+        return state.get().getInstanceIdsToTerminate();
     }
 
     // Visible for testing
-    synchronized Map<String, EC2AgentTerminationReason> getInstanceIdsToTerminate() {
-        return instanceIdsToTerminate;
+    Set<String> getTerminationRetries() {
+        return new HashSet<>(terminationRetries.keySet());
     }
 
     // Visible for testing
-    synchronized int getToAdd() {
-        return toAdd;
+    int getToAdd() {
+        return state.get().getToAdd();
     }
 
     // Visible for testing
-    synchronized FleetStateStats getStats() {
-        return stats;
+    FleetStateStats getStats() {
+        return state.get().getStats();
     }
 
     // Visible for testing
-    synchronized void setStats(final FleetStateStats stats) {
-        this.stats = stats;
+    void setStats(final FleetStateStats stats) {
+        state.updateAndGet(s -> s.withStats(stats));
     }
 
     // make maxTotalUses inaccessible from cloud for safety. Use {@link FleetNode#maxTotalUses} and {@link FleetNode#usesRemaining} instead.
@@ -375,27 +586,27 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
     }
 
     @Override
-    public synchronized boolean hasExcessCapacity() {
+    public boolean hasExcessCapacity() {
+        final FleetCloudState current = state.get();
+        final FleetStateStats stats = current.getStats();
         if(stats == null) {
             // Let plugin sync up with current state of fleet
             return false;
         }
-        if(stats.getNumDesired() - instanceIdsToTerminate.size() > maxSize) {
-            info("Fleet has excess capacity of %s more than the max allowed: %s", stats.getNumDesired() - instanceIdsToTerminate.size(), maxSize);
+        final int excess = stats.getNumDesired() - getPendingCapacityReduction(current.getInstanceIdsToTerminate());
+        if(excess > maxSize) {
+            info("Fleet has excess capacity of %s more than the max allowed: %s", excess, maxSize);
             return true;
         }
         return false;
     }
 
-    private synchronized int getNextPlannedNodeCounter() {
-        if (plannedNodeCounter == null) {
-            plannedNodeCounter = new AtomicInteger(1);
-        }
+    private int getNextPlannedNodeCounter() {
         return plannedNodeCounter.getAndIncrement();
     }
 
     @Override
-    public synchronized Collection<NodeProvisioner.PlannedNode> provision(@Nonnull final Cloud.CloudState cloudState, final int excessWorkload) {
+    public Collection<NodeProvisioner.PlannedNode> provision(@Nonnull final Cloud.CloudState cloudState, final int excessWorkload) {
         Jenkins jenkinsInstance = Jenkins.get();
         if (jenkinsInstance.isQuietingDown()) {
             LOGGER.log(Level.FINE, "Not provisioning nodes, Jenkins instance is quieting down");
@@ -407,40 +618,53 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
 
         fine("excessWorkload %s", excessWorkload);
 
-        if (stats == null) {
-            info("First update not completed, still setting configuring cloud state. Skipping provision");
-            return Collections.emptyList();
-        }
-
-        final int cap = stats.getNumDesired() + toAdd;
-
-        if (cap >= getMaxSize()) {
-            info("Max instance size '%s' reached. Skipping provision", getMaxSize());
-            return Collections.emptyList();
-        }
-
-        if (!stats.getState().isActive()) {
-            info("Fleet is in a non-active state '%s'. Skipping provision", stats.getState().getDetailed());
-            return Collections.emptyList();
-        }
-
         // if the planned node has 0 executors configured force it to 1 so we end up doing an unweighted check
         final int numExecutors1 = this.numExecutors == 0 ? 1 : this.numExecutors;
 
         // Calculate the ceiling, without having to work with doubles from Math.ceil
         // https://stackoverflow.com/a/21830188/877024
         final int weightedExcessWorkload = (excessWorkload + numExecutors1 - 1) / numExecutors1;
-        int targetCapacity = Math.min(cap + weightedExcessWorkload, getMaxSize());
 
-        int toProvision = targetCapacity - cap;
-        fine("to provision = %s", toProvision);
+        // reserve capacity by compare-and-set, retry on concurrent change of state
+        int toProvision;
+        while (true) {
+            final FleetCloudState current = state.get();
+            final FleetStateStats stats = current.getStats();
 
-        if (toProvision < 1) {
-            info("toProvision is less than 1. Skipping provision");
-            return Collections.emptyList();
-        }
+            if (current.isRetired()) {
+                info("Cloud was replaced by new configuration. Skipping provision");
+                return Collections.emptyList();
+            }
+
+            if (stats == null) {
+                info("First update not completed, still setting configuring cloud state. Skipping provision");
+                return Collections.emptyList();
+            }
+
+            final int cap = stats.getNumDesired() + current.getToAdd();
 
-        toAdd += toProvision;
+            if (cap >= getMaxSize()) {
+                info("Max instance size '%s' reached. Skipping provision", getMaxSize());
+                return Collections.emptyList();
+            }
+
+            if (!stats.getState().isActive()) {
+                info("Fleet is in a non-active state '%s'. Skipping provision", stats.getState().getDetailed());
+                return Collections.emptyList();
+            }
+
+            int targetCapacity = Math.min(cap + weightedExcessWorkload, getMaxSize());
+
+            toProvision = targetCapacity - cap;
+            fine("to provision = %s", toProvision);
+
+            if (toProvision < 1) {
+                info("toProvision is less than 1. Skipping provision");
+                return Collections.emptyList();
+            }
+
+            if (state.compareAndSet(current, current.withToAdd(current.getToAdd() + toProvision))) break;
+        }
 
         final List<NodeProvisioner.PlannedNode> resultList = new ArrayList<>();
         for (int f = 0; f < toProvision; ++f) {
@@ -449,95 +673,163 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                     String.format("FleetNode-%s-%d", getDisplayName(), getNextPlannedNodeCounter()), completableFuture, this.numExecutors);
 
             resultList.add(plannedNode);
-            plannedNodesCache.add(plannedNode);
-
-            // create a ScheduledFuture that will cancel the planned node future after a timeout.
-            // This protects us from leaving planned nodes stranded within Jenkins NodeProvisioner when the Fleet
-            // is updated or removed before it can scale. After scaling, EC2FleetOnlineChecker will cancel the future
-            // if something happens to the Fleet.
-            // TODO: refactor to consolidate logic with EC2FleetOnlineChecker
-            final ScheduledFuture<?> scheduledFuture = EXECUTOR.schedule(() -> {
-                if (completableFuture.isDone()) {
-                    return;
-                }
-                info("Scaling timeout reached, removing node from Jenkins's plannedCapacitySnapshot");
-                // with complete(null) Jenkins will remove future from plannedCapacity without making a fuss
-                completableFuture.complete(null);
-                return;
-                },
-                getScheduledFutureTimeoutSec(), TimeUnit.SECONDS);
-            plannedNodeScheduledFutures.add(scheduledFuture);
+            plannedNodes.add(plannedNode, TimeUnit.SECONDS.toMillis(getScheduledFutureTimeoutSec()));
+        }
+
+        if (capacityPushOnProvision) {
+            scheduleCapacityPush();
         }
         return resultList;
     }
 
+    /**
+     * Debounce push, all provision calls till push is executed will be collapsed into one modify.
+     */
+    private void scheduleCapacityPush() {
+        if (capacityPushScheduled.compareAndSet(false, true)) {
+            SCHEDULED_CALL_EXECUTOR.schedule(this::pushCapacity, CAPACITY_PUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Apply <code>toAdd</code> to fleet target capacity without waiting for next {@link #update()}.
+     * Instance termination and nodes registration are still done by update only. If update is
+     * in progress push is skipped, as update will apply current <code>toAdd</code> any way.
+     * <p>
+     * Accounting is the same as in update: applied part of <code>toAdd</code> is subtracted,
+     * timeouts of corresponding planned nodes are cancelled and target capacity is reduced for
+     * instances scheduled to terminate.
+     */
+    void pushCapacity() {
+        capacityPushScheduled.set(false);
+        if (!updateLock.tryLock()) {
+            fine("Update is in progress, skip capacity push");
+            return;
+        }
+        try {
+            final FleetCloudState current = state.get();
+            final FleetStateStats currentState = current.getStats();
+            final int currentToAdd = current.getToAdd();
+            if (currentState == null || currentToAdd < 1 || !currentState.getState().isActive()) return;
+            // target capacity can't be changed during modification, next update will apply it
+            if (currentState.getState().isModifying()) return;
+
+            // same as update, instances are terminated by update but capacity is reduced for them now
+            final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate =
+                    filterOutBusyNodes(current.getInstanceIdsToTerminate());
+            final int targetCapacity = getTargetCapacity(currentState.getNumDesired(),
+                    getPendingCapacityReduction(instanceIdsToTerminate), currentToAdd);
+            EC2Fleets.get(fleet).modify(
+                    getAwsCredentialsId(), region, endpoint, fleet, targetCapacity, minSize, maxSize);
+            info("Set target capacity to '%s' on provision", targetCapacity);
+            capacityPushedForTermination.addAll(instanceIdsToTerminate.keySet());
+            terminatedWhileModifying.clear();
+
+            final FleetStateStats updatedState = new FleetStateStats(currentState, targetCapacity);
+            // toAdd only grows outside of update and push, so we can subtract
+            state.updateAndGet(s -> s.withToAdd(s.getToAdd() - currentToAdd).withStats(updatedState));
+            plannedNodes.confirmScaled(currentToAdd);
+        } catch (Exception e) {
+            warning(e, "Failed to set target capacity on provision, will be done by next update");
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
     /**
      * Perform sync of plugin data with EC2 Spot Fleet state.
      *
      * @return current state
      */
     public FleetStateStats update() {
+        updateLock.lock();
+        try {
+            final FleetCloudState current = state.get();
+            if (current.isRetired()) {
+                fine("Cloud was replaced by new configuration, skip update");
+                return current.getStats();
+            }
+            return updateLocked();
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    private FleetStateStats updateLocked() {
         fine("start cloud %s", this);
 
         // Make a snapshot of current cloud state to work with.
         // We should always work with the snapshot since data could be modified in another thread
-        FleetStateStats currentState = EC2Fleets.get(fleet).getState(
-                getAwsCredentialsId(), region, endpoint, getFleet());
-
-        // Some Fleet implementations (e.g. EC2SpotFleet) reflect their state only at the end of modification
-        if (currentState.getState().isModifying()) {
-            info("Fleet '%s' is currently under modification. Skipping update", currentState.getFleetId());
-            synchronized (this) {
-                return stats;
-            }
+        // with tag discovery instances are described by tag in update, so listing is not needed
+        FleetStateStats currentState;
+        if (tagDiscovery) {
+            currentState = EC2Fleets.get(fleet).getState(getAwsCredentialsId(), region, endpoint, getFleet(), false);
+        } else if (stateCoalescing) {
+            currentState = FleetStateCoalescer.get().getState(
+                    EC2Fleets.get(fleet), getAwsCredentialsId(), region, endpoint, getFleet());
+        } else {
+            currentState = getFleetState();
         }
-        final int currentToAdd;
-        final Map<String, EC2AgentTerminationReason> currentInstanceIdsToTerminate;
-        synchronized (this) {
-            if(minSpareSize > 0) {
-                // Check spare instances by considering FleetStateStats#getNumDesired so we account for newer instances which are in progress
-                final int currentSpareInstanceCount = getCurrentSpareInstanceCount(currentState, currentState.getNumDesired());
-                final int additionalSpareInstancesRequired = minSpareSize - currentSpareInstanceCount;
-                fine("currentSpareInstanceCount: %s additionalSpareInstancesRequired: %s", currentSpareInstanceCount, additionalSpareInstancesRequired);
-                if (additionalSpareInstancesRequired > 0) {
-                    toAdd = toAdd + additionalSpareInstancesRequired;
-                }
-            }
-            currentToAdd = toAdd;
-
-            // for computers currently busy doing work, wait until next update cycle to terminate corresponding instances (issue#363).
-            currentInstanceIdsToTerminate = filterOutBusyNodes();
-        }
-
-        currentState = updateByState(currentToAdd, currentInstanceIdsToTerminate, currentState);
-
-        // lock and update state of plugin, so terminate or provision could work with new state of world
-        synchronized (this) {
-            instanceIdsToTerminate.keySet().removeAll(currentInstanceIdsToTerminate.keySet());
-            // toAdd only grows outside of this method, so we can subtract
-            toAdd = toAdd - currentToAdd;
-            fine("setting stats");
-            stats = currentState;
-
-            removePlannedNodeScheduledFutures(currentToAdd);
-
-            // since data could be changed between two sync blocks we need to recalculate target capacity
-            final int updatedTargetCapacity = Math.max(0,
-                    stats.getNumDesired() - instanceIdsToTerminate.size() + toAdd);
-            // limit planned pool according to real target capacity
-            while (plannedNodesCache.size() > updatedTargetCapacity) {
-                info("Planned number of nodes '%s' is greater than the targetCapacity '%s'. Canceling a node", plannedNodesCache.size(), updatedTargetCapacity);
-                final Iterator<NodeProvisioner.PlannedNode> iterator = plannedNodesCache.iterator();
-                final NodeProvisioner.PlannedNode plannedNodeToCancel = iterator.next();
-                iterator.remove();
-                // cancel to let jenkins know that the node is not valid anymore
-                plannedNodeToCancel.future.cancel(true);
-            }
-            return stats;
+
+        // Some Fleet implementations (e.g. EC2SpotFleet) reflect their state only at the end of modification,
+        // new instances are still registered and terminations done, only target capacity is not changed
+        final boolean modifying = currentState.getState().isModifying();
+        trackModifying(modifying);
+        if (modifying) {
+            info("Fleet '%s' is currently under modification. Target capacity update is deferred", currentState.getFleetId());
         }
+
+        int additionalSpareInstancesRequired = 0;
+        if(minSpareSize > 0) {
+            // Check spare instances by considering FleetStateStats#getNumDesired so we account for newer instances which are in progress
+            final int currentSpareInstanceCount = getCurrentSpareInstanceCount(currentState, currentState.getNumDesired());
+            additionalSpareInstancesRequired = minSpareSize - currentSpareInstanceCount;
+            fine("currentSpareInstanceCount: %s additionalSpareInstancesRequired: %s", currentSpareInstanceCount, additionalSpareInstancesRequired);
+        }
+        final int spareToAdd = Math.max(0, additionalSpareInstancesRequired);
+        final FleetCloudState current = state.updateAndGet(s -> spareToAdd > 0 ? s.withToAdd(s.getToAdd() + spareToAdd) : s);
+        // toAdd is kept till modification is done
+        final int currentToAdd = modifying ? 0 : current.getToAdd();
+
+        // for computers currently busy doing work, wait until next update cycle to terminate corresponding instances (issue#363).
+        final Map<String, EC2AgentTerminationReason> currentInstanceIdsToTerminate =
+                filterOutBusyNodes(current.getInstanceIdsToTerminate());
+
+        currentState = updateByState(currentToAdd, currentInstanceIdsToTerminate, currentState, modifying);
+
+        // update state of plugin, so terminate or provision could work with new state of world
+        final FleetStateStats updatedState = currentState;
+        fine("setting stats");
+        final FleetCloudState previous = state.getAndUpdate(s -> s
+                .withoutTerminations(currentInstanceIdsToTerminate.keySet())
+                // toAdd only grows outside of this method, so we can subtract
+                .withToAdd(s.getToAdd() - currentToAdd)
+                .withStats(updatedState));
+        if (stateRestored) {
+            info("First update done, restored desired capacity '%s' replaced by '%s'",
+                    previous.getStats().getNumDesired(), updatedState.getNumDesired());
+            stateRestored = false;
+        }
+        saveState();
+
+        plannedNodes.confirmScaled(currentToAdd);
+
+        // since data could be changed since snapshot we need to recalculate target capacity
+        final FleetCloudState updated = state.get();
+        capacityPushedForTermination.retainAll(updated.getInstanceIdsToTerminate().keySet());
+        final int updatedTargetCapacity = Math.max(0, updatedState.getNumDesired()
+                - getPendingCapacityReduction(updated.getInstanceIdsToTerminate()) + updated.getToAdd());
+        // limit planned pool according to real target capacity
+        final int plannedNodesCount = plannedNodes.size();
+        final int cancelled = plannedNodes.trim(updatedTargetCapacity).size();
+        if (cancelled > 0) {
+            info("Planned number of nodes '%s' is greater than the targetCapacity '%s'. Canceled %s nodes", plannedNodesCount, updatedTargetCapacity, cancelled);
+        }
+        return updatedState;
     }
 
-    private Map<String, EC2AgentTerminationReason> filterOutBusyNodes() {
+    private Map<String, EC2AgentTerminationReason> filterOutBusyNodes(
+            final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate) {
         final Jenkins j = Jenkins.get();
         final Map<String, EC2AgentTerminationReason> filteredInstanceIdsToTerminate = instanceIdsToTerminate.entrySet()
                 .stream()
@@ -555,42 +847,92 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
         return filteredInstanceIdsToTerminate;
     }
 
-    public boolean removePlannedNodeScheduledFutures(final int numToRemove) {
-        if (numToRemove < 1) {
-            return false;
+    /**
+     * Update total time in modifying state when modification is done
+     */
+    private void trackModifying(final boolean modifying) {
+        final long now = System.currentTimeMillis();
+        if (modifying) {
+            if (modifyingSince == 0) modifyingSince = now;
+        } else if (modifyingSince != 0) {
+            final long duration = now - modifyingSince;
+            totalModifyingMillis.addAndGet(duration);
+            modifyingSince = 0;
+            info("Fleet modification done, target capacity update was deferred for %s ms", duration);
         }
-        Iterator<ScheduledFuture<?>> iterator = plannedNodeScheduledFutures.iterator();
-        for (int i = 0; i < numToRemove; i++) {
-            if(!iterator.hasNext()){
-                fine("Expected a scheduled future to exist but no more are present");
-                return false;
-            }
-            ScheduledFuture<?> nextFuture = iterator.next();
-            nextFuture.cancel(true);
-            iterator.remove();
+    }
+
+    /**
+     * @return how long fleet is in modifying state according to updates, <code>0</code> if it's not modifying
+     */
+    public long getModifyingMillis() {
+        final long since = modifyingSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    /**
+     * @return total time fleet was in modifying state since cloud creation, including current modification
+     */
+    public long getTotalModifyingMillis() {
+        return totalModifyingMillis.get() + getModifyingMillis();
+    }
+
+    /**
+     * @return how much target capacity still should be reduced for terminations: instances scheduled
+     * to terminate which push didn't reduce it for and instances terminated while fleet was modifying
+     */
+    private int getPendingCapacityReduction(final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate) {
+        int reduction = terminatedWhileModifying.size();
+        for (final String instanceId : instanceIdsToTerminate.keySet()) {
+            if (!capacityPushedForTermination.contains(instanceId)) reduction++;
         }
-        return true;
+        return reduction;
+    }
+
+    /**
+     * Target capacity set by update and push, kept within min and max size
+     */
+    private int getTargetCapacity(final int numDesired, final int capacityReduction, final int toAdd) {
+        return Math.max(minSize, Math.min(maxSize, numDesired - capacityReduction + toAdd));
     }
 
     private FleetStateStats updateByState(
-            final int currentToAdd, final Map<String, EC2AgentTerminationReason> currentInstanceIdsToTerminate, final FleetStateStats currentState) {
+            final int currentToAdd, final Map<String, EC2AgentTerminationReason> currentInstanceIdsToTerminate,
+            final FleetStateStats currentState, final boolean modifying) {
         final Jenkins jenkins = Jenkins.get();
         final AmazonEC2 ec2 = Registry.getEc2Api().connect(getAwsCredentialsId(), region, endpoint);
 
         // Ensure target capacity is not negative (covers capacity updates from outside the plugin)
-        final int targetCapacity = Math.max(minSize,
-                Math.min(maxSize, currentState.getNumDesired() - currentInstanceIdsToTerminate.size() + currentToAdd));
+        final int targetCapacity = modifying ? currentState.getNumDesired() : getTargetCapacity(
+                currentState.getNumDesired(), getPendingCapacityReduction(currentInstanceIdsToTerminate), currentToAdd);
 
         // Modify target capacity when an instance is removed or added, even if the value of target capacity doesn't change.
         // For example, if we remove an instance and add an instance the net change is 0, but we still make the API call.
         // This lets us update the fleet settings with NoTermination policy, which lets us terminate instances on our own
-        if (currentToAdd > 0 || currentInstanceIdsToTerminate.size() > 0 || targetCapacity != currentState.getNumDesired()) {
+        if (!modifying && (currentToAdd > 0 || currentInstanceIdsToTerminate.size() > 0 || targetCapacity != currentState.getNumDesired())) {
             EC2Fleets.get(fleet).modify(
                     getAwsCredentialsId(), region, endpoint, fleet, targetCapacity, minSize, maxSize);
             info("Set target capacity to '%s'", targetCapacity);
         }
+        if (!modifying) terminatedWhileModifying.clear();
+
+        FleetStateStats updatedState = new FleetStateStats(currentState, targetCapacity);
+
+        // instances which failed to terminate before, their nodes are already removed and
+        // target capacity already changed, so they only need to be submitted again
+        final Map<String, EC2AgentTerminationReason> terminationRetries = new HashMap<>();
+        for (final Map.Entry<String, EC2AgentTerminationReason> entry : this.terminationRetries.entrySet()) {
+            // remove one by one to not lose retries added in the same time
+            if (this.terminationRetries.remove(entry.getKey(), entry.getValue())) {
+                terminationRetries.put(entry.getKey(), entry.getValue());
+            }
+        }
 
-        final FleetStateStats updatedState = new FleetStateStats(currentState, targetCapacity);
+        // push could reduce target capacity for instances already, for others terminated during
+        // modification it's reduced by next update
+        for (final String instanceId : currentInstanceIdsToTerminate.keySet()) {
+            if (!capacityPushedForTermination.remove(instanceId) && modifying) terminatedWhileModifying.add(instanceId);
+        }
 
         if (currentInstanceIdsToTerminate.size() > 0) {
             // internally removeNode lock on queue to correctly update node list
@@ -612,62 +954,67 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                     }
                 }
             });
-            Registry.getEc2Api().terminateInstances(ec2, currentInstanceIdsToTerminate.keySet());
-            info("Terminated instances: %s", currentInstanceIdsToTerminate);
         }
 
-        fine("Fleet instances: %s", updatedState.getInstances());
+        if (currentInstanceIdsToTerminate.size() > 0 || terminationRetries.size() > 0) {
+            final Map<String, EC2AgentTerminationReason> toTerminate = new HashMap<>(terminationRetries);
+            toTerminate.putAll(currentInstanceIdsToTerminate);
+            terminate(ec2, toTerminate);
+        }
 
-        // Set up the lists of Jenkins nodes and fleet instances
-        final Set<String> fleetInstances = new HashSet<>(updatedState.getInstances());
-        final Map<String, Instance> described = Registry.getEc2Api().describeInstances(ec2, fleetInstances);
+        final Map<String, FleetInstance> described;
+        final Set<String> fleetInstances;
+        if (tagDiscovery) {
+            // one call for membership and details
+            described = Registry.getEc2Api().describeInstancesByTag(
+                    ec2, EC2Fleets.get(fleet).getInstanceTagKey(), fleet);
+            // listed instances (if fleet lists them anyway) could be not tagged yet
+            fleetInstances = updatedState.getInstances().union(described.keySet());
+            updatedState = new FleetStateStats(updatedState.getFleetId(), updatedState.getNumDesired(),
+                    updatedState.getState(), fleetInstances, updatedState.getInstanceTypeWeights());
+        } else {
+            fleetInstances = updatedState.getInstances();
+            described = describeInstances(ec2, fleetInstances);
+        }
+        fine("Fleet instances: %s", fleetInstances);
 
-        // Sometimes described includes just deleted instances
+        // Sometimes described includes just deleted instances, termination is also async
+        // so instances could be still running
         described.keySet().removeAll(currentInstanceIdsToTerminate.keySet());
+        final Set<String> terminating = TerminationService.get().getInFlight(ec2);
+        if (!terminating.isEmpty()) described.keySet().removeAll(terminating);
         fine("Described instances: %s", described.keySet());
 
         // Fleet takes a while to display terminated instances. Update stats with current view of active instance count
         updatedState.setNumActive(described.size());
 
-        final Set<String> jenkinsInstances = new HashSet<>();
-        for (final Node node : jenkins.getNodes()) {
-            if (node instanceof EC2FleetNode && ((EC2FleetCloud)((EC2FleetNode) node).getCloud()).getFleet().equals(fleet)) {
-                jenkinsInstances.add(node.getNodeName());
-            }
-        }
+        final Set<String> jenkinsInstances = getJenkinsInstances(jenkins);
         fine("Jenkins nodes: %s", jenkinsInstances);
 
-        // contains Jenkins nodes that were once fleet instances but are no longer in the fleet
-        final Set<String> jenkinsNodesWithoutInstance = new HashSet<>(jenkinsInstances);
-        jenkinsNodesWithoutInstance.removeAll(fleetInstances);
-        if(!jenkinsNodesWithoutInstance.isEmpty()) {
-            fine("Jenkins nodes without instance(s): %s", jenkinsNodesWithoutInstance);
+        final FleetReconciler.Delta delta = reconciler.reconcile(
+                fleetInstances, described.keySet(), jenkinsInstances, labelString);
+        if (delta.isEmpty()) {
+            fine("Jenkins nodes match fleet instances, nothing to reconcile");
+            return updatedState;
         }
-        // terminatedFleetInstances contains fleet instances that are terminated, stopped, stopping, or shutting down
-        final Set<String> terminatedFleetInstances = new HashSet<>(fleetInstances);
 
-        // terminated are any current which cannot be described
-        terminatedFleetInstances.removeAll(described.keySet());
-        if(!terminatedFleetInstances.isEmpty()) {
-            fine("Terminated Fleet instance(s): %s", terminatedFleetInstances);
+        // contains Jenkins nodes that are no longer in the fleet or which instances are terminated, stopped, stopping, or shutting down
+        if (!delta.getNodesToRemove().isEmpty()) {
+            fine("Jenkins nodes without running instance(s): %s", delta.getNodesToRemove());
         }
         // newFleetInstances contains running fleet instances that are not already Jenkins nodes
-        final Map<String, Instance> newFleetInstances = new HashMap<>(described);
-        for (final String instanceId : jenkinsInstances) newFleetInstances.remove(instanceId);
+        final Map<String, FleetInstance> newFleetInstances = new HashMap<>();
+        for (final String instanceId : delta.getNewInstances()) newFleetInstances.put(instanceId, described.get(instanceId));
         if(!newFleetInstances.isEmpty()) {
             fine("New instance(s) not yet registered as nodes in Jenkins: %s ", newFleetInstances.keySet());
         }
-        // update caches
-        final List<String> jenkinsNodesToRemove = new ArrayList<>();
-        jenkinsNodesToRemove.addAll(terminatedFleetInstances);
-        jenkinsNodesToRemove.addAll(jenkinsNodesWithoutInstance);
         // Remove dying fleet instances from Jenkins
-        for (final String instance : jenkinsNodesToRemove) {
+        for (final String instance : delta.getNodesToRemove()) {
             removeNode(instance);
         }
 
-        // Update the label for all Jenkins nodes in the fleet instance cache
-        for (final String instanceId : jenkinsInstances) {
+        // Update the label for new Jenkins nodes, or for all if label was changed
+        for (final String instanceId : delta.getNodesToRelabel()) {
             final Node node = jenkins.getNode(instanceId);
             if (node == null) {
                 info("Skipping label update, the Jenkins node for instance '%s' was null", instanceId);
@@ -695,23 +1042,153 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                 warning(e, "Failed to tag new instances: %s", newFleetInstances.keySet());
             }
 
-            // addNewAgent will call addNode which calls queue lock.
-            // We speed this up by getting one lock for all nodes to add
+            // resolve all executor scaling needs before queue lock, types from launch specifications
+            // are included, so instances launched later most probably will not need a call
+            final Set<String> instanceTypes = new HashSet<>(updatedState.getInstanceTypeWeights().keySet());
+            for (final FleetInstance instance : newFleetInstances.values()) instanceTypes.add(instance.getInstanceType());
+            try {
+                executorScaler.prepare(instanceTypes, ec2);
+            } catch (final Exception e) {
+                warning(e, "Failed to prepare executor scaling for instance types %s", instanceTypes);
+            }
+
+            // everything which doesn't touch node list (launcher, executors, fs root) is done
+            // before queue lock, so lock is held only to register nodes
+            final List<EC2FleetNode> newNodes = new ArrayList<>(newFleetInstances.size());
+            final List<String> notReady = new ArrayList<>();
+            for (final FleetInstance instance : newFleetInstances.values()) {
+                try {
+                    final EC2FleetNode node = createNode(ec2, instance, updatedState);
+                    if (node != null) newNodes.add(node);
+                    else notReady.add(instance.getInstanceId());
+                } catch (final Exception ex) {
+                    warning(ex, "Unable to create node for instance '%s'", instance.getInstanceId());
+                }
+            }
+
+            addNodes(jenkins, newNodes);
+
+            if (pendingInstancePoll && !notReady.isEmpty()) {
+                for (final String instanceId : notReady) pendingInstances.putIfAbsent(instanceId, 0);
+                schedulePendingPoll();
+            }
+        }
+
+        return updatedState;
+    }
+
+    private void addNodes(final Jenkins jenkins, final List<EC2FleetNode> newNodes) {
+        // addNode calls queue lock, speed this up by getting one lock for all nodes to add
+        final List<EC2FleetNode> addedNodes = new ArrayList<>(newNodes.size());
+        if (!newNodes.isEmpty()) {
+            final long lockStart = System.currentTimeMillis();
             Queue.withLock(new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        for (final Instance instance : newFleetInstances.values()) {
-                            addNewAgent(ec2, instance, updatedState);
+                        for (final EC2FleetNode node : newNodes) {
+                            // jenkins automatically remove old node with same name if any
+                            jenkins.addNode(node);
+                            addedNodes.add(node);
                         }
                     } catch (final Exception ex) {
-                        warning(ex, "Unable to set label on node");
+                        warning(ex, "Unable to add nodes");
                     }
                 }
             });
+            fine("Added %s node(s) in %s ms under queue lock", addedNodes.size(), System.currentTimeMillis() - lockStart);
         }
 
-        return updatedState;
+        for (final EC2FleetNode node : addedNodes) {
+            trackOnline(node);
+        }
+    }
+
+    /**
+     * Next poll is scheduled by min number of attempts done for pending instances, 1s, 2s, 4s, 8s by default.
+     */
+    private void schedulePendingPoll() {
+        int attempts = Integer.MAX_VALUE;
+        for (final int instanceAttempts : pendingInstances.values()) attempts = Math.min(attempts, instanceAttempts);
+        if (attempts == Integer.MAX_VALUE) return;
+
+        if (pendingPollScheduled.compareAndSet(false, true)) {
+            SCHEDULED_CALL_EXECUTOR.schedule(this::pollPendingInstances,
+                    PENDING_POLL_DELAY_MILLIS << attempts, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Describe only instances which update found not ready to be nodes (no IP address yet or not running
+     * when {@link #addNodeOnlyIfRunning}) and register them as soon as they are ready, without waiting
+     * for next {@link #update()}. Instance is polled {@link #PENDING_POLL_MAX_ATTEMPTS} times at most,
+     * after that it's left to update, which will watch it again if it's still not ready.
+     * <p>
+     * If update is in progress poll is skipped, as update will register or watch them any way.
+     */
+    void pollPendingInstances() {
+        pendingPollScheduled.set(false);
+        if (pendingInstances.isEmpty()) return;
+        if (!updateLock.tryLock()) {
+            fine("Update is in progress, skip pending instances poll");
+            return;
+        }
+        try {
+            final Jenkins jenkins = Jenkins.get();
+            final FleetCloudState current = state.get();
+            final Set<String> instanceIds = new HashSet<>();
+            for (final String instanceId : pendingInstances.keySet()) {
+                // registered or scheduled to terminate in the meantime
+                if (jenkins.getNode(instanceId) != null || current.getInstanceIdsToTerminate().containsKey(instanceId)) {
+                    pendingInstances.remove(instanceId);
+                } else {
+                    instanceIds.add(instanceId);
+                }
+            }
+            if (instanceIds.isEmpty() || current.getStats() == null) return;
+
+            final AmazonEC2 ec2 = Registry.getEc2Api().connect(getAwsCredentialsId(), region, endpoint);
+            final Map<String, FleetInstance> described = Registry.getEc2Api().describeInstances(ec2, instanceIds);
+
+            final List<EC2FleetNode> newNodes = new ArrayList<>();
+            for (final String instanceId : instanceIds) {
+                final FleetInstance instance = described.get(instanceId);
+                EC2FleetNode node = null;
+                try {
+                    // not described instances are terminated, no need to wait for them
+                    if (instance != null) node = createNode(ec2, instance, current.getStats());
+                } catch (final Exception ex) {
+                    warning(ex, "Unable to create node for instance '%s'", instanceId);
+                }
+
+                if (node != null) {
+                    newNodes.add(node);
+                    pendingInstances.remove(instanceId);
+                } else if (instance == null) {
+                    pendingInstances.remove(instanceId);
+                } else {
+                    countPendingPollAttempt(instanceId);
+                }
+            }
+
+            if (!newNodes.isEmpty()) {
+                info("Pending instance(s) ready before next update, adding %s node(s)", newNodes.size());
+                addNodes(jenkins, newNodes);
+            }
+        } catch (final Exception e) {
+            warning(e, "Failed to poll pending instances, will retry");
+            // failed poll is an attempt too, so instances are left to update after last one
+            for (final String instanceId : pendingInstances.keySet()) countPendingPollAttempt(instanceId);
+        } finally {
+            updateLock.unlock();
+        }
+        schedulePendingPoll();
+    }
+
+    private void countPendingPollAttempt(final String instanceId) {
+        if (pendingInstances.merge(instanceId, 1, Integer::sum) >= PENDING_POLL_MAX_ATTEMPTS) {
+            pendingInstances.remove(instanceId);
+        }
     }
 
     /**
@@ -732,32 +1209,90 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
      * @param reason reason for termination
      * @return <code>true</code> if node scheduled for termination, otherwise <code>false</code>
      */
-    public synchronized boolean scheduleToTerminate(final String instanceId, final boolean ignoreMinConstraints,
-                                                    final EC2AgentTerminationReason reason) {
-        if (stats == null) {
-            info("First update not done, skipping termination scheduling for '%s'", instanceId);
-            return false;
-        }
-        // We can't remove instances beyond minSize or minSpareSize unless ignoreMinConstraints true
-        if(!ignoreMinConstraints) {
-            if (minSize > 0 && stats.getNumActive() - instanceIdsToTerminate.size() <= minSize) {
-                info("Not scheduling instance '%s' for termination because we need a minimum of %s instance(s) running", instanceId, minSize);
-                fine("cloud: %s, instanceIdsToTerminate: %s", this, instanceIdsToTerminate);
+    public boolean scheduleToTerminate(final String instanceId, final boolean ignoreMinConstraints,
+                                       final EC2AgentTerminationReason reason) {
+        // checks are done against snapshot, retry if state was changed in the same time
+        while (true) {
+            final FleetCloudState current = state.get();
+            final FleetStateStats stats = current.getStats();
+            final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate = current.getInstanceIdsToTerminate();
+            if (stats == null) {
+                info("First update not done, skipping termination scheduling for '%s'", instanceId);
                 return false;
             }
-            if (minSpareSize > 0) {
-                // Check spare instances by considering FleetStateStats#getNumActive as we want to consider only running instances
-                final int currentSpareInstanceCount = getCurrentSpareInstanceCount(stats, stats.getNumActive());
-                if (currentSpareInstanceCount - instanceIdsToTerminate.size() <= minSpareSize) {
-                    info("Not scheduling instance '%s' for termination because we need a minimum of %s spare instance(s) running", instanceId, minSpareSize);
+            // We can't remove instances beyond minSize or minSpareSize unless ignoreMinConstraints true
+            if(!ignoreMinConstraints) {
+                if (minSize > 0 && stats.getNumActive() - instanceIdsToTerminate.size() <= minSize) {
+                    info("Not scheduling instance '%s' for termination because we need a minimum of %s instance(s) running", instanceId, minSize);
+                    fine("cloud: %s, instanceIdsToTerminate: %s", this, instanceIdsToTerminate);
                     return false;
                 }
+                if (minSpareSize > 0) {
+                    // Check spare instances by considering FleetStateStats#getNumActive as we want to consider only running instances
+                    final int currentSpareInstanceCount = getCurrentSpareInstanceCount(stats, stats.getNumActive());
+                    if (currentSpareInstanceCount - instanceIdsToTerminate.size() <= minSpareSize) {
+                        info("Not scheduling instance '%s' for termination because we need a minimum of %s spare instance(s) running", instanceId, minSpareSize);
+                        return false;
+                    }
+                }
+            }
+            final FleetCloudState updated = current.withTermination(instanceId, reason);
+            if (state.compareAndSet(current, updated)) {
+                info("Scheduling instance '%s' for termination on cloud %s because of reason: %s", instanceId, this, reason);
+                fine("InstanceIdsToTerminate: %s", updated.getInstanceIdsToTerminate());
+                saveState();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Schedule many instances for termination at once, used by {@link IdleScanner} instead of
+     * calling {@link #scheduleToTerminate(String, boolean, EC2AgentTerminationReason)} for each.
+     * Candidates are taken in given order while <code>minSize</code> and <code>minSpareSize</code>
+     * allow, {@link EC2AgentTerminationReason#MAX_TOTAL_USES_EXHAUSTED} ignores them as in one by one
+     * call. {@link EC2AgentTerminationReason#EXCESS_CAPACITY} candidates are taken only till excess is covered.
+     *
+     * @param candidates instance id to reason, in order of preference
+     * @return scheduled instance ids
+     */
+    public Set<String> scheduleToTerminate(final Map<String, EC2AgentTerminationReason> candidates) {
+        if (candidates.isEmpty()) return Collections.emptySet();
+        while (true) {
+            final FleetCloudState current = state.get();
+            final FleetStateStats stats = current.getStats();
+            if (stats == null) {
+                info("First update not done, skipping termination scheduling for %s instance(s)", candidates.size());
+                return Collections.emptySet();
+            }
+            // spare count is based on busy nodes, so the same for all candidates
+            final int currentSpareInstanceCount = minSpareSize > 0 ? getCurrentSpareInstanceCount(stats, stats.getNumActive()) : 0;
+            final Map<String, EC2AgentTerminationReason> toTerminate = new LinkedHashMap<>();
+            int terminating = current.getInstanceIdsToTerminate().size();
+            int capacityReduction = getPendingCapacityReduction(current.getInstanceIdsToTerminate());
+            for (final Map.Entry<String, EC2AgentTerminationReason> candidate : candidates.entrySet()) {
+                if (current.getInstanceIdsToTerminate().containsKey(candidate.getKey())) continue;
+                final EC2AgentTerminationReason reason = candidate.getValue();
+                if (reason == EC2AgentTerminationReason.EXCESS_CAPACITY && stats.getNumDesired() - capacityReduction <= maxSize) continue;
+                if (reason != EC2AgentTerminationReason.MAX_TOTAL_USES_EXHAUSTED) {
+                    if (minSize > 0 && stats.getNumActive() - terminating <= minSize) continue;
+                    if (minSpareSize > 0 && currentSpareInstanceCount - terminating <= minSpareSize) continue;
+                }
+                toTerminate.put(candidate.getKey(), reason);
+                terminating++;
+                capacityReduction++;
+            }
+            if (toTerminate.isEmpty()) {
+                fine("None of %s candidate(s) could be scheduled for termination", candidates.size());
+                return Collections.emptySet();
+            }
+            if (state.compareAndSet(current, current.withTerminations(toTerminate))) {
+                info("Scheduling instances for termination: %s, skipped %s candidate(s)",
+                        toTerminate, candidates.size() - toTerminate.size());
+                saveState();
+                return toTerminate.keySet();
             }
         }
-        info("Scheduling instance '%s' for termination on cloud %s because of reason: %s", instanceId, this, reason);
-        instanceIdsToTerminate.put(instanceId, reason);
-        fine("InstanceIdsToTerminate: %s", instanceIdsToTerminate);
-        return true;
     }
 
     @Override
@@ -778,15 +1313,149 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
         return true;
     }
 
+    /**
+     * Submit instances to {@link TerminationService}. Instances which failed to terminate
+     * are retried on next update.
+     */
+    private void terminate(final AmazonEC2 ec2, final Map<String, EC2AgentTerminationReason> toTerminate) {
+        info("Submitted instances for termination: %s", toTerminate);
+        TerminationService.get().terminate(Registry.getEc2Api(), ec2, toTerminate.keySet())
+                .thenAccept(result -> {
+                    if (!result.getTerminated().isEmpty()) {
+                        info("Terminated instances: %s", result.getTerminated());
+                    }
+                    if (!result.getFailed().isEmpty()) {
+                        warning("Failed to terminate instances %s, retry on next update", result.getFailed().keySet());
+                        for (final String instanceId : result.getFailed().keySet()) {
+                            retryTermination(instanceId, toTerminate.get(instanceId));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Termination could be submitted before cloud was replaced, in that case failed instance
+     * is retried by successor, as nobody reads retries of replaced cloud.
+     */
+    private void retryTermination(final String instanceId, final EC2AgentTerminationReason reason) {
+        EC2FleetCloud cloud = this;
+        while (true) {
+            cloud.terminationRetries.put(instanceId, reason);
+            final EC2FleetCloud next = cloud.successor;
+            // migration sets successor before it moves retries, so retry put after move is moved here
+            if (next == null || !cloud.terminationRetries.remove(instanceId, reason)) return;
+            cloud = next;
+        }
+    }
+
+    private Map<String, FleetInstance> describeInstances(final AmazonEC2 ec2, final Set<String> instanceIds) {
+        if (describeCoalescing) {
+            return DescribeInstancesCoalescer.get().describeInstances(
+                    Registry.getEc2Api(), ec2, instanceIds, getDescribeConcurrency());
+        } else if (getDescribeConcurrency() > 1) {
+            return Registry.getEc2Api().describeInstances(ec2, instanceIds, EC2Api.BATCH_SIZE, getDescribeConcurrency());
+        } else {
+            return Registry.getEc2Api().describeInstances(ec2, instanceIds);
+        }
+    }
+
     private Object readResolve() {
         init();
+        restoreState();
         return this;
     }
 
+    /**
+     * Take last known state saved before restart, so cloud could provision and terminate
+     * before first update. See {@link FleetStateStore}.
+     */
+    private void restoreState() {
+        if (fleet == null) return;
+        final FleetStateStore.Snapshot snapshot = FleetStateStore.get().load(name, fleet);
+        if (snapshot == null) return;
+        state.set(FleetCloudState.EMPTY.withStats(snapshot.getStats())
+                .withTerminations(snapshot.getInstanceIdsToTerminate()));
+        terminationRetries.putAll(snapshot.getTerminationRetries());
+        stateRestored = true;
+        info("Restored fleet state saved at %s, desired capacity '%s', %s instance(s) to terminate",
+                new Date(snapshot.getSavedAt()), snapshot.getStats().getNumDesired(),
+                snapshot.getInstanceIdsToTerminate().size() + terminationRetries.size());
+    }
+
+    /**
+     * Take runtime state of cloud with same name and fleet which was replaced by this one when
+     * configuration was saved (UI, JCasC), see {@link CloudStateHandoff}. Waits for update
+     * of old cloud in progress, after that old cloud is retired and doesn't update or provision.
+     * State collected by this cloud so far is kept, state of old cloud is added to it.
+     *
+     * @param old replaced cloud
+     */
+    void migrateStateFrom(final EC2FleetCloud old) {
+        if (old == this) return;
+        old.updateLock.lock();
+        try {
+            updateLock.lock();
+            try {
+                // after retire old cloud doesn't change its state, provision and termination scheduling
+                // in progress will fail compare-and-set and see retired state
+                final FleetCloudState oldState = old.state.getAndUpdate(FleetCloudState::retire);
+                if (oldState.isRetired()) return;
+                // terminations submitted by old cloud could fail after that
+                old.successor = this;
+                final FleetCloudState updated = state.updateAndGet(s -> {
+                    // own stats are fresher, as taken when cloud was created
+                    final FleetCloudState merged = s.getStats() == null ? s.withStats(oldState.getStats()) : s;
+                    return merged.withToAdd(merged.getToAdd() + oldState.getToAdd())
+                            .withTerminations(oldState.getInstanceIdsToTerminate());
+                });
+                for (final String instanceId : old.terminationRetries.keySet()) {
+                    final EC2AgentTerminationReason reason = old.terminationRetries.remove(instanceId);
+                    if (reason != null) terminationRetries.put(instanceId, reason);
+                }
+                // capacity reduction still owed for terminations or already done by push, see
+                // getPendingCapacityReduction, so new cloud doesn't set target capacity wrong
+                terminatedWhileModifying.addAll(old.terminatedWhileModifying);
+                old.terminatedWhileModifying.clear();
+                capacityPushedForTermination.addAll(old.capacityPushedForTermination);
+                old.capacityPushedForTermination.clear();
+                if (pendingInstancePoll) {
+                    for (final Map.Entry<String, Integer> entry : old.pendingInstances.entrySet()) {
+                        pendingInstances.merge(entry.getKey(), entry.getValue(), Math::max);
+                    }
+                    schedulePendingPoll();
+                }
+                old.pendingInstances.clear();
+                plannedNodes.transferFrom(old.plannedNodes);
+                info("Took state of replaced cloud, toAdd '%s', %s instance(s) to terminate, %s planned node(s)",
+                        updated.getToAdd(), updated.getInstanceIdsToTerminate().size() + terminationRetries.size(),
+                        plannedNodes.size());
+            } finally {
+                updateLock.unlock();
+            }
+        } finally {
+            old.updateLock.unlock();
+        }
+    }
+
+    private void saveState() {
+        final FleetCloudState current = state.get();
+        if (current.getStats() == null) return;
+        FleetStateStore.get().save(name, current.getStats(), current.getInstanceIdsToTerminate(), terminationRetries);
+    }
+
     private void init() {
-        plannedNodesCache = new HashSet<>();
-        instanceIdsToTerminate = new HashMap<>();
-        plannedNodeScheduledFutures = new ArrayList<>();
+        plannedNodes = new PlannedNodeTracker(getDisplayName(), HashedWheelTimer.get());
+        plannedNodeCounter = new AtomicInteger(1);
+        state = new AtomicReference<>(FleetCloudState.EMPTY);
+        terminationRetries = new ConcurrentHashMap<>();
+        reconciler = new FleetReconciler();
+        updateLock = new ReentrantLock();
+        capacityPushScheduled = new AtomicBoolean();
+        terminatedWhileModifying = ConcurrentHashMap.newKeySet();
+        capacityPushedForTermination = ConcurrentHashMap.newKeySet();
+        totalModifyingMillis = new AtomicLong();
+        pendingInstances = new ConcurrentHashMap<>();
+        pendingPollScheduled = new AtomicBoolean();
     }
 
     private void removeNode(final String instanceId) {
@@ -805,16 +1474,19 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
 
     /**
      * https://github.com/jenkinsci/ec2-plugin/blob/master/src/main/java/hudson/plugins/ec2/EC2Cloud.java#L640
+     * <p>
+     * Doesn't register node in Jenkins, so could be called without queue lock.
      *
      * @param ec2      ec2 client
      * @param instance instance
+     * @return node or <code>null</code> if instance is not ready to be added yet
      */
-    private void addNewAgent(final AmazonEC2 ec2, final Instance instance, FleetStateStats stats) throws Exception {
+    private EC2FleetNode createNode(final AmazonEC2 ec2, final FleetInstance instance, FleetStateStats stats) throws Exception {
         final String instanceId = instance.getInstanceId();
 
         // instance state check enabled and not running, skip adding
-        if (addNodeOnlyIfRunning && InstanceStateName.Running != InstanceStateName.fromValue(instance.getState().getName())) {
-            return;
+        if (addNodeOnlyIfRunning && InstanceStateName.Running != InstanceStateName.fromValue(instance.getState())) {
+            return null;
         }
 
         final String address = privateIpUsed ? instance.getPrivateIpAddress() : instance.getPublicIpAddress();
@@ -824,7 +1496,7 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                 info("Instance '%s' public IP address not assigned. Either it could take some time or" +
                         " the Spot Request is not configured to assign public IPs", instance.getInstanceId());
             }
-            return; // wait more time, probably IP address not yet assigned
+            return null; // wait more time, probably IP address not yet assigned
         }
 
         // Generate a random FS root if one isn't specified
@@ -846,21 +1518,18 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
 
         // Initialize our retention strategy
         node.setRetentionStrategy(new EC2RetentionStrategy());
+        return node;
+    }
 
-        final Jenkins jenkins = Jenkins.get();
-        // jenkins automatically remove old node with same name if any
-        jenkins.addNode(node);
-
-        // todo use plannedNodesCache in thread-safe way
-        final CompletableFuture<Node> future;
-        if (plannedNodesCache.isEmpty()) {
+    /**
+     * Resolve planned node (if any) when added node is online. Called after queue lock
+     * is released as it doesn't touch node list.
+     */
+    private void trackOnline(final EC2FleetNode node) {
+        CompletableFuture<Node> future = plannedNodes.poll();
+        if (future == null) {
             // handle the case where we have new nodes the plugin didn't request
             future = new CompletableFuture<>();
-        } else {
-            // handle the standard case where this node came from one of our scale up events
-            final NodeProvisioner.PlannedNode plannedNode = plannedNodesCache.iterator().next();
-            plannedNodesCache.remove(plannedNode);
-            future = ((CompletableFuture<Node>) plannedNode.future);
         }
 
         // Use getters for timeout and interval as they provide a default value
@@ -870,9 +1539,30 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                 TimeUnit.SECONDS.toMillis(getInitOnlineCheckIntervalSec()));
     }
 
+    private Set<String> getJenkinsInstances(final Jenkins jenkins) {
+        final FleetNodeIndex index = FleetNodeIndex.get();
+        if (index.isReady()) {
+            return index.getNodeNames(name);
+        }
+
+        // index is not built yet, scan all nodes
+        final Set<String> jenkinsInstances = new HashSet<>();
+        for (final Node node : jenkins.getNodes()) {
+            if (node instanceof EC2FleetNode && ((EC2FleetCloud)((EC2FleetNode) node).getCloud()).getFleet().equals(fleet)) {
+                jenkinsInstances.add(node.getNodeName());
+            }
+        }
+        return jenkinsInstances;
+    }
+
     private int getCurrentSpareInstanceCount(final FleetStateStats currentState, final int countOfInstances) {
         final int currentSpareInstanceCount = 0;
         if(minSpareSize > 0) {
+            final FleetNodeIndex index = FleetNodeIndex.get();
+            if (index.isReady()) {
+                return countOfInstances - index.getBusyCount(name);
+            }
+
             final Jenkins jenkins = Jenkins.get();
             int currentBusyInstances = 0;
             for (final Computer computer : jenkins.getComputers()) {
@@ -992,8 +1682,21 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
             model.add(0, new Option("- please select -", "", true));
             try {
                 for (final EC2Fleet EC2Fleet : EC2Fleets.all()) {
-                    EC2Fleet.describe(
-                            awsCredentialsId, region, endpoint, model, fleet, showAllFleets);
+                    // few forms could ask for same list at once, so share the call per fleet type, fleets
+                    // of previous types are kept if next one failed, options are copied as they are mutable
+                    final ListBoxModel described = SingleFlight.get().execute(
+                            Arrays.asList("describe", EC2Fleet.getClass().getName(),
+                                    awsCredentialsId, region, endpoint, fleet, showAllFleets), true,
+                            // UI only, should not compete with update cycles for API rate
+                            () -> AWSRateLimiter.background(() -> {
+                                final ListBoxModel r = new ListBoxModel();
+                                EC2Fleet.describe(
+                                        awsCredentialsId, region, endpoint, r, fleet, showAllFleets);
+                                return r;
+                            }));
+                    for (final Option option : described) {
+                        model.add(new Option(option.name, option.value, option.selected));
+                    }
                 }
             } catch (final Exception ex) {
                 LOGGER.log(Level.WARNING, String.format("Cannot describe fleets in '%s' or by endpoint '%s'", region, endpoint), ex);
@@ -1024,7 +1727,9 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
                 @QueryParameter final String fleet) {
             // Check if any missing AWS Permissions
             final AwsPermissionChecker awsPermissionChecker = new AwsPermissionChecker(awsCredentialsId, region, endpoint);
-            final List<String> missingPermissions = awsPermissionChecker.getMissingPermissions(fleet);
+            final List<String> missingPermissions = SingleFlight.get().execute(
+                    Arrays.asList("testConnection", awsCredentialsId, region, endpoint, fleet), true,
+                    () -> awsPermissionChecker.getMissingPermissions(fleet));
             // TODO: DryRun does not work as expected for TerminateInstances and does not exists for UpdateAutoScalingGroup
             final String disclaimer = String.format("Skipping validation for following permissions: %s, %s",
                     AwsPermissionChecker.FleetAPI.TerminateInstances,
@@ -1053,6 +1758,16 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
 
         public abstract int scale(String instanceType, FleetStateStats stats, AmazonEC2 ec2);
 
+        /**
+         * Called before nodes are created for new instances, outside of queue lock, so scaler can
+         * fetch all it needs for {@link #scale(String, FleetStateStats, AmazonEC2)} in advance.
+         *
+         * @param instanceTypes types of new instances and types from fleet launch specifications
+         * @param ec2           client
+         */
+        public void prepare(Collection<String> instanceTypes, AmazonEC2 ec2) {
+        }
+
         public ExecutorScaler withNumExecutors(int numExecutors) {
             setNumExecutors(numExecutors);
             return this;
@@ -1138,7 +1853,12 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
 
             int vCPUNumExecutors = Integer.MAX_VALUE;
             int memoryNumExecutors = Integer.MAX_VALUE;
-            InstanceTypeInfo instanceTypeInfo = getInstanceTypeInfo(ec2, instanceType);
+            // usually prefetched by prepare, described now if prefetch failed
+            InstanceTypeInfo instanceTypeInfo = InstanceTypeInfoCache.get().getInstanceTypeInfo(ec2, instanceType);
+            if (instanceTypeInfo == null) {
+                LOGGER.warning(String.format("No info for instance type '%s', use default number of executors", instanceType));
+                return numExecutors;
+            }
             if(this.vCpuPerExecutor != 0) {
                 int instanceVCPUs = instanceTypeInfo.getVCpuInfo().getDefaultVCpus();
                 vCPUNumExecutors = Math.max(instanceVCPUs/this.vCpuPerExecutor, 1);
@@ -1157,10 +1877,12 @@ public class EC2FleetCloud extends AbstractEC2FleetCloud {
             public String getDisplayName() { return "Scale by node hardware";}
         }
 
-        private InstanceTypeInfo getInstanceTypeInfo(final AmazonEC2 ec2, final String instanceType) {
-            DescribeInstanceTypesRequest request = new DescribeInstanceTypesRequest().withInstanceTypes(instanceType);
-            DescribeInstanceTypesResult result = ec2.describeInstanceTypes(request);
-            return result.getInstanceTypes().get(0);
+        @Override
+        public void prepare(final Collection<String> instanceTypes, final AmazonEC2 ec2) {
+            if (this.vCpuPerExecutor == 0 && this.memoryGiBPerExecutor == 0) {
+                return;
+            }
+            InstanceTypeInfoCache.get().prefetch(ec2, instanceTypes);
         }
     }
 }
@@ -1,15 +1,17 @@
 package com.amazon.jenkins.ec2fleet;
 
+import com.amazon.jenkins.ec2fleet.aws.AWSRateLimiter;
 import com.amazon.jenkins.ec2fleet.aws.AwsPermissionChecker;
 import com.amazon.jenkins.ec2fleet.aws.CloudFormationApi;
 import com.amazon.jenkins.ec2fleet.aws.EC2Api;
+import com.amazon.jenkins.ec2fleet.aws.FleetInstance;
 import com.amazon.jenkins.ec2fleet.aws.RegionHelper;
+import com.amazon.jenkins.ec2fleet.aws.TerminationService;
 import com.amazon.jenkins.ec2fleet.fleet.EC2Fleets;
 import com.amazon.jenkins.ec2fleet.fleet.EC2SpotFleet;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
 import com.amazonaws.services.cloudformation.model.StackStatus;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
 import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
@@ -49,6 +51,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -106,6 +110,11 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
 
     private transient Map<String, State> states;
 
+    /**
+     * Instances which were submitted for termination and failed
+     */
+    private transient ConcurrentMap<String, EC2AgentTerminationReason> terminationRetries;
+
     @DataBoundConstructor
     public EC2FleetLabelCloud(final String name,
                               final String awsCredentialsId,
@@ -364,9 +373,15 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
         for (State state : states.values()) fleetIds.add(state.fleetId);
         final Map<String, FleetStateStats> currentStats = new EC2SpotFleet().getStateBatch(
                 getAwsCredentialsId(), region, endpoint, fleetIds);
-        for (State state : currentStates.values()) {
-            // todo what if we don't find this fleet in map
+        for (final Iterator<State> iterator = currentStates.values().iterator(); iterator.hasNext(); ) {
+            final State state = iterator.next();
             state.stats = currentStats.get(state.fleetId);
+            if (state.stats == null) {
+                // deleted or not accessible fleet should not stop update of others
+                warning("Fleet '%s' can't be described, skip it in this update", state.fleetId);
+                iterator.remove();
+                continue;
+            }
 
             state.targetCapacity = Math.max(0,
                     state.stats.getNumDesired() - state.instanceIdsToTerminate.size() + state.toAdd);
@@ -418,6 +433,16 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
             instanceIdsToRemove.putAll(state.instanceIdsToTerminate);
         }
 
+        // instances which failed to terminate before, their nodes are already removed and
+        // target capacity already changed, so they only need to be submitted again
+        final Map<String, EC2AgentTerminationReason> terminationRetries = new HashMap<>();
+        for (final Map.Entry<String, EC2AgentTerminationReason> entry : this.terminationRetries.entrySet()) {
+            // remove one by one to not lose retries added in the same time
+            if (this.terminationRetries.remove(entry.getKey(), entry.getValue())) {
+                terminationRetries.put(entry.getKey(), entry.getValue());
+            }
+        }
+
         if (instanceIdsToRemove.size() > 0) {
             // internally removeNode lock on queue to correctly update node list
             // we do big block for all removal to avoid delay on lock waiting
@@ -439,48 +464,71 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
                 }
             });
             info("Delete terminating nodes from Jenkins %s", instanceIdsToRemove);
+        }
 
-            Registry.getEc2Api().terminateInstances(ec2, instanceIdsToRemove.keySet());
-            info("Instances %s were terminated with result", instanceIdsToRemove);
+        if (instanceIdsToRemove.size() > 0 || terminationRetries.size() > 0) {
+            final Map<String, EC2AgentTerminationReason> toTerminate = new HashMap<>(terminationRetries);
+            toTerminate.putAll(instanceIdsToRemove);
+            TerminationService.get().terminate(Registry.getEc2Api(), ec2, toTerminate.keySet())
+                    .thenAccept(result -> {
+                        info("Instances %s were terminated", result.getTerminated());
+                        if (!result.getFailed().isEmpty()) {
+                            warning("Failed to terminate instances %s, retry on next update", result.getFailed().keySet());
+                            for (final String instanceId : result.getFailed().keySet()) {
+                                this.terminationRetries.put(instanceId, toTerminate.get(instanceId));
+                            }
+                        }
+                    });
         }
 
+        // termination is async, instances could be still running
+        final Set<String> terminating = TerminationService.get().getInFlight(ec2);
+
+        // grouped once for all labels, instead of scan of all nodes per label
+        final FleetNodeIndex index = FleetNodeIndex.get();
+        final Map<String, Set<String>> nodesByLabel = index.isReady() ? index.getNodeNamesByLabel(name) : null;
+
         for (final Map.Entry<String, State> entry : states.entrySet()) {
             final State state = entry.getValue();
             info("fleet instances %s", state.stats.getInstances());
 
             // Set up the lists of Jenkins nodes and fleet instances
             // currentFleetInstances contains instances currently in the fleet
-            final Set<String> fleetInstances = new HashSet<>(state.stats.getInstances());
+            final InstanceIdSet fleetInstances = state.stats.getInstances();
 
-            final Map<String, Instance> described = Registry.getEc2Api().describeInstances(ec2, fleetInstances);
+            final Map<String, FleetInstance> described = Registry.getEc2Api().describeInstances(ec2, fleetInstances);
+            if (!terminating.isEmpty()) described.keySet().removeAll(terminating);
             info("described instances %s", described.keySet());
 
             // currentJenkinsNodes contains all registered Jenkins nodes related to this cloud
             final Set<String> jenkinsInstances = new HashSet<>();
-            for (final Node node : jenkins.getNodes()) {
-                if (node instanceof EC2FleetNode) {
-                    final EC2FleetNode node1 = (EC2FleetNode) node;
-                    // cloud and label are same
-                    if (node1.getCloud() == this && node1.getLabelString().equals(entry.getKey())) {
-                        jenkinsInstances.add(node.getNodeName());
+            if (nodesByLabel != null) {
+                final Set<String> labelNodes = nodesByLabel.get(entry.getKey());
+                if (labelNodes != null) jenkinsInstances.addAll(labelNodes);
+            } else {
+                for (final Node node : jenkins.getNodes()) {
+                    if (node instanceof EC2FleetNode) {
+                        final EC2FleetNode node1 = (EC2FleetNode) node;
+                        // cloud and label are same
+                        if (node1.getCloud() == this && node1.getLabelString().equals(entry.getKey())) {
+                            jenkinsInstances.add(node.getNodeName());
+                        }
                     }
                 }
             }
             info("jenkins nodes %s", jenkinsInstances);
 
             // contains Jenkins nodes that were once fleet instances but are no longer in the fleet
-            final Set<String> jenkinsNodesWithInstance = new HashSet<>(jenkinsInstances);
-            jenkinsNodesWithInstance.removeAll(fleetInstances);
+            final Set<String> jenkinsNodesWithInstance = InstanceIdSet.copyOf(jenkinsInstances).difference(fleetInstances);
             info("jenkins nodes without instance %s", jenkinsNodesWithInstance);
 
             // terminatedFleetInstances contains fleet instances that are terminated, stopped, stopping, or shutting down
-            final Set<String> terminatedFleetInstances = new HashSet<>(fleetInstances);
             // terminated are any current which cannot be described
-            terminatedFleetInstances.removeAll(described.keySet());
+            final Set<String> terminatedFleetInstances = fleetInstances.difference(described.keySet());
             info("terminated instances " + terminatedFleetInstances);
 
             // newFleetInstances contains running fleet instances that are not already Jenkins nodes
-            final Map<String, Instance> newFleetInstances = new HashMap<>(described);
+            final Map<String, FleetInstance> newFleetInstances = new HashMap<>(described);
             for (final String instanceId : jenkinsInstances) newFleetInstances.remove(instanceId);
             info("new instances " + newFleetInstances.keySet());
 
@@ -526,7 +574,7 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
                     @Override
                     public void run() {
                         try {
-                            for (final Instance instance : newFleetInstances.values()) {
+                            for (final FleetInstance instance : newFleetInstances.values()) {
                                 addNewAgent(ec2, instance, entry.getKey(), state);
                             }
                         } catch (final Exception ex) {
@@ -583,14 +631,15 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
 
     private void init() {
         states = new HashMap<>();
+        terminationRetries = new ConcurrentHashMap<>();
     }
 
     private void addNewAgent(
-            final AmazonEC2 ec2, final Instance instance, final String labelString, final State state) throws Exception {
+            final AmazonEC2 ec2, final FleetInstance instance, final String labelString, final State state) throws Exception {
         final String instanceId = instance.getInstanceId();
 
         // instance state check enabled and not running, skip adding
-        if (InstanceStateName.Running != InstanceStateName.fromValue(instance.getState().getName()))
+        if (InstanceStateName.Running != InstanceStateName.fromValue(instance.getState()))
             return;
 
         final String address = privateIpUsed ? instance.getPrivateIpAddress() : instance.getPublicIpAddress();
@@ -742,7 +791,9 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
                 Queue.withLock(new Runnable() {
                     @Override
                     public void run() {
-                        for (final Node node : jenkins.getNodes()) {
+                        final FleetNodeIndex index = FleetNodeIndex.get();
+                        final List<? extends Node> nodes = index.isReady() ? index.getNodes(name) : jenkins.getNodes();
+                        for (final Node node : nodes) {
                             if (label.equals(node.getLabelString())) {
                                 final String instanceId = node.getNodeName();
                                 instanceIdsToRemove.add(instanceId);
@@ -824,7 +875,7 @@ public class EC2FleetLabelCloud extends AbstractEC2FleetCloud {
 
             try {
                 final AmazonEC2 amazonEC2 = new EC2Api().connect(awsCredentialsId, region, endpoint);
-                final List<KeyPairInfo> keyPairs = amazonEC2.describeKeyPairs().getKeyPairs();
+                final List<KeyPairInfo> keyPairs = AWSRateLimiter.background(() -> amazonEC2.describeKeyPairs()).getKeyPairs();
                 for (final KeyPairInfo keyPair : keyPairs) {
                     model.add(new ListBoxModel.Option(keyPair.getKeyName(), keyPair.getKeyName()));
                 }
@@ -1,13 +1,15 @@
 package com.amazon.jenkins.ec2fleet;
 
+import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Node;
-import hudson.util.DaemonThreadFactory;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,9 +28,13 @@ import java.util.logging.Logger;
  * This class fix this situation and keep planned node until instance is really online, so Jenkins planner
  * count planned node as available capacity and doesn't request more.
  * <p>
- * Before each wait it will try to {@link Computer#connect(boolean)}, because by default Jenkins is trying to
- * make a few short interval reconnection initially (when EC2 instance still is not ready) after that
- * with big interval, experiment shows a few minutes and more.
+ * Checker doesn't poll computer state, future is resolved by {@link Listener#onOnline(Computer, TaskListener)}
+ * as soon as Jenkins connects node, {@link HashedWheelTimer} is used only to fail future on timeout. So hundreds
+ * of launching nodes don't keep timer thread busy and planned node is resolved without waiting for next check.
+ * <p>
+ * When Jenkins failed to launch node, checker will {@link Computer#connect(boolean)} again after interval,
+ * because by default Jenkins is trying to make a few short interval reconnection initially (when EC2 instance
+ * still is not ready) after that with big interval, experiment shows a few minutes and more.
  * <p>
  * Based on https://github.com/jenkinsci/ec2-plugin/blob/master/src/main/java/hudson/plugins/ec2/EC2Cloud.java#L640
  *
@@ -37,65 +43,110 @@ import java.util.logging.Logger;
  */
 @SuppressWarnings("WeakerAccess")
 @ThreadSafe
-class EC2FleetOnlineChecker implements Runnable {
+class EC2FleetOnlineChecker {
 
     private static final Logger LOGGER = Logger.getLogger(EC2FleetOnlineChecker.class.getName());
-    // use daemon thread, so no problem when stop jenkins
-    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    // pending checks by node name, computer has same name as node
+    private static final ConcurrentMap<String, EC2FleetOnlineChecker> CHECKERS = new ConcurrentHashMap<>();
 
     public static void start(final Node node, final CompletableFuture<Node> future, final long timeout, final long interval) {
-        EXECUTOR.execute(new EC2FleetOnlineChecker(node, future, timeout, interval));
+        if (future.isCancelled()) {
+            return;
+        }
+
+        if (timeout < 1 || interval < 1) {
+            future.complete(node);
+            LOGGER.log(Level.INFO, String.format("Node '%s' connection check disabled. Resolving planned node", node.getDisplayName()));
+            return;
+        }
+
+        final EC2FleetOnlineChecker checker = new EC2FleetOnlineChecker(node, future, timeout, interval);
+        final String name = node.getNodeName();
+        if (name != null) {
+            final EC2FleetOnlineChecker previous = CHECKERS.put(name, checker);
+            // node with same name was re-added before it was online, new planned node replaced old one
+            if (previous != null) previous.stop();
+        }
+        // future could be resolved or cancelled by cloud, no need to wait for node anymore
+        future.whenComplete((n, throwable) -> checker.stop());
+        checker.timeoutHandle = HashedWheelTimer.get().newTimeout(checker::timeout, timeout, TimeUnit.MILLISECONDS);
+
+        // node could be connected before we registered checker, so listener missed it
+        final Computer computer = node.toComputer();
+        if (computer != null && computer.isOnline()) {
+            checker.online();
+        } else {
+            LOGGER.log(Level.INFO, String.format("No connection to node '%s'. Waiting for it to be online", node.getDisplayName()));
+        }
+    }
+
+    /**
+     * @return number of nodes which are not online yet and checker waits for them
+     */
+    public static int getPendingCount() {
+        return CHECKERS.size();
     }
 
-    private final long start;
     private final Node node;
     private final CompletableFuture<Node> future;
     private final long timeout;
     private final long interval;
+    private volatile HashedWheelTimer.Timeout timeoutHandle;
 
     private EC2FleetOnlineChecker(
             final Node node, final CompletableFuture<Node> future, final long timeout, final long interval) {
-        this.start = System.currentTimeMillis();
         this.node = node;
         this.future = future;
         this.timeout = timeout;
         this.interval = interval;
     }
 
-    @Override
-    public void run() {
-        if (future.isCancelled()) {
-            return;
+    private void online() {
+        stop();
+        if (future.complete(node)) {
+            LOGGER.log(Level.INFO, String.format("Node '%s' connected. Resolving planned node", node.getDisplayName()));
         }
+    }
 
-        if (timeout < 1 || interval < 1) {
-            future.complete(node);
-            LOGGER.log(Level.INFO, String.format("Node '%s' connection check disabled. Resolving planned node", node.getDisplayName()));
-            return;
-        }
+    private void timeout() {
+        stop();
+        future.completeExceptionally(new IllegalStateException(
+                "Failed to provision node. Could not connect to node '" + node.getDisplayName() + "' before timeout (" + timeout + "ms)"));
+    }
 
-        final Computer computer = node.toComputer();
-        if (computer != null) {
-            if (computer.isOnline()) {
-                future.complete(node);
-                LOGGER.log(Level.INFO, String.format("Node '%s' connected. Resolving planned node", node.getDisplayName()));
-                return;
-            }
-        }
+    private void reconnectLater(final Computer computer) {
+        LOGGER.log(Level.INFO, String.format("Failed to connect node '%s'. Attempting to connect again in %d ms", node.getDisplayName(), interval));
+        HashedWheelTimer.get().newTimeout(() -> {
+            if (!future.isDone()) computer.connect(false);
+        }, interval, TimeUnit.MILLISECONDS);
+    }
 
-        if (System.currentTimeMillis() - start > timeout) {
-            future.completeExceptionally(new IllegalStateException(
-                    "Failed to provision node. Could not connect to node '" + node.getDisplayName() + "' before timeout (" + timeout + "ms)"));
-            return;
+    private void stop() {
+        final String name = node.getNodeName();
+        if (name != null) CHECKERS.remove(name, this);
+        final HashedWheelTimer.Timeout timeoutHandle = this.timeoutHandle;
+        if (timeoutHandle != null) timeoutHandle.cancel();
+    }
+
+    /**
+     * Resolve planned node as soon as Jenkins connected it, or schedule reconnect if launch failed.
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class Listener extends ComputerListener {
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            final EC2FleetOnlineChecker checker = CHECKERS.get(c.getName());
+            if (checker != null) checker.online();
         }
 
-        if (computer == null) {
-            LOGGER.log(Level.INFO, String.format("No connection to node '%s'. Waiting before retry", node.getDisplayName()));
-        } else {
-            computer.connect(false);
-            LOGGER.log(Level.INFO, String.format("No connection to node '%s'. Attempting to connect and waiting before retry", node.getDisplayName()));
+        @Override
+        public void onLaunchFailure(final Computer c, final TaskListener taskListener) {
+            final EC2FleetOnlineChecker checker = CHECKERS.get(c.getName());
+            if (checker != null) checker.reconnectLater(c);
         }
-        EXECUTOR.schedule(this, interval, TimeUnit.MILLISECONDS);
+
     }
 
 }
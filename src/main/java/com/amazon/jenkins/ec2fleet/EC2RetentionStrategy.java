@@ -9,6 +9,7 @@ import hudson.model.Queue;
 import hudson.slaves.RetentionStrategy;
 
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +42,12 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
             return RE_CHECK_IN_A_MINUTE;
         }
 
+        // idle computers of that cloud are checked by one scan for all of them
+        if (cloud instanceof EC2FleetCloud && ((EC2FleetCloud) cloud).isBatchIdleScan()) {
+            reconnectIfNeeded(cloud, fc);
+            return RE_CHECK_IN_A_MINUTE;
+        }
+
         // Ensure that the EC2FleetCloud cannot be mutated from under us while
         // we're doing this check
         // Ensure nobody provisions onto this node until we've done
@@ -55,21 +62,8 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
                     return RE_CHECK_IN_A_MINUTE;
                 }
 
-                EC2AgentTerminationReason reason;
-                // Determine the reason for termination from specific to generic use cases.
-                // Reasoning for checking all cases of termination initiated by the plugin:
-                //  A user-initiated change to cloud configuration creates a new EC2FleetCloud object, erasing class fields containing data like instance IDs to terminate.
-                //  Hence, determine the reasons for termination here using persisted fields for accurate handling of termination.
-                if (fc.isMarkedForDeletion()) {
-                    reason = EC2AgentTerminationReason.AGENT_DELETED;
-                } else if (cloud.hasExcessCapacity()) {
-                    reason = EC2AgentTerminationReason.EXCESS_CAPACITY;
-                } else if (cloud instanceof EC2FleetCloud && !((EC2FleetCloud) cloud).hasUnlimitedUsesForNodes()
-                        && ((EC2FleetNode)node).getUsesRemaining() <= 0) {
-                    reason = EC2AgentTerminationReason.MAX_TOTAL_USES_EXHAUSTED;
-                } else if (isIdleForTooLong(cloud, fc)) {
-                    reason = EC2AgentTerminationReason.IDLE_FOR_TOO_LONG;
-                } else {
+                final EC2AgentTerminationReason reason = getTerminationReason(cloud, fc, node, cloud::hasExcessCapacity);
+                if (reason == null) {
                     return RE_CHECK_IN_A_MINUTE;
                 }
 
@@ -84,10 +78,8 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
                 }
             }
 
-            // if connection to the computer is lost for some reason, try to reconnect if configured to do so.
-            if (cloud.isAlwaysReconnect() && !markedForTermination && fc.isOffline() && !fc.isConnecting() && fc.isLaunchSupported()) {
-                LOGGER.log(Level.INFO, "Reconnecting to instance: " + fc.getDisplayName());
-                fc.tryReconnect();
+            if (!markedForTermination) {
+                reconnectIfNeeded(cloud, fc);
             }
         } finally {
             fc.setAcceptingTasks(shouldAcceptTasks);
@@ -96,13 +88,45 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
         return RE_CHECK_IN_A_MINUTE;
     }
 
+    /**
+     * Determine the reason for termination from specific to generic use cases.
+     * Reasoning for checking all cases of termination initiated by the plugin:
+     * A user-initiated change to cloud configuration creates a new EC2FleetCloud object, erasing class fields containing data like instance IDs to terminate.
+     * Hence, determine the reasons for termination here using persisted fields for accurate handling of termination.
+     *
+     * @param excessCapacity called only if needed
+     * @return reason or <code>null</code> if computer should be kept
+     */
+    static EC2AgentTerminationReason getTerminationReason(final AbstractEC2FleetCloud cloud, final EC2FleetNodeComputer fc,
+                                                          final Node node, final BooleanSupplier excessCapacity) {
+        if (fc.isMarkedForDeletion()) {
+            return EC2AgentTerminationReason.AGENT_DELETED;
+        } else if (excessCapacity.getAsBoolean()) {
+            return EC2AgentTerminationReason.EXCESS_CAPACITY;
+        } else if (cloud instanceof EC2FleetCloud && !((EC2FleetCloud) cloud).hasUnlimitedUsesForNodes()
+                && ((EC2FleetNode)node).getUsesRemaining() <= 0) {
+            return EC2AgentTerminationReason.MAX_TOTAL_USES_EXHAUSTED;
+        } else if (isIdleForTooLong(cloud, fc)) {
+            return EC2AgentTerminationReason.IDLE_FOR_TOO_LONG;
+        }
+        return null;
+    }
+
+    // if connection to the computer is lost for some reason, try to reconnect if configured to do so.
+    private static void reconnectIfNeeded(final AbstractEC2FleetCloud cloud, final EC2FleetNodeComputer fc) {
+        if (cloud.isAlwaysReconnect() && fc.isOffline() && !fc.isConnecting() && fc.isLaunchSupported()) {
+            LOGGER.log(Level.INFO, "Reconnecting to instance: " + fc.getDisplayName());
+            fc.tryReconnect();
+        }
+    }
+
     @Override
     public void start(EC2FleetNodeComputer c) {
         LOGGER.log(Level.INFO, "Connecting to instance: " + c.getDisplayName());
         c.connect(false);
     }
 
-    private boolean isIdleForTooLong(final AbstractEC2FleetCloud cloud, final Computer computer) {
+    private static boolean isIdleForTooLong(final AbstractEC2FleetCloud cloud, final Computer computer) {
         final int idleMinutes = cloud.getIdleMinutes();
         if (idleMinutes <= 0) return false;
 
@@ -124,6 +148,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
     public void taskAccepted(Executor executor, Queue.Task task) {
         final EC2FleetNodeComputer computer = (EC2FleetNodeComputer) executor.getOwner();
         if (computer != null) {
+            FleetNodeIndex.get().taskAccepted(computer.getName());
             final EC2FleetNode ec2FleetNode = computer.getNode();
             if (ec2FleetNode != null) {
                 final int maxTotalUses = ec2FleetNode.getMaxTotalUses();
@@ -172,6 +197,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2FleetNodeComputer
 
         final EC2FleetNodeComputer computer = (EC2FleetNodeComputer) executor.getOwner();
         if (computer != null) {
+            FleetNodeIndex.get().taskCompleted(computer.getName());
             final EC2FleetNode ec2FleetNode = computer.getNode();
             if (ec2FleetNode != null) {
                 final AbstractEC2FleetCloud cloud = ec2FleetNode.getCloud();
@@ -0,0 +1,104 @@
+package com.amazon.jenkins.ec2fleet;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runtime state of {@link EC2FleetCloud} shared by update, provision and retention checks.
+ * Cloud keeps it in {@link java.util.concurrent.atomic.AtomicReference} and replaces it
+ * by compare-and-set, so readers like {@link EC2FleetCloud#hasExcessCapacity()} never block.
+ * <p>
+ * Each change creates new object. Termination map is copied on change, it's small as
+ * cleared by each update.
+ */
+@Immutable
+final class FleetCloudState {
+
+    static final FleetCloudState EMPTY = new FleetCloudState(
+            null, 0, Collections.<String, EC2AgentTerminationReason>emptyMap(), false);
+
+    @Nullable
+    private final FleetStateStats stats;
+    private final int toAdd;
+    private final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate;
+    private final boolean retired;
+
+    private FleetCloudState(final FleetStateStats stats, final int toAdd,
+                            final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate,
+                            final boolean retired) {
+        this.stats = stats;
+        this.toAdd = toAdd;
+        this.instanceIdsToTerminate = instanceIdsToTerminate;
+        this.retired = retired;
+    }
+
+    /**
+     * @return last known fleet state or <code>null</code> if first update is not done yet
+     */
+    @Nullable
+    FleetStateStats getStats() {
+        return stats;
+    }
+
+    int getToAdd() {
+        return toAdd;
+    }
+
+    /**
+     * @return unmodifiable instances scheduled for termination
+     */
+    Map<String, EC2AgentTerminationReason> getInstanceIdsToTerminate() {
+        return instanceIdsToTerminate;
+    }
+
+    /**
+     * @return <code>true</code> when cloud was replaced by new one and gave its state to it
+     */
+    boolean isRetired() {
+        return retired;
+    }
+
+    FleetCloudState withStats(final FleetStateStats stats) {
+        return new FleetCloudState(stats, toAdd, instanceIdsToTerminate, retired);
+    }
+
+    FleetCloudState withToAdd(final int toAdd) {
+        return new FleetCloudState(stats, toAdd, instanceIdsToTerminate, retired);
+    }
+
+    FleetCloudState withTermination(final String instanceId, final EC2AgentTerminationReason reason) {
+        final Map<String, EC2AgentTerminationReason> copy = new HashMap<>(instanceIdsToTerminate);
+        copy.put(instanceId, reason);
+        return new FleetCloudState(stats, toAdd, Collections.unmodifiableMap(copy), retired);
+    }
+
+    /**
+     * Add instances to terminate, already scheduled instances keep their reason.
+     */
+    FleetCloudState withTerminations(final Map<String, EC2AgentTerminationReason> toTerminate) {
+        if (toTerminate.isEmpty()) return this;
+        final Map<String, EC2AgentTerminationReason> copy = new HashMap<>(toTerminate);
+        copy.putAll(instanceIdsToTerminate);
+        return new FleetCloudState(stats, toAdd, Collections.unmodifiableMap(copy), retired);
+    }
+
+    FleetCloudState withoutTerminations(final Collection<String> instanceIds) {
+        if (instanceIds.isEmpty() || instanceIdsToTerminate.isEmpty()) return this;
+        final Map<String, EC2AgentTerminationReason> copy = new HashMap<>(instanceIdsToTerminate);
+        copy.keySet().removeAll(instanceIds);
+        return new FleetCloudState(stats, toAdd, Collections.unmodifiableMap(copy), retired);
+    }
+
+    /**
+     * @return same stats, no pending changes and marked as retired
+     */
+    FleetCloudState retire() {
+        return new FleetCloudState(
+                stats, 0, Collections.<String, EC2AgentTerminationReason>emptyMap(), true);
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Index of {@link EC2FleetNode} by cloud name with number of busy nodes per cloud. Each cloud manages
+ * one fleet, {@link EC2FleetLabelCloud} nodes are split by label on top of it.
+ * <p>
+ * Without index each cloud update scans all Jenkins nodes and computers to find own, with many clouds
+ * and thousands of nodes this is quadratic work on each update cycle. Index is built once when Jenkins
+ * loaded nodes, after that kept by {@link Listener} and {@link EC2RetentionStrategy} executor events.
+ * <p>
+ * Until index is built (or in tests without Jenkins) {@link #isReady()} returns <code>false</code>,
+ * callers should scan nodes as before.
+ */
+@ThreadSafe
+public class FleetNodeIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetNodeIndex.class.getName());
+
+    private static final FleetNodeIndex INSTANCE = new FleetNodeIndex();
+
+    public static FleetNodeIndex get() {
+        return INSTANCE;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @SuppressWarnings("unused")
+    public static void init() {
+        get().rebuild(Jenkins.get());
+    }
+
+    private final Map<String, CloudNodes> clouds = new HashMap<>();
+    private final Map<String, Entry> nodes = new HashMap<>();
+    private volatile boolean ready;
+
+    FleetNodeIndex() {
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Replace index content by scan of all Jenkins nodes.
+     */
+    synchronized void rebuild(final Jenkins jenkins) {
+        clouds.clear();
+        nodes.clear();
+        for (final Node node : jenkins.getNodes()) {
+            if (node instanceof EC2FleetNode) {
+                add((EC2FleetNode) node);
+                final Computer computer = node.toComputer();
+                if (computer != null) {
+                    for (int i = 0; i < computer.countBusy(); i++) taskAccepted(node.getNodeName());
+                }
+            }
+        }
+        ready = true;
+        LOGGER.fine("Indexed " + nodes.size() + " nodes of " + clouds.size() + " clouds");
+    }
+
+    /**
+     * Jenkins keeps one node per name, so new node replaces old one with same name. Busy executors
+     * are kept as computer is reused by Jenkins in that case.
+     */
+    synchronized void add(final EC2FleetNode node) {
+        final Entry previous = removeEntry(node.getNodeName());
+        final String cloudName = node.getCloudName();
+        if (cloudName == null) return;
+
+        CloudNodes cloudNodes = clouds.get(cloudName);
+        if (cloudNodes == null) {
+            cloudNodes = new CloudNodes();
+            clouds.put(cloudName, cloudNodes);
+        }
+        final Entry entry = new Entry(node, cloudNodes);
+        cloudNodes.nodes.put(node.getNodeName(), entry);
+        nodes.put(node.getNodeName(), entry);
+        if (previous != null && previous.busyExecutors > 0) {
+            entry.busyExecutors = previous.busyExecutors;
+            cloudNodes.busy++;
+        }
+    }
+
+    synchronized void remove(final EC2FleetNode node) {
+        final Entry entry = nodes.get(node.getNodeName());
+        // node with same name could be already re-added
+        if (entry == null || entry.node != node) return;
+        removeEntry(node.getNodeName());
+    }
+
+    private Entry removeEntry(final String nodeName) {
+        final Entry entry = nodes.remove(nodeName);
+        if (entry == null) return null;
+        entry.cloudNodes.nodes.remove(nodeName);
+        if (entry.busyExecutors > 0) entry.cloudNodes.busy--;
+        if (entry.cloudNodes.nodes.isEmpty()) clouds.remove(entry.node.getCloudName());
+        return entry;
+    }
+
+    synchronized void taskAccepted(final String nodeName) {
+        final Entry entry = nodes.get(nodeName);
+        if (entry == null) return;
+        entry.busyExecutors++;
+        if (entry.busyExecutors == 1) entry.cloudNodes.busy++;
+    }
+
+    synchronized void taskCompleted(final String nodeName) {
+        final Entry entry = nodes.get(nodeName);
+        if (entry == null || entry.busyExecutors < 1) return;
+        entry.busyExecutors--;
+        if (entry.busyExecutors == 0) entry.cloudNodes.busy--;
+    }
+
+    /**
+     * @return names of nodes which belong to cloud
+     */
+    public synchronized Set<String> getNodeNames(final String cloudName) {
+        final CloudNodes cloudNodes = clouds.get(cloudName);
+        return cloudNodes == null ? new HashSet<String>() : new HashSet<>(cloudNodes.nodes.keySet());
+    }
+
+    /**
+     * @return names of nodes which belong to cloud by node label
+     */
+    public synchronized Map<String, Set<String>> getNodeNamesByLabel(final String cloudName) {
+        final Map<String, Set<String>> result = new HashMap<>();
+        final CloudNodes cloudNodes = clouds.get(cloudName);
+        if (cloudNodes == null) return result;
+        for (final Entry entry : cloudNodes.nodes.values()) {
+            // label could be changed without event, so read current
+            final String label = entry.node.getLabelString();
+            Set<String> names = result.get(label);
+            if (names == null) {
+                names = new HashSet<>();
+                result.put(label, names);
+            }
+            names.add(entry.node.getNodeName());
+        }
+        return result;
+    }
+
+    /**
+     * @return nodes of cloud
+     */
+    public synchronized List<EC2FleetNode> getNodes(final String cloudName) {
+        final List<EC2FleetNode> result = new ArrayList<>();
+        final CloudNodes cloudNodes = clouds.get(cloudName);
+        if (cloudNodes == null) return result;
+        for (final Entry entry : cloudNodes.nodes.values()) result.add(entry.node);
+        return result;
+    }
+
+    /**
+     * @return number of cloud nodes with at least one busy executor
+     */
+    public synchronized int getBusyCount(final String cloudName) {
+        final CloudNodes cloudNodes = clouds.get(cloudName);
+        return cloudNodes == null ? 0 : cloudNodes.busy;
+    }
+
+    /**
+     * @return number of cloud nodes without busy executors
+     */
+    public synchronized int getIdleCount(final String cloudName) {
+        final CloudNodes cloudNodes = clouds.get(cloudName);
+        return cloudNodes == null ? 0 : cloudNodes.nodes.size() - cloudNodes.busy;
+    }
+
+    private static class CloudNodes {
+        private final Map<String, Entry> nodes = new HashMap<>();
+        private int busy;
+    }
+
+    private static class Entry {
+
+        private final EC2FleetNode node;
+        private final CloudNodes cloudNodes;
+        private int busyExecutors;
+
+        private Entry(final EC2FleetNode node, final CloudNodes cloudNodes) {
+            this.node = node;
+            this.cloudNodes = cloudNodes;
+        }
+
+    }
+
+    @Extension
+    @SuppressWarnings("unused")
+    public static class Listener extends NodeListener {
+
+        @Override
+        protected void onCreated(@Nonnull final Node node) {
+            if (node instanceof EC2FleetNode) get().add((EC2FleetNode) node);
+        }
+
+        @Override
+        protected void onUpdated(@Nonnull final Node oldOne, @Nonnull final Node newOne) {
+            if (newOne instanceof EC2FleetNode) get().add((EC2FleetNode) newOne);
+            else if (oldOne instanceof EC2FleetNode) get().remove((EC2FleetNode) oldOne);
+        }
+
+        @Override
+        protected void onDeleted(@Nonnull final Node node) {
+            if (node instanceof EC2FleetNode) get().remove((EC2FleetNode) node);
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.amazon.jenkins.ec2fleet;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Reconciliation of fleet instances with Jenkins nodes for {@link EC2FleetCloud}.
+ * <p>
+ * Reconciler keeps last converged snapshot, state when all described instances had nodes and all nodes
+ * had described instances. If fleet instances, described instances, nodes and label are the same as in
+ * snapshot (content hash is checked first) nothing to do. Otherwise delta is plain diff of described
+ * instances and nodes, done by merge of sorted {@link InstanceIdSet} without hashing:
+ * <ul>
+ *     <li>new instances are described instances without node</li>
+ *     <li>nodes to remove are nodes without described instance</li>
+ *     <li>nodes to relabel are nodes added since snapshot, or all nodes if label was changed</li>
+ * </ul>
+ * Snapshot is updated only when there are no nodes to add or remove, so if action failed it will be retried
+ * on next update. Initial snapshot is empty, so first update relabels everything.
+ */
+@ThreadSafe
+class FleetReconciler {
+
+    private Snapshot converged = new Snapshot(
+            InstanceIdSet.empty(), InstanceIdSet.empty(), InstanceIdSet.empty(), null);
+    private long skipped;
+    private long reconciled;
+
+    /**
+     * @param fleetInstances   current fleet instances
+     * @param described        described not terminated instances, subset of <code>fleetInstances</code>
+     * @param jenkinsInstances current Jenkins nodes of cloud
+     * @param label            current cloud label
+     * @return what to do, empty if nothing
+     */
+    public synchronized Delta reconcile(
+            final Set<String> fleetInstances, final Set<String> described,
+            final Set<String> jenkinsInstances, final String label) {
+        // no copy if already InstanceIdSet as fleet instances from stats
+        final InstanceIdSet currentFleet = InstanceIdSet.copyOf(fleetInstances);
+        final InstanceIdSet currentDescribed = InstanceIdSet.copyOf(described);
+        final InstanceIdSet currentJenkins = InstanceIdSet.copyOf(jenkinsInstances);
+
+        final Snapshot snapshot = converged;
+        if (snapshot.matches(currentFleet, currentDescribed, currentJenkins, label)) {
+            skipped++;
+            return Delta.EMPTY;
+        }
+        reconciled++;
+
+        final InstanceIdSet newInstances = currentDescribed.difference(currentJenkins);
+        final InstanceIdSet nodesToRemove = currentJenkins.difference(currentDescribed);
+
+        final InstanceIdSet nodesToRelabel = (Objects.equals(label, snapshot.label)
+                ? currentJenkins.difference(snapshot.jenkinsInstances) : currentJenkins).difference(nodesToRemove);
+
+        final Delta delta = new Delta(newInstances, nodesToRemove, nodesToRelabel);
+        // relabel is done in same update and is not checked by snapshot, so it doesn't block convergence
+        if (newInstances.isEmpty() && nodesToRemove.isEmpty()) {
+            converged = new Snapshot(currentFleet, currentDescribed, currentJenkins, label);
+        }
+        return delta;
+    }
+
+    /**
+     * @return number of updates when nothing was changed since last converged state
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return number of updates when diff was calculated
+     */
+    public synchronized long getReconciled() {
+        return reconciled;
+    }
+
+    public static final class Delta {
+
+        private static final Delta EMPTY = new Delta(
+                Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+        private final Set<String> newInstances;
+        private final Set<String> nodesToRemove;
+        private final Set<String> nodesToRelabel;
+
+        private Delta(final Set<String> newInstances, final Set<String> nodesToRemove, final Set<String> nodesToRelabel) {
+            this.newInstances = newInstances;
+            this.nodesToRemove = nodesToRemove;
+            this.nodesToRelabel = nodesToRelabel;
+        }
+
+        /**
+         * @return described instances without Jenkins node
+         */
+        public Set<String> getNewInstances() {
+            return newInstances;
+        }
+
+        /**
+         * @return Jenkins nodes without described instance
+         */
+        public Set<String> getNodesToRemove() {
+            return nodesToRemove;
+        }
+
+        public Set<String> getNodesToRelabel() {
+            return nodesToRelabel;
+        }
+
+        public boolean isEmpty() {
+            return newInstances.isEmpty() && nodesToRemove.isEmpty() && nodesToRelabel.isEmpty();
+        }
+
+    }
+
+    private static final class Snapshot {
+
+        private final InstanceIdSet fleetInstances;
+        private final InstanceIdSet described;
+        private final InstanceIdSet jenkinsInstances;
+        private final String label;
+        private final long hash;
+
+        private Snapshot(final InstanceIdSet fleetInstances, final InstanceIdSet described,
+                         final InstanceIdSet jenkinsInstances, final String label) {
+            // sets are immutable, no copy
+            this.fleetInstances = fleetInstances;
+            this.described = described;
+            this.jenkinsInstances = jenkinsInstances;
+            this.label = label;
+            this.hash = hash(fleetInstances, described, jenkinsInstances, label);
+        }
+
+        private boolean matches(final InstanceIdSet fleetInstances, final InstanceIdSet described,
+                                final InstanceIdSet jenkinsInstances, final String label) {
+            // hash is cheap to reject, equals confirms match in case of collision
+            return hash == hash(fleetInstances, described, jenkinsInstances, label)
+                    && Objects.equals(this.label, label)
+                    && this.fleetInstances.equals(fleetInstances)
+                    && this.described.equals(described)
+                    && this.jenkinsInstances.equals(jenkinsInstances);
+        }
+
+        private static long hash(final InstanceIdSet fleetInstances, final InstanceIdSet described,
+                                 final InstanceIdSet jenkinsInstances, final String label) {
+            long hash = Objects.hashCode(label);
+            hash = hash * 31 + fleetInstances.mixedHash(1);
+            hash = hash * 31 + described.mixedHash(2);
+            hash = hash * 31 + jenkinsInstances.mixedHash(3);
+            return hash;
+        }
+
+    }
+
+}
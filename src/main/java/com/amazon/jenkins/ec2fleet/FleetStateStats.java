@@ -111,7 +111,7 @@ public final class FleetStateStats {
     @Nonnull
     private final State state;
     @Nonnull
-    private final Set<String> instances;
+    private final InstanceIdSet instances;
     @Nonnull
     private final Map<String, Double> instanceTypeWeights;
 
@@ -120,10 +120,10 @@ public final class FleetStateStats {
                            final @Nonnull Set<String> instances,
                            final @Nonnull Map<String, Double> instanceTypeWeights) {
         this.fleetId = fleetId;
-        this.numActive = instances.size();
+        this.instances = InstanceIdSet.copyOf(instances);
+        this.numActive = this.instances.size();
         this.numDesired = numDesired;
         this.state = state;
-        this.instances = instances;
         this.instanceTypeWeights = instanceTypeWeights;
     }
 
@@ -160,8 +160,11 @@ public final class FleetStateStats {
         return state;
     }
 
+    /**
+     * @return immutable set, use {@link InstanceIdSet#difference(java.util.Collection)} and others to compare
+     */
     @Nonnull
-    public Set<String> getInstances() {
+    public InstanceIdSet getInstances() {
         return instances;
     }
 
@@ -0,0 +1,191 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Last known fleet state and pending terminations of each {@link EC2FleetCloud}, persisted
+ * to <code>JENKINS_HOME</code>. All cloud runtime state is transient, so without it after
+ * restart cloud can't provision or terminate until first update is done, with many clouds
+ * that could take minutes.
+ * <p>
+ * Cloud saves snapshot after each update and restores it when loaded, restored state is
+ * replaced by first real update. Snapshot older than {@link #MAX_AGE_MILLIS} is ignored.
+ * Writes are delayed, so many clouds updated at same time produce one write.
+ */
+@ThreadSafe
+public class FleetStateStore {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetStateStore.class.getName());
+
+    private static final long MAX_AGE_MILLIS = Long.getLong(
+            FleetStateStore.class.getName() + ".maxAgeMillis", TimeUnit.MINUTES.toMillis(30));
+    private static final long WRITE_DELAY_MILLIS = 5000;
+
+    private static final FleetStateStore INSTANCE = new FleetStateStore(FleetStateStore::getDefaultFile, MAX_AGE_MILLIS);
+
+    public static FleetStateStore get() {
+        return INSTANCE;
+    }
+
+    @Terminator
+    @SuppressWarnings("unused")
+    public static void flush() {
+        get().write();
+    }
+
+    private final Supplier<File> file;
+    private final long maxAgeMillis;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // loaded lazily as clouds are restored while Jenkins is loading
+    private Map<String, Snapshot> snapshots;
+    private File loadedFrom;
+
+    FleetStateStore(final Supplier<File> file, final long maxAgeMillis) {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param cloudName cloud name
+     * @param fleet     fleet id cloud is configured with, snapshot of other fleet is ignored
+     * @return snapshot or <code>null</code> if no recent snapshot for that cloud and fleet
+     */
+    @CheckForNull
+    public synchronized Snapshot load(final String cloudName, final String fleet) {
+        final Map<String, Snapshot> snapshots = getSnapshots();
+        if (snapshots == null) return null;
+        final Snapshot snapshot = snapshots.get(cloudName);
+        if (snapshot == null) return null;
+        if (snapshot.stats == null || !snapshot.stats.getFleetId().equals(fleet)) return null;
+        if (System.currentTimeMillis() - snapshot.savedAt > maxAgeMillis) return null;
+        return snapshot;
+    }
+
+    public synchronized void save(final String cloudName, final FleetStateStats stats,
+                                  final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate,
+                                  final Map<String, EC2AgentTerminationReason> terminationRetries) {
+        final Map<String, Snapshot> snapshots = getSnapshots();
+        if (snapshots == null) return;
+        snapshots.put(cloudName, new Snapshot(
+                stats, instanceIdsToTerminate, terminationRetries, System.currentTimeMillis()));
+        if (writeScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(this::write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void write() {
+        writeScheduled.set(false);
+        final File target;
+        final HashMap<String, Snapshot> copy;
+        synchronized (this) {
+            if (snapshots == null) return;
+            removeDeletedClouds();
+            target = loadedFrom;
+            copy = new HashMap<>(snapshots);
+        }
+        try {
+            new XmlFile(target).write(copy);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot save fleet state to " + target, e);
+        }
+    }
+
+    /**
+     * @return snapshots of current Jenkins home or <code>null</code> if no Jenkins
+     */
+    @Nullable
+    private Map<String, Snapshot> getSnapshots() {
+        final File source = file.get();
+        if (source == null) return null;
+        if (snapshots == null || !source.equals(loadedFrom)) {
+            snapshots = new HashMap<>();
+            loadedFrom = source;
+            if (source.exists()) {
+                try {
+                    @SuppressWarnings("unchecked") final Map<String, Snapshot> read =
+                            (Map<String, Snapshot>) new XmlFile(source).read();
+                    if (read != null) snapshots.putAll(read);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Cannot read fleet state from " + source + ", ignore", e);
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    private void removeDeletedClouds() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return;
+        final Set<String> names = new HashSet<>();
+        for (final Cloud cloud : jenkins.clouds) {
+            if (cloud instanceof EC2FleetCloud) names.add(cloud.name);
+        }
+        snapshots.keySet().retainAll(names);
+    }
+
+    @Nullable
+    private static File getDefaultFile() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || jenkins.getRootDir() == null) return null;
+        return new File(jenkins.getRootDir(), FleetStateStore.class.getName() + ".xml");
+    }
+
+    public static final class Snapshot {
+
+        private final FleetStateStats stats;
+        private final HashMap<String, EC2AgentTerminationReason> instanceIdsToTerminate;
+        private final HashMap<String, EC2AgentTerminationReason> terminationRetries;
+        private final long savedAt;
+
+        private Snapshot(final FleetStateStats stats,
+                         final Map<String, EC2AgentTerminationReason> instanceIdsToTerminate,
+                         final Map<String, EC2AgentTerminationReason> terminationRetries,
+                         final long savedAt) {
+            // copy as fleet implementations could return collections which are not good for xml,
+            // instances are immutable InstanceIdSet already
+            this.stats = new FleetStateStats(stats.getFleetId(), stats.getNumDesired(), stats.getState(),
+                    stats.getInstances(), new HashMap<>(stats.getInstanceTypeWeights()));
+            this.stats.setNumActive(stats.getNumActive());
+            this.instanceIdsToTerminate = new HashMap<>(instanceIdsToTerminate);
+            this.terminationRetries = new HashMap<>(terminationRetries);
+            this.savedAt = savedAt;
+        }
+
+        public FleetStateStats getStats() {
+            return stats;
+        }
+
+        public Map<String, EC2AgentTerminationReason> getInstanceIdsToTerminate() {
+            return instanceIdsToTerminate;
+        }
+
+        public Map<String, EC2AgentTerminationReason> getTerminationRetries() {
+            return terminationRetries;
+        }
+
+        public long getSavedAt() {
+            return savedAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.amazon.jenkins.ec2fleet;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer for big number of timeouts which are mostly cancelled before expiration, like planned node
+ * scale and connect timeouts. Unlike {@link java.util.concurrent.ScheduledThreadPoolExecutor} which keeps
+ * tasks in heap, add and cancel are O(1), price is precision, timeout fires with up to one tick delay.
+ * <p>
+ * Timeouts are put into wheel of buckets by deadline, one worker thread moves over wheel each tick
+ * and expires timeouts of current bucket. Tasks are executed by worker thread, so they should be short.
+ * <p>
+ * Based on Netty <code>HashedWheelTimer</code>.
+ */
+@ThreadSafe
+class HashedWheelTimer {
+
+    private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    private static final HashedWheelTimer INSTANCE = new HashedWheelTimer(
+            "EC2 Fleet planned node timer",
+            Long.getLong(HashedWheelTimer.class.getName() + ".tickMillis", 100), 512);
+
+    public static HashedWheelTimer get() {
+        return INSTANCE;
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    // new timeouts, moved to wheel by worker, so wheel is accessed by worker only
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger pending = new AtomicInteger();
+    // set before timer is published, so deadlines of first timeouts are never counted from zero
+    private final long startNanos;
+
+    @SuppressWarnings("unchecked")
+    HashedWheelTimer(final String name, final long tickMillis, final int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) throw new IllegalArgumentException("wheelSize should be power of two");
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) wheel[i] = new ArrayList<>();
+        this.mask = wheelSize - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @param task  executed by timer thread when delay passed, if timeout was not cancelled
+     * @param delay delay
+     * @param unit  unit of delay
+     * @return timeout which could be cancelled
+     */
+    public Timeout newTimeout(final Runnable task, final long delay, final TimeUnit unit) {
+        start();
+        final Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts which are not expired or cancelled yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void start() {
+        // only worker is started lazily, it catches up ticks passed since timer creation
+        if (started.compareAndSet(false, true)) {
+            final Thread worker = new Thread(this::work, name);
+            // use daemon thread, so no problem when stop jenkins
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void work() {
+        long tick = 0;
+        while (true) {
+            final long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, name + " interrupted, timeouts will not fire anymore", e);
+                    return;
+                }
+            }
+            transfer(tick);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transfer(final long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+            final long ticks = timeout.deadlineNanos / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            // deadline already passed, put into current bucket to fire now
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(final List<Timeout> bucket) {
+        final Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            if (timeout.isCancelled()) {
+                iterator.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    @ThreadSafe
+    public final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        // relative to timer start
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        // accessed by worker only
+        private long remainingRounds;
+
+        private Timeout(final Runnable task, final long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancelled timeout stays in wheel till its bucket is processed, but task will not be executed.
+         *
+         * @return <code>true</code> if timeout was cancelled before expiration
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(INIT, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) return;
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Timeout task failed in " + name, t);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check all idle computers of {@link EC2FleetCloud} with <code>batchIdleScan</code> in one pass,
+ * instead of {@link EC2RetentionStrategy#check(EC2FleetNodeComputer)} for each computer.
+ * <p>
+ * Candidates are ranked, so when <code>minSize</code> or <code>minSpareSize</code> allows to terminate
+ * only part of them, best ones are terminated: deleted agents and agents without uses left first,
+ * after that oldest idle, agents with less executors first for same idle time. All candidates are
+ * scheduled by one {@link EC2FleetCloud#scheduleToTerminate(Map)} call in one short queue lock,
+ * retention strategy doesn't touch computers of such cloud except reconnect.
+ */
+@Extension
+@SuppressWarnings("unused")
+public class IdleScanner extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(IdleScanner.class.getName());
+
+    // mandatory terminations first
+    private static final List<EC2AgentTerminationReason> REASON_ORDER = Arrays.asList(
+            EC2AgentTerminationReason.AGENT_DELETED,
+            EC2AgentTerminationReason.MAX_TOTAL_USES_EXHAUSTED,
+            EC2AgentTerminationReason.EXCESS_CAPACITY,
+            EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+
+    private static final Comparator<Candidate> RANK = Comparator
+            .<Candidate>comparingInt(c -> REASON_ORDER.indexOf(c.reason))
+            .thenComparingLong(c -> c.idleStartMillis)
+            .thenComparingInt(c -> c.numExecutors);
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void doRun() {
+        final Jenkins jenkins = Jenkins.get();
+        for (final Cloud cloud : jenkins.clouds) {
+            if (!(cloud instanceof EC2FleetCloud) || !((EC2FleetCloud) cloud).isBatchIdleScan()) continue;
+            final EC2FleetCloud fleetCloud = (EC2FleetCloud) cloud;
+            try {
+                scan(fleetCloud, getComputers(jenkins, fleetCloud));
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Idle scan failed for cloud " + cloud.name, e);
+            }
+        }
+    }
+
+    /**
+     * @return computers of cloud, by {@link FleetNodeIndex} if ready
+     */
+    private static List<EC2FleetNodeComputer> getComputers(final Jenkins jenkins, final EC2FleetCloud cloud) {
+        final List<EC2FleetNodeComputer> computers = new ArrayList<>();
+        final FleetNodeIndex index = FleetNodeIndex.get();
+        if (index.isReady()) {
+            for (final EC2FleetNode node : index.getNodes(cloud.name)) {
+                final Computer computer = node.toComputer();
+                if (computer instanceof EC2FleetNodeComputer) computers.add((EC2FleetNodeComputer) computer);
+            }
+        } else {
+            for (final Computer computer : jenkins.getComputers()) {
+                if (computer instanceof EC2FleetNodeComputer && ((EC2FleetNodeComputer) computer).getCloud() == cloud) {
+                    computers.add((EC2FleetNodeComputer) computer);
+                }
+            }
+        }
+        return computers;
+    }
+
+    /**
+     * Schedule termination of idle computers of cloud.
+     *
+     * @return scheduled instance ids
+     */
+    static Set<String> scan(final EC2FleetCloud cloud, final Collection<EC2FleetNodeComputer> computers) {
+        final boolean excessCapacity = cloud.hasExcessCapacity();
+        final List<Candidate> candidates = new ArrayList<>();
+        for (final EC2FleetNodeComputer computer : computers) {
+            if (!computer.isIdle()) continue;
+            final Node node = computer.getNode();
+            if (node == null) continue;
+            final EC2AgentTerminationReason reason = EC2RetentionStrategy.getTerminationReason(
+                    cloud, computer, node, () -> excessCapacity);
+            if (reason == null) continue;
+            candidates.add(new Candidate(computer, node.getNodeName(), reason,
+                    computer.getIdleStartMilliseconds(), node.getNumExecutors()));
+        }
+        LOGGER.fine(String.format("Cloud %s scanned %s computers, %s termination candidates",
+                cloud.name, computers.size(), candidates.size()));
+        if (candidates.isEmpty()) return Collections.emptySet();
+        candidates.sort(RANK);
+
+        final AtomicReference<Set<String>> result = new AtomicReference<>();
+        // nobody should take task on candidate while it's scheduled
+        Queue.withLock(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, EC2AgentTerminationReason> toTerminate = new LinkedHashMap<>();
+                final List<Candidate> suspended = new ArrayList<>();
+                for (final Candidate candidate : candidates) {
+                    // could get task after scan
+                    if (!candidate.computer.isIdle()) continue;
+                    candidate.acceptingTasks = candidate.computer.isAcceptingTasks();
+                    candidate.computer.setAcceptingTasks(false);
+                    suspended.add(candidate);
+                    toTerminate.put(candidate.instanceId, candidate.reason);
+                }
+
+                final Set<String> scheduled = cloud.scheduleToTerminate(toTerminate);
+                for (final Candidate candidate : suspended) {
+                    if (scheduled.contains(candidate.instanceId)) {
+                        LOGGER.fine(String.format("Suspended node %s after scheduling instance for termination, reason: %s.",
+                                candidate.instanceId, candidate.reason));
+                    } else {
+                        candidate.computer.setAcceptingTasks(candidate.acceptingTasks);
+                    }
+                }
+                result.set(scheduled);
+            }
+        });
+        return result.get();
+    }
+
+    private static final class Candidate {
+
+        private final EC2FleetNodeComputer computer;
+        private final String instanceId;
+        private final EC2AgentTerminationReason reason;
+        private final long idleStartMillis;
+        private final int numExecutors;
+        private boolean acceptingTasks;
+
+        Candidate(final EC2FleetNodeComputer computer, final String instanceId, final EC2AgentTerminationReason reason,
+                  final long idleStartMillis, final int numExecutors) {
+            this.computer = computer;
+            this.instanceId = instanceId;
+            this.reason = reason;
+            this.idleStartMillis = idleStartMillis;
+            this.numExecutors = numExecutors;
+        }
+
+    }
+
+}
@@ -0,0 +1,363 @@
+package com.amazon.jenkins.ec2fleet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable set of EC2 instance ids. Instance id is <code>i-</code> followed by 8 or 17 hex digits,
+ * so instead of {@link String} in hash set each id is kept as two longs in one sorted array, which is
+ * about 16 bytes per id and no objects. Ids in other format (custom fleets, tests) are kept as sorted strings.
+ * <p>
+ * Set algebra ({@link #difference(Collection)}, {@link #union(Collection)}, {@link #intersection(Collection)})
+ * merges sorted arrays without hashing, strings are created only when set is iterated.
+ */
+@Immutable
+public final class InstanceIdSet extends AbstractSet<String> {
+
+    private static final String PREFIX = "i-";
+    // 16 low digits in one long, rest with length in other long, 5 bits for length
+    private static final int LOW_DIGITS = 16;
+    private static final int MAX_DIGITS = LOW_DIGITS + 13;
+    private static final int LENGTH_SHIFT = 56;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int DIFFERENCE = 0;
+    private static final int UNION = 1;
+    private static final int INTERSECTION = 2;
+
+    private static final InstanceIdSet EMPTY = new InstanceIdSet(new long[0], new String[0]);
+
+    public static InstanceIdSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param ids ids
+     * @return same object if <code>ids</code> is {@link InstanceIdSet} already, otherwise copy
+     */
+    public static InstanceIdSet copyOf(@Nonnull final Collection<String> ids) {
+        if (ids instanceof InstanceIdSet) return (InstanceIdSet) ids;
+        if (ids.isEmpty()) return EMPTY;
+        long[] encoded = new long[ids.size() * 2];
+        int count = 0;
+        final List<String> others = new ArrayList<>();
+        for (final String id : ids) {
+            final long high = encodeHigh(id);
+            if (high < 0) {
+                others.add(id);
+            } else {
+                encoded[count++] = high;
+                encoded[count++] = encodeLow(id);
+            }
+        }
+        if (count < encoded.length) encoded = Arrays.copyOf(encoded, count);
+        sort(encoded);
+        final String[] otherArray = others.toArray(new String[0]);
+        Arrays.sort(otherArray);
+        return new InstanceIdSet(distinct(encoded), distinct(otherArray));
+    }
+
+    // pairs of (length and high digits, low digits) sorted by high then unsigned low
+    private final long[] ids;
+    private final String[] others;
+
+    private InstanceIdSet(final long[] ids, final String[] others) {
+        this.ids = ids;
+        this.others = others;
+    }
+
+    @Override
+    public int size() {
+        return ids.length / 2 + others.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return ids.length == 0 && others.length == 0;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof String)) return false;
+        final String id = (String) o;
+        final long high = encodeHigh(id);
+        if (high < 0) return Arrays.binarySearch(others, id) >= 0;
+        return indexOf(ids, high, encodeLow(id)) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final int i = next++;
+                final int pairs = ids.length / 2;
+                return i < pairs ? decode(ids[i * 2], ids[i * 2 + 1]) : others[i - pairs];
+            }
+        };
+    }
+
+    /**
+     * @return ids of this set which are not in <code>other</code>
+     */
+    public InstanceIdSet difference(@Nonnull final Collection<String> other) {
+        if (isEmpty() || other.isEmpty()) return this;
+        return merge(copyOf(other), DIFFERENCE);
+    }
+
+    /**
+     * @return ids of this set and <code>other</code>
+     */
+    public InstanceIdSet union(@Nonnull final Collection<String> other) {
+        if (other.isEmpty()) return this;
+        if (isEmpty()) return copyOf(other);
+        return merge(copyOf(other), UNION);
+    }
+
+    /**
+     * @return ids of this set which are in <code>other</code> too
+     */
+    public InstanceIdSet intersection(@Nonnull final Collection<String> other) {
+        if (isEmpty() || other.isEmpty()) return EMPTY;
+        return merge(copyOf(other), INTERSECTION);
+    }
+
+    /**
+     * Order independent hash of content mixed with <code>salt</code>, without creation of strings.
+     */
+    long mixedHash(final long salt) {
+        long hash = size();
+        for (int i = 0; i < ids.length; i += 2) {
+            hash += mix(ids[i] * 31 + ids[i + 1], salt);
+        }
+        for (final String other : others) {
+            hash += mix(other.hashCode(), salt);
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) return true;
+        if (o instanceof InstanceIdSet) {
+            final InstanceIdSet other = (InstanceIdSet) o;
+            return Arrays.equals(ids, other.ids) && Arrays.equals(others, other.others);
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * Same as {@link String#hashCode()} sum as required by {@link Set#hashCode()}, without creation of strings.
+     */
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < ids.length; i += 2) {
+            int h = PREFIX.hashCode();
+            final int length = length(ids[i]);
+            for (int d = 0; d < length; d++) h = 31 * h + digit(ids[i], ids[i + 1], length, d);
+            hash += h;
+        }
+        for (final String other : others) hash += other.hashCode();
+        return hash;
+    }
+
+    private InstanceIdSet merge(final InstanceIdSet other, final int op) {
+        final long[] a = ids;
+        final long[] b = other.ids;
+        long[] mergedIds = new long[op == INTERSECTION ? Math.min(a.length, b.length) :
+                op == UNION ? a.length + b.length : a.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            final int c = i >= a.length ? 1 : j >= b.length ? -1 : compare(a[i], a[i + 1], b[j], b[j + 1]);
+            if (c < 0) {
+                if (op != INTERSECTION) {
+                    mergedIds[k++] = a[i];
+                    mergedIds[k++] = a[i + 1];
+                }
+                i += 2;
+            } else if (c > 0) {
+                if (op == UNION) {
+                    mergedIds[k++] = b[j];
+                    mergedIds[k++] = b[j + 1];
+                }
+                j += 2;
+            } else {
+                if (op != DIFFERENCE) {
+                    mergedIds[k++] = a[i];
+                    mergedIds[k++] = a[i + 1];
+                }
+                i += 2;
+                j += 2;
+            }
+        }
+        if (k < mergedIds.length) mergedIds = Arrays.copyOf(mergedIds, k);
+
+        final List<String> mergedOthers = new ArrayList<>();
+        int oi = 0, oj = 0;
+        while (oi < others.length || oj < other.others.length) {
+            final int c = oi >= others.length ? 1 : oj >= other.others.length ? -1 : others[oi].compareTo(other.others[oj]);
+            if (c < 0) {
+                if (op != INTERSECTION) mergedOthers.add(others[oi]);
+                oi++;
+            } else if (c > 0) {
+                if (op == UNION) mergedOthers.add(other.others[oj]);
+                oj++;
+            } else {
+                if (op != DIFFERENCE) mergedOthers.add(others[oi]);
+                oi++;
+                oj++;
+            }
+        }
+        return new InstanceIdSet(mergedIds, mergedOthers.toArray(new String[0]));
+    }
+
+    /**
+     * @return length and high digits or <code>-1</code> if id can't be encoded
+     */
+    private static long encodeHigh(final String id) {
+        final int length = id.length() - PREFIX.length();
+        if (length < 1 || length > MAX_DIGITS || !id.startsWith(PREFIX)) return -1;
+        long high = 0;
+        for (int i = PREFIX.length(); i < id.length(); i++) {
+            final int v = hexValue(id.charAt(i));
+            if (v < 0) return -1;
+            if (i < id.length() - LOW_DIGITS) high = (high << 4) | v;
+        }
+        return ((long) length << LENGTH_SHIFT) | high;
+    }
+
+    private static long encodeLow(final String id) {
+        long low = 0;
+        for (int i = Math.max(PREFIX.length(), id.length() - LOW_DIGITS); i < id.length(); i++) {
+            low = (low << 4) | hexValue(id.charAt(i));
+        }
+        return low;
+    }
+
+    private static String decode(final long high, final long low) {
+        final int length = length(high);
+        final char[] chars = new char[PREFIX.length() + length];
+        PREFIX.getChars(0, PREFIX.length(), chars, 0);
+        for (int d = 0; d < length; d++) chars[PREFIX.length() + d] = digit(high, low, length, d);
+        return new String(chars);
+    }
+
+    private static int length(final long high) {
+        return (int) (high >>> LENGTH_SHIFT);
+    }
+
+    /**
+     * @return hex digit <code>d</code> (from left) of id with <code>length</code> digits
+     */
+    private static char digit(final long high, final long low, final int length, final int d) {
+        final int fromRight = length - 1 - d;
+        if (fromRight < LOW_DIGITS) return HEX[(int) (low >>> (fromRight * 4)) & 0xF];
+        return HEX[(int) (high >>> ((fromRight - LOW_DIGITS) * 4)) & 0xF];
+    }
+
+    // ec2 uses lowercase, uppercase is kept as is in others
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    private static int compare(final long highA, final long lowA, final long highB, final long lowB) {
+        final int c = Long.compare(highA, highB);
+        return c != 0 ? c : Long.compareUnsigned(lowA, lowB);
+    }
+
+    /**
+     * @return pair index in array or negative if not found
+     */
+    private static int indexOf(final long[] pairs, final long high, final long low) {
+        int from = 0;
+        int to = pairs.length / 2 - 1;
+        while (from <= to) {
+            final int mid = (from + to) >>> 1;
+            final int c = compare(pairs[mid * 2], pairs[mid * 2 + 1], high, low);
+            if (c < 0) from = mid + 1;
+            else if (c > 0) to = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Bottom up merge sort of pairs.
+     */
+    private static void sort(final long[] pairs) {
+        final int n = pairs.length / 2;
+        if (n < 2) return;
+        long[] source = pairs;
+        long[] target = new long[pairs.length];
+        for (int width = 1; width < n; width *= 2) {
+            for (int from = 0; from < n; from += 2 * width) {
+                final int middle = Math.min(from + width, n);
+                final int to = Math.min(from + 2 * width, n);
+                int i = from, j = middle, k = from;
+                while (i < middle || j < to) {
+                    if (j >= to || (i < middle && compare(source[i * 2], source[i * 2 + 1], source[j * 2], source[j * 2 + 1]) <= 0)) {
+                        target[k * 2] = source[i * 2];
+                        target[k * 2 + 1] = source[i * 2 + 1];
+                        i++;
+                    } else {
+                        target[k * 2] = source[j * 2];
+                        target[k * 2 + 1] = source[j * 2 + 1];
+                        j++;
+                    }
+                    k++;
+                }
+            }
+            final long[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != pairs) System.arraycopy(source, 0, pairs, 0, pairs.length);
+    }
+
+    private static long[] distinct(final long[] sortedPairs) {
+        int k = 0;
+        for (int i = 0; i < sortedPairs.length; i += 2) {
+            if (k > 0 && sortedPairs[k - 2] == sortedPairs[i] && sortedPairs[k - 1] == sortedPairs[i + 1]) continue;
+            sortedPairs[k++] = sortedPairs[i];
+            sortedPairs[k++] = sortedPairs[i + 1];
+        }
+        return k == sortedPairs.length ? sortedPairs : Arrays.copyOf(sortedPairs, k);
+    }
+
+    private static String[] distinct(final String[] sorted) {
+        int k = 0;
+        for (final String s : sorted) {
+            if (k > 0 && sorted[k - 1].equals(s)) continue;
+            sorted[k++] = s;
+        }
+        return k == sorted.length ? sorted : Arrays.copyOf(sorted, k);
+    }
+
+    private static long mix(final long value, final long salt) {
+        long h = value * 0x9E3779B97F4A7C15L + salt;
+        h ^= h >>> 33;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return h;
+    }
+
+}
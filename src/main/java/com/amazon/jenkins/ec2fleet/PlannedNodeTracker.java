@@ -0,0 +1,242 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks planned nodes of one cloud from {@link EC2FleetCloud#provision(hudson.slaves.Cloud.CloudState, int)}
+ * till they are matched to instances and connected, or dropped.
+ * <p>
+ * Planned nodes are kept in request order, so arriving instance resolves the oldest request first and
+ * trim drops the newest. Each planned node has scale timeout on {@link HashedWheelTimer}, it is cancelled
+ * when fleet capacity was updated for it. If capacity was not updated in time planned node is completed
+ * with <code>null</code>, so Jenkins removes it from planned capacity. Add, match, confirm and timeout
+ * are O(1) per planned node.
+ *
+ * @see EC2FleetOnlineChecker
+ */
+@ThreadSafe
+class PlannedNodeTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(PlannedNodeTracker.class.getName());
+
+    /**
+     * Upper bounds in seconds of buckets for {@link #getAgeDistribution()}
+     */
+    private static final long[] AGE_BUCKETS_SEC = {30, 60, 5 * 60, 15 * 60, Long.MAX_VALUE};
+
+    private final String name;
+    private final HashedWheelTimer timer;
+    // not matched to instance yet, in order of request, linked map to remove in O(1) on timeout
+    private final LinkedHashMap<NodeProvisioner.PlannedNode, Entry> outstanding = new LinkedHashMap<>();
+    // waiting for capacity update, in order of request
+    private final Deque<Entry> unscaled = new ArrayDeque<>();
+
+    PlannedNodeTracker(final String name, final HashedWheelTimer timer) {
+        this.name = name;
+        this.timer = timer;
+    }
+
+    /**
+     * @param plannedNode        planned node with {@link CompletableFuture} as future
+     * @param scaleTimeoutMillis how long to wait for {@link #confirmScaled(int)}
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void add(final NodeProvisioner.PlannedNode plannedNode, final long scaleTimeoutMillis) {
+        final Entry entry = new Entry(plannedNode, (CompletableFuture<Node>) plannedNode.future);
+        entry.scaleDeadline = entry.createdAt + scaleTimeoutMillis;
+        // This protects us from leaving planned nodes stranded within Jenkins NodeProvisioner when the Fleet
+        // is updated or removed before it can scale. After scaling, EC2FleetOnlineChecker will complete the future
+        entry.scaleTimeout = timer.newTimeout(() -> scaleTimeout(entry), scaleTimeoutMillis, TimeUnit.MILLISECONDS);
+        outstanding.put(plannedNode, entry);
+        unscaled.add(entry);
+    }
+
+    private void scaleTimeout(final Entry entry) {
+        synchronized (this) {
+            if (outstanding.remove(entry.plannedNode) == null) return;
+        }
+        if (entry.future.isDone()) return;
+        LOGGER.log(Level.INFO, String.format("%s Scaling timeout reached, removing node from Jenkins's plannedCapacitySnapshot", name));
+        // with complete(null) Jenkins will remove future from plannedCapacity without making a fuss
+        entry.future.complete(null);
+    }
+
+    /**
+     * Cancel scale timeout for oldest planned nodes, as fleet capacity was updated for them.
+     *
+     * @param count number of planned nodes covered by capacity update
+     * @return <code>false</code> if nothing to confirm or less than <code>count</code> planned nodes were waiting
+     */
+    public synchronized boolean confirmScaled(final int count) {
+        if (count < 1) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final Entry entry = unscaled.poll();
+            if (entry == null) {
+                LOGGER.log(Level.FINE, String.format("%s Expected a planned node waiting for scale but no more are present", name));
+                return false;
+            }
+            entry.scaleTimeout.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Match arrived instance to the oldest not resolved planned node.
+     *
+     * @return future of planned node or <code>null</code> if no planned nodes, for example instance
+     * was added to fleet outside of plugin
+     */
+    @Nullable
+    public synchronized CompletableFuture<Node> poll() {
+        final Iterator<Entry> iterator = outstanding.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            // cancelled by Jenkins, not useful for instance
+            if (!entry.future.isDone()) return entry.future;
+        }
+        return null;
+    }
+
+    /**
+     * Cancel newest planned nodes till no more than <code>max</code> left.
+     *
+     * @return cancelled planned nodes
+     */
+    public List<NodeProvisioner.PlannedNode> trim(final int max) {
+        final List<Entry> toCancel = new ArrayList<>();
+        synchronized (this) {
+            if (outstanding.size() <= max) return Collections.emptyList();
+            final List<Entry> entries = new ArrayList<>(outstanding.values());
+            for (int i = entries.size() - 1; i >= Math.max(0, max); i--) {
+                final Entry entry = entries.get(i);
+                outstanding.remove(entry.plannedNode);
+                toCancel.add(entry);
+            }
+        }
+        final List<NodeProvisioner.PlannedNode> cancelled = new ArrayList<>();
+        for (final Entry entry : toCancel) {
+            entry.scaleTimeout.cancel();
+            // cancel to let jenkins know that the node is not valid anymore
+            entry.future.cancel(true);
+            cancelled.add(entry.plannedNode);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Move planned nodes of other tracker (cloud replaced by reconfiguration) to this one. They are
+     * older than own planned nodes, so go first. Pending scale timeouts are moved with remaining time.
+     */
+    public void transferFrom(final PlannedNodeTracker other) {
+        if (other == this) return;
+        final List<Entry> movedOutstanding;
+        final List<Entry> movedUnscaled;
+        synchronized (other) {
+            movedOutstanding = new ArrayList<>(other.outstanding.values());
+            movedUnscaled = new ArrayList<>(other.unscaled);
+            other.outstanding.clear();
+            other.unscaled.clear();
+        }
+
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            final LinkedHashMap<NodeProvisioner.PlannedNode, Entry> merged = new LinkedHashMap<>();
+            for (final Entry entry : movedOutstanding) merged.put(entry.plannedNode, entry);
+            merged.putAll(outstanding);
+            outstanding.clear();
+            outstanding.putAll(merged);
+
+            for (int i = movedUnscaled.size() - 1; i >= 0; i--) unscaled.addFirst(movedUnscaled.get(i));
+
+            for (final Entry entry : movedOutstanding) {
+                if (entry.scaleTimeout.isCancelled() || entry.scaleTimeout.isExpired()) continue;
+                // if old timeout fires anyway it will not find entry in other tracker
+                entry.scaleTimeout.cancel();
+                entry.scaleTimeout = timer.newTimeout(() -> scaleTimeout(entry),
+                        Math.max(0, entry.scaleDeadline - now), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (!movedOutstanding.isEmpty()) {
+            LOGGER.log(Level.INFO, String.format("%s Took %s planned nodes of replaced cloud %s",
+                    name, movedOutstanding.size(), other.name));
+        }
+    }
+
+    /**
+     * @return number of planned nodes not matched to instance yet
+     */
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return number of planned nodes waiting for capacity update
+     */
+    public synchronized int getUnscaledCount() {
+        return unscaled.size();
+    }
+
+    /**
+     * @return planned nodes not matched to instance yet, oldest first
+     */
+    public synchronized List<NodeProvisioner.PlannedNode> getPlannedNodes() {
+        return new ArrayList<>(outstanding.keySet());
+    }
+
+    /**
+     * @return number of outstanding planned nodes by age, key is bucket upper bound in seconds
+     * ({@link Long#MAX_VALUE} for last bucket), all buckets are present
+     */
+    public synchronized SortedMap<Long, Integer> getAgeDistribution() {
+        final SortedMap<Long, Integer> distribution = new TreeMap<>();
+        for (final long bound : AGE_BUCKETS_SEC) distribution.put(bound, 0);
+        final long now = System.currentTimeMillis();
+        for (final Entry entry : outstanding.values()) {
+            final long ageSec = TimeUnit.MILLISECONDS.toSeconds(now - entry.createdAt);
+            for (final long bound : AGE_BUCKETS_SEC) {
+                if (ageSec < bound) {
+                    distribution.put(bound, distribution.get(bound) + 1);
+                    break;
+                }
+            }
+        }
+        return distribution;
+    }
+
+    private static class Entry {
+
+        private final NodeProvisioner.PlannedNode plannedNode;
+        private final CompletableFuture<Node> future;
+        private final long createdAt = System.currentTimeMillis();
+        private long scaleDeadline;
+        private HashedWheelTimer.Timeout scaleTimeout;
+
+        private Entry(final NodeProvisioner.PlannedNode plannedNode, final CompletableFuture<Node> future) {
+            this.plannedNode = plannedNode;
+            this.future = future;
+        }
+
+    }
+
+}
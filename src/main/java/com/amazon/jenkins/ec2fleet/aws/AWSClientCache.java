@@ -0,0 +1,261 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of AWS SDK clients. Creating client is expensive: credentials lookup,
+ * proxy resolution, new HTTP connection pool and TLS handshake on first call. SDK clients are
+ * thread safe, so we share one instance per credentials, region, endpoint and proxy settings
+ * and reuse keep-alive connections between update cycles of all clouds.
+ * <p>
+ * Clients are evicted by {@link InvalidationListener} when Jenkins proxy configuration or credentials
+ * they were created with changed. Evicted client could be still used by update in progress or by
+ * termination and describe executors, so it's shutdown to release connection pool only after delay.
+ * <p>
+ * Each new client gets {@link AWSRateLimiter} handler.
+ */
+@ThreadSafe
+public final class AWSClientCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AWSClientCache.class.getName());
+
+    private static final long SHUTDOWN_DELAY_MILLIS = Long.getLong(
+            AWSClientCache.class.getName() + ".shutdownDelayMillis", TimeUnit.MINUTES.toMillis(5));
+
+    private static final ScheduledExecutorService SHUTDOWN_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), AWSClientCache.class.getSimpleName() + ".shutdown"));
+
+    private static final AWSClientCache INSTANCE = new AWSClientCache(SHUTDOWN_DELAY_MILLIS);
+
+    public static AWSClientCache get() {
+        return INSTANCE;
+    }
+
+    private final long shutdownDelayMillis;
+    private final ConcurrentMap<Key, Entry> clients = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    AWSClientCache(final long shutdownDelayMillis) {
+        this.shutdownDelayMillis = shutdownDelayMillis;
+    }
+
+    /**
+     * Return cached client or create new one with provided factory if no client for that combination
+     * of parameters yet.
+     *
+     * @param type             client type, part of key as same parameters used for different services
+     * @param awsCredentialsId credentials id, could be <code>null</code> for instance profile
+     * @param regionName       region
+     * @param endpoint         endpoint
+     * @param factory          create new client, called at most once per key until invalidation
+     * @param <T>              client type
+     * @return client
+     */
+    @SuppressWarnings("deprecation")
+    public <T extends AmazonWebServiceClient> T getOrCreate(
+            final Class<T> type, @Nullable final String awsCredentialsId, @Nullable final String regionName,
+            @Nullable final String endpoint, final Supplier<T> factory) {
+        final Key key = new Key(type, awsCredentialsId, regionName, endpoint, getProxyFingerprint());
+        final Entry cached = clients.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return type.cast(cached.client);
+        }
+
+        final Entry created = clients.computeIfAbsent(key, k -> {
+            misses.incrementAndGet();
+            final T client = factory.get();
+            client.addRequestHandler(AWSRateLimiter.get().createHandler(k.getRateLimiterScope()));
+            return new Entry(client, lookupCredentials(awsCredentialsId));
+        });
+        return type.cast(created.client);
+    }
+
+    /**
+     * Evict clients created with proxy settings or credentials which are not current any more.
+     */
+    public void invalidateChanged() {
+        final String proxy = getProxyFingerprint();
+        final List<AmazonWebServiceClient> evicted = new ArrayList<>();
+        for (final Map.Entry<Key, Entry> entry : clients.entrySet()) {
+            final Key key = entry.getKey();
+            if (!key.proxy.equals(proxy) || entry.getValue().credentials != lookupCredentials(key.awsCredentialsId)) {
+                if (clients.remove(key, entry.getValue())) evicted.add(entry.getValue().client);
+            }
+        }
+        shutdownLater(evicted);
+    }
+
+    /**
+     * Evict all cached clients.
+     */
+    public void invalidateAll() {
+        final List<AmazonWebServiceClient> evicted = new ArrayList<>();
+        for (final Key key : clients.keySet()) {
+            final Entry entry = clients.remove(key);
+            if (entry != null) evicted.add(entry.client);
+        }
+        shutdownLater(evicted);
+    }
+
+    /**
+     * Calls in-flight on evicted clients are not interrupted, client is shutdown after delay
+     * long enough for them to finish. Next calls get new client from cache.
+     */
+    private void shutdownLater(final List<AmazonWebServiceClient> evicted) {
+        if (evicted.isEmpty()) return;
+        LOGGER.fine("Evicted " + evicted.size() + " AWS clients, shutdown in " + shutdownDelayMillis + " ms");
+        SHUTDOWN_EXECUTOR.schedule(() -> {
+            for (final AmazonWebServiceClient client : evicted) {
+                try {
+                    client.shutdown();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Cannot shutdown evicted AWS client", e);
+                }
+            }
+        }, shutdownDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Credentials are compared by identity, credentials store keeps same object till it's changed.
+     * Instance profile (<code>null</code> id) or lookup without Jenkins always give <code>null</code>.
+     */
+    @Nullable
+    private static Object lookupCredentials(@Nullable final String awsCredentialsId) {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (awsCredentialsId == null || jenkins == null) return null;
+        try {
+            return AWSCredentialsHelper.getCredentials(awsCredentialsId, jenkins);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Cannot lookup AWS credentials '" + awsCredentialsId + "'", e);
+            return null;
+        }
+    }
+
+    private static final class Entry {
+
+        private final AmazonWebServiceClient client;
+        @Nullable
+        private final Object credentials;
+
+        private Entry(AmazonWebServiceClient client, @Nullable Object credentials) {
+            this.client = client;
+            this.credentials = credentials;
+        }
+
+    }
+
+    /**
+     * Proxy settings are part of key, so even if we missed save event client with stale proxy
+     * will not be used.
+     */
+    private static String getProxyFingerprint() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        final ProxyConfiguration proxy = jenkins == null ? null : jenkins.proxy;
+        if (proxy == null) return "";
+        return proxy.name + ":" + proxy.port + ":" + proxy.getUserName() + ":" + proxy.noProxyHost
+                + ":" + (proxy.getSecretPassword() == null ? "" : proxy.getSecretPassword().getEncryptedValue());
+    }
+
+    private static final class Key {
+
+        private final Class<?> type;
+        private final String awsCredentialsId;
+        private final String regionName;
+        private final String endpoint;
+        private final String proxy;
+
+        private Key(Class<?> type, String awsCredentialsId, String regionName, String endpoint, String proxy) {
+            this.type = type;
+            this.awsCredentialsId = awsCredentialsId;
+            this.regionName = regionName;
+            this.endpoint = endpoint;
+            this.proxy = proxy;
+        }
+
+        /**
+         * Proxy is not part of scope, as AWS limits don't depend on it.
+         */
+        private String getRateLimiterScope() {
+            return type.getSimpleName() + "/" + awsCredentialsId + "/" + regionName + "/" + endpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return type.equals(key.type)
+                    && Objects.equals(awsCredentialsId, key.awsCredentialsId)
+                    && Objects.equals(regionName, key.regionName)
+                    && Objects.equals(endpoint, key.endpoint)
+                    && Objects.equals(proxy, key.proxy);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, awsCredentialsId, regionName, endpoint, proxy);
+        }
+
+    }
+
+    /**
+     * Evict cached clients when proxy or credentials changed. Credentials plugin stores
+     * are {@link Saveable} from <code>com.cloudbees.plugins.credentials</code> package.
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class InvalidationListener extends SaveableListener {
+
+        @Override
+        public void onChange(final Saveable o, final XmlFile file) {
+            if (o instanceof ProxyConfiguration || isCredentialsStore(o)) {
+                get().invalidateChanged();
+            }
+        }
+
+        private static boolean isCredentialsStore(final Saveable o) {
+            return o != null && o.getClass().getName().startsWith("com.cloudbees.plugins.credentials.");
+        }
+
+    }
+
+}
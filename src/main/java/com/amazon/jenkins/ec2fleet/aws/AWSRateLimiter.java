@@ -0,0 +1,246 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+import com.amazonaws.services.ec2.model.ModifyFleetRequest;
+import com.amazonaws.services.ec2.model.ModifySpotFleetRequestRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Client side rate limiter shared by all clouds, one token bucket per AWS service, credentials,
+ * region and endpoint. Without it clouds which hit throttling together retry in lockstep
+ * and block provisioning.
+ * <p>
+ * Rate is adapted AIMD-style: each successful attempt increases rate a bit, each throttling
+ * response (like <code>RequestLimitExceeded</code>) cuts rate by half. When tokens are
+ * not available waiters with higher {@link Priority} go first, so modify capacity and
+ * terminate are not stuck behind UI or permission checks.
+ * <p>
+ * Limiter is attached to clients by {@link AWSClientCache} as {@link RequestHandler2}, so
+ * it applies to each attempt including SDK retries.
+ */
+@ThreadSafe
+public final class AWSRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(AWSRateLimiter.class.getName());
+
+    private static final double MAX_RATE = Double.parseDouble(
+            System.getProperty(AWSRateLimiter.class.getName() + ".maxRate", "20"));
+    private static final double MIN_RATE = 0.5;
+    private static final double RATE_INCREASE = 0.1;
+    private static final double RATE_DECREASE_FACTOR = 0.5;
+    /**
+     * Request will not wait for token longer than that, better to get throttling from AWS
+     * than hang update cycle.
+     */
+    private static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final AWSRateLimiter INSTANCE = new AWSRateLimiter();
+
+    private static final ThreadLocal<Priority> PRIORITY = new ThreadLocal<>();
+
+    public static AWSRateLimiter get() {
+        return INSTANCE;
+    }
+
+    public enum Priority {
+        /**
+         * Capacity modification and termination, they affect provisioning directly
+         */
+        CRITICAL,
+        NORMAL,
+        /**
+         * UI, permission checks, label stack scans
+         */
+        BACKGROUND
+    }
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private AWSRateLimiter() {
+    }
+
+    /**
+     * Execute AWS calls done by current thread inside <code>call</code> with {@link Priority#BACKGROUND}.
+     */
+    public static <T> T background(final Supplier<T> call) {
+        final Priority previous = PRIORITY.get();
+        PRIORITY.set(Priority.BACKGROUND);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) PRIORITY.remove();
+            else PRIORITY.set(previous);
+        }
+    }
+
+    static Priority getPriority(final AmazonWebServiceRequest request) {
+        if (request instanceof ModifySpotFleetRequestRequest
+                || request instanceof ModifyFleetRequest
+                || request instanceof UpdateAutoScalingGroupRequest
+                || request instanceof TerminateInstancesRequest) {
+            return Priority.CRITICAL;
+        }
+        final Priority priority = PRIORITY.get();
+        return priority == null ? Priority.NORMAL : priority;
+    }
+
+    public Bucket getBucket(final String scope) {
+        return buckets.computeIfAbsent(scope, s -> new Bucket(s, MAX_RATE, MIN_RATE));
+    }
+
+    /**
+     * @return all buckets by scope, for metrics
+     */
+    public Map<String, Bucket> getBuckets() {
+        return Collections.unmodifiableMap(buckets);
+    }
+
+    public RequestHandler2 createHandler(final String scope) {
+        return new Handler(getBucket(scope));
+    }
+
+    private static class Handler extends RequestHandler2 {
+
+        private final Bucket bucket;
+
+        private Handler(final Bucket bucket) {
+            this.bucket = bucket;
+        }
+
+        @Override
+        public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+            try {
+                bucket.acquire(getPriority(context.getRequest().getOriginalRequest()));
+            } catch (InterruptedException e) {
+                // let SDK to make call, it will handle interruption
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void afterAttempt(final HandlerAfterAttemptContext context) {
+            final Exception exception = context.getException();
+            if (exception == null) {
+                bucket.onSuccess();
+            } else if (exception instanceof AmazonServiceException
+                    && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+                bucket.onThrottled();
+            }
+        }
+
+    }
+
+    @ThreadSafe
+    public static final class Bucket {
+
+        private final String scope;
+        private final double maxRate;
+        private final double minRate;
+        private final int[] waiting = new int[Priority.values().length];
+        private double rate;
+        private double tokens;
+        private long refilledAtNanos;
+        private long throttled;
+
+        Bucket(final String scope, final double maxRate, final double minRate) {
+            this.scope = scope;
+            this.maxRate = maxRate;
+            this.minRate = minRate;
+            this.rate = maxRate;
+            this.tokens = maxRate;
+            this.refilledAtNanos = System.nanoTime();
+        }
+
+        synchronized void acquire(final Priority priority) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+            waiting[priority.ordinal()]++;
+            try {
+                while (true) {
+                    refill();
+                    if (tokens >= 1 && !hasHigherPriorityWaiters(priority)) {
+                        tokens -= 1;
+                        return;
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        LOGGER.fine(String.format("No token for %s in %d ms, proceed", scope, MAX_WAIT_MILLIS));
+                        return;
+                    }
+                    final long toNextToken = (long) Math.ceil(Math.max(0, 1 - tokens) / rate * 1000);
+                    wait(Math.max(1, Math.min(toNextToken, deadline - now)));
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+                // lower priority waiters could proceed now
+                notifyAll();
+            }
+        }
+
+        synchronized void onSuccess() {
+            rate = Math.min(maxRate, rate + RATE_INCREASE);
+        }
+
+        synchronized void onThrottled() {
+            throttled++;
+            final double oldRate = rate;
+            rate = Math.max(minRate, rate * RATE_DECREASE_FACTOR);
+            // drop burst, so waiters will not hit throttling again immediately
+            tokens = Math.min(tokens, 0);
+            LOGGER.fine(String.format("Throttled %s, rate %.2f -> %.2f per second", scope, oldRate, rate));
+        }
+
+        private boolean hasHigherPriorityWaiters(final Priority priority) {
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (waiting[i] > 0) return true;
+            }
+            return false;
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            // burst is limited to one second of current rate
+            tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAtNanos) / 1e9 * rate);
+            refilledAtNanos = now;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        /**
+         * @return current rate, requests per second
+         */
+        public synchronized double getRate() {
+            return rate;
+        }
+
+        public synchronized int getQueueDepth(final Priority priority) {
+            return waiting[priority.ordinal()];
+        }
+
+        /**
+         * @return number of throttling responses
+         */
+        public synchronized long getThrottled() {
+            return throttled;
+        }
+
+    }
+
+}
@@ -41,6 +41,11 @@ public class AwsPermissionChecker {
     };
 
     public List<String> getMissingPermissions(final String fleet) {
+        // UI only, should not compete with update cycles for API rate
+        return AWSRateLimiter.background(() -> getMissingPermissionsInternal(fleet));
+    }
+
+    private List<String> getMissingPermissionsInternal(final String fleet) {
         final AmazonEC2 ec2Client = Registry.getEc2Api().connect(awsCrendentialsId, regionName, endpoint);
         final List<String> missingPermissions = new ArrayList<>(getMissingCommonPermissions(ec2Client));
         if(StringUtils.isBlank(fleet)) { // Since we don't know the fleet type, show all permissions
@@ -86,7 +91,7 @@ public class AwsPermissionChecker {
     }
 
     private List<String> getMissingPermissionsForASG() {
-        final AmazonAutoScalingClient asgClient = new AutoScalingGroupFleet().createClient(awsCrendentialsId, regionName, endpoint);
+        final AmazonAutoScalingClient asgClient = new AutoScalingGroupFleet().getClient(awsCrendentialsId, regionName, endpoint);
         List<String> missingAsgPermissions = new ArrayList<>();
         if(!hasDescribeAutoScalingGroupsPermission(asgClient)) {
             missingAsgPermissions.add(FleetAPI.DescribeAutoScalingGroups.name());
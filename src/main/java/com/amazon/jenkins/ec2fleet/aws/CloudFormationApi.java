@@ -28,9 +28,14 @@ import java.util.Map;
 public class CloudFormationApi {
 
     public AmazonCloudFormation connect(final String awsCredentialsId, final String regionName, final String endpoint) {
+        return AWSClientCache.get().getOrCreate(AmazonCloudFormationClient.class, awsCredentialsId, regionName, endpoint,
+                () -> createClient(awsCredentialsId, regionName, endpoint));
+    }
+
+    public AmazonCloudFormationClient createClient(final String awsCredentialsId, final String regionName, final String endpoint) {
         final ClientConfiguration clientConfiguration = AWSUtils.getClientConfiguration(endpoint);
         final AmazonWebServicesCredentials credentials = AWSCredentialsHelper.getCredentials(awsCredentialsId, Jenkins.get());
-        final AmazonCloudFormation client =
+        final AmazonCloudFormationClient client =
                 credentials != null ?
                         new AmazonCloudFormationClient(credentials, clientConfiguration) :
                         new AmazonCloudFormationClient(clientConfiguration);
@@ -112,6 +117,12 @@ public class CloudFormationApi {
 
     public Map<String, StackInfo> describe(
             final AmazonCloudFormation client, final String fleetName) {
+        // scan of all stacks, should not compete with capacity changes for API rate
+        return AWSRateLimiter.background(() -> describeStacks(client, fleetName));
+    }
+
+    private static Map<String, StackInfo> describeStacks(
+            final AmazonCloudFormation client, final String fleetName) {
         Map<String, StackInfo> r = new HashMap<>();
 
         String nextToken = null;
@@ -0,0 +1,210 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce describe instances calls of multiple clouds which use same AWS client. Since clients are
+ * shared by {@link AWSClientCache} same client means same credentials, region and endpoint.
+ * <p>
+ * At most one describe call is in flight per client. Caller whose instance ids are all in the call
+ * in flight shares its result. Other callers arrived while call is in flight join next batch, first
+ * of them became leader and describes union of their instance ids as soon as call in flight is done.
+ * Caller which finds nothing in flight describes its instances right away, no one waits for
+ * others to join.
+ * <p>
+ * Result is not reused after call is done, unless <code>maxAgeMillis</code> is set, in that case
+ * clouds due shortly after will reuse it if all their instance ids were described.
+ * <p>
+ * Instances which are not described (terminated, not found) are absent in result, same as
+ * {@link EC2Api#describeInstances(AmazonEC2, Set)}.
+ */
+@ThreadSafe
+public class DescribeInstancesCoalescer {
+
+    private static final long MAX_AGE_MILLIS = Long.getLong(
+            DescribeInstancesCoalescer.class.getName() + ".maxAgeMillis", 0);
+
+    private static final DescribeInstancesCoalescer INSTANCE = new DescribeInstancesCoalescer(MAX_AGE_MILLIS);
+
+    public static DescribeInstancesCoalescer get() {
+        return INSTANCE;
+    }
+
+    private final long maxAgeMillis;
+    // weak as client could be evicted from cache
+    private final Map<AmazonEC2, Scope> scopes = new WeakHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong describeCalls = new AtomicLong();
+
+    DescribeInstancesCoalescer(final long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param ec2Api      api used to make actual call
+     * @param ec2         client
+     * @param instanceIds instance ids to describe
+     * @param concurrency see {@link EC2Api#describeInstances(AmazonEC2, Set, int, int)}
+     * @return described not terminated instances from <code>instanceIds</code>
+     */
+    public Map<String, FleetInstance> describeInstances(
+            final EC2Api ec2Api, final AmazonEC2 ec2, final Set<String> instanceIds, final int concurrency) {
+        if (instanceIds.isEmpty()) return new HashMap<>();
+
+        final Scope scope = getScope(ec2);
+        final Batch batch;
+        final boolean leader;
+        synchronized (scope) {
+            requests.incrementAndGet();
+            final Snapshot last = scope.last;
+            if (last != null && System.currentTimeMillis() - last.fetchedAt <= maxAgeMillis
+                    && last.covered.containsAll(instanceIds)) {
+                return last.filter(instanceIds);
+            }
+
+            if (scope.inFlight != null && scope.inFlight.instanceIds.containsAll(instanceIds)) {
+                leader = false;
+                batch = scope.inFlight;
+            } else {
+                leader = scope.next == null;
+                if (leader) scope.next = new Batch(scope.inFlight);
+                batch = scope.next;
+                batch.instanceIds.addAll(instanceIds);
+            }
+        }
+
+        if (leader) {
+            lead(ec2Api, ec2, scope, batch, concurrency);
+        }
+
+        try {
+            return batch.future.get().filter(instanceIds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for describe instances", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void lead(final EC2Api ec2Api, final AmazonEC2 ec2, final Scope scope, final Batch batch, final int concurrency) {
+        if (batch.previous != null) {
+            try {
+                // collect callers till call in flight is done, its result or failure is not ours
+                batch.previous.future.get();
+            } catch (InterruptedException e) {
+                // proceed without waiting
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // handled by callers of previous batch
+            }
+        }
+
+        final Set<String> covered;
+        synchronized (scope) {
+            scope.next = null;
+            scope.inFlight = batch;
+            batch.previous = null;
+            covered = Collections.unmodifiableSet(new HashSet<>(batch.instanceIds));
+        }
+
+        try {
+            describeCalls.incrementAndGet();
+            final Map<String, FleetInstance> described =
+                    ec2Api.describeInstances(ec2, covered, EC2Api.BATCH_SIZE, concurrency);
+            final Snapshot snapshot = new Snapshot(covered, described, System.currentTimeMillis());
+            synchronized (scope) {
+                if (maxAgeMillis > 0) scope.last = snapshot;
+                if (scope.inFlight == batch) scope.inFlight = null;
+            }
+            batch.future.complete(snapshot);
+        } catch (RuntimeException | Error e) {
+            synchronized (scope) {
+                if (scope.inFlight == batch) scope.inFlight = null;
+            }
+            // other callers are waiting on future, so complete it in any case
+            batch.future.completeExceptionally(e);
+        }
+    }
+
+    private Scope getScope(final AmazonEC2 ec2) {
+        synchronized (scopes) {
+            Scope scope = scopes.get(ec2);
+            if (scope == null) {
+                scope = new Scope();
+                scopes.put(ec2, scope);
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * @return number of describe requests made by clouds
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of actual calls to {@link EC2Api}
+     */
+    public long getDescribeCalls() {
+        return describeCalls.get();
+    }
+
+    private static class Scope {
+        private Batch inFlight;
+        private Batch next;
+        private Snapshot last;
+    }
+
+    private static class Batch {
+        /**
+         * Batch in flight when this one was opened, this one is described after it. Cleared by
+         * leader, so batches don't keep chain of all previous ones
+         */
+        private Batch previous;
+        private final Set<String> instanceIds = new HashSet<>();
+        private final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+
+        private Batch(final Batch previous) {
+            this.previous = previous;
+        }
+    }
+
+    private static class Snapshot {
+
+        private final Set<String> covered;
+        private final Map<String, FleetInstance> described;
+        private final long fetchedAt;
+
+        private Snapshot(Set<String> covered, Map<String, FleetInstance> described, long fetchedAt) {
+            this.covered = covered;
+            this.described = described;
+            this.fetchedAt = fetchedAt;
+        }
+
+        private Map<String, FleetInstance> filter(final Set<String> instanceIds) {
+            final Map<String, FleetInstance> result = new HashMap<>();
+            for (final String instanceId : instanceIds) {
+                final FleetInstance instance = described.get(instanceId);
+                if (instance != null) result.put(instanceId, instance);
+            }
+            return result;
+        }
+
+    }
+
+}
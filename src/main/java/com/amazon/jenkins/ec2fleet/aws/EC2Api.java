@@ -9,6 +9,7 @@ import com.amazonaws.services.ec2.model.AmazonEC2Exception;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.Reservation;
@@ -16,6 +17,8 @@ import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
 import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 
@@ -28,7 +31,16 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -45,7 +57,24 @@ public class EC2Api {
             InstanceStateName.ShuttingDown.toString()
     )));
 
-    private static final int BATCH_SIZE = 900;
+    public static final int BATCH_SIZE = 900;
+    // max allowed by describe with filters
+    private static final int TAG_PAGE_SIZE = 1000;
+
+    /**
+     * Max number of threads shared by all concurrent describe calls of all clouds
+     */
+    private static final int DESCRIBE_POOL_SIZE = Integer.getInteger(EC2Api.class.getName() + ".describePoolSize", 8);
+
+    /**
+     * Shared by all concurrent describe calls, amount of threads used by one call is limited
+     * by concurrency parameter of {@link #describeInstances(AmazonEC2, Set, int, int)}. When all threads
+     * are busy worker runs in caller thread, so call is still done, only with less parallelism.
+     */
+    private static final ExecutorService DESCRIBE_EXECUTOR = new ThreadPoolExecutor(
+            0, DESCRIBE_POOL_SIZE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), EC2Api.class.getSimpleName() + ".describeInstances"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
 
     private static final String NOT_FOUND_ERROR_CODE = "InvalidInstanceID.NotFound";
     private static final Pattern INSTANCE_ID_PATTERN = Pattern.compile("(i-[0-9a-zA-Z]+)");
@@ -61,12 +90,12 @@ public class EC2Api {
         return instanceIds;
     }
 
-    public Map<String, Instance> describeInstances(final AmazonEC2 ec2, final Set<String> instanceIds) {
+    public Map<String, FleetInstance> describeInstances(final AmazonEC2 ec2, final Set<String> instanceIds) {
         return describeInstances(ec2, instanceIds, BATCH_SIZE);
     }
 
-    public Map<String, Instance> describeInstances(final AmazonEC2 ec2, final Set<String> instanceIds, final int batchSize) {
-        final Map<String, Instance> described = new HashMap<>();
+    public Map<String, FleetInstance> describeInstances(final AmazonEC2 ec2, final Set<String> instanceIds, final int batchSize) {
+        final Map<String, FleetInstance> described = new HashMap<>();
         // don't do actual call if no data
         if (instanceIds.isEmpty()) return described;
 
@@ -81,8 +110,109 @@ public class EC2Api {
         return described;
     }
 
+    /**
+     * Same as {@link #describeInstances(AmazonEC2, Set, int)} however batches are described in parallel,
+     * not more than <code>concurrency</code> in same time. Not found instances are retried only in
+     * batch where they were requested.
+     *
+     * @param ec2         ec2 client
+     * @param instanceIds set of instance ids
+     * @param batchSize   max number of ids per one request
+     * @param concurrency max number of requests in parallel, if less or equal 1 same as sequential version
+     * @return described not terminated instances
+     */
+    public Map<String, FleetInstance> describeInstances(
+            final AmazonEC2 ec2, final Set<String> instanceIds, final int batchSize, final int concurrency) {
+        if (concurrency <= 1 || instanceIds.size() <= batchSize) {
+            return describeInstances(ec2, instanceIds, batchSize);
+        }
+
+        final List<String> instanceIdsList = new ArrayList<>(instanceIds);
+        final Queue<List<String>> batches = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < instanceIdsList.size(); i += batchSize) {
+            batches.add(instanceIdsList.subList(i, Math.min(i + batchSize, instanceIdsList.size())));
+        }
+
+        final Map<String, FleetInstance> described = new ConcurrentHashMap<>();
+        final Runnable worker = () -> {
+            List<String> batch;
+            while ((batch = batches.poll()) != null) {
+                describeInstancesBatch(ec2, described, batch);
+            }
+        };
+
+        // caller thread is one of workers
+        final int workers = Math.min(concurrency, batches.size());
+        final List<Future<?>> futures = new ArrayList<>(workers - 1);
+        for (int i = 0; i < workers - 1; i++) {
+            futures.add(DESCRIBE_EXECUTOR.submit(worker));
+        }
+
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+            // stop other workers from picking up new batches
+            batches.clear();
+        }
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                // result of not finished workers is unknown, never return it as complete
+                batches.clear();
+                for (final Future<?> other : futures) other.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for describe instances", e);
+            } catch (ExecutionException e) {
+                batches.clear();
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) throw failure;
+        return described;
+    }
+
+    /**
+     * Describe pending and running instances with tag in one paginated call, so membership and details
+     * are fetched together instead of list of fleet instances and {@link #describeInstances(AmazonEC2, Set)}.
+     *
+     * @param ec2      ec2 client
+     * @param tagKey   tag key, for example <code>aws:ec2spot:fleet-request-id</code>
+     * @param tagValue tag value
+     * @return described not terminated instances
+     */
+    public Map<String, FleetInstance> describeInstancesByTag(
+            final AmazonEC2 ec2, final String tagKey, final String tagValue) {
+        final Map<String, FleetInstance> described = new HashMap<>();
+        final DescribeInstancesRequest request = new DescribeInstancesRequest()
+                .withFilters(
+                        new Filter("tag:" + tagKey, Collections.singletonList(tagValue)),
+                        new Filter("instance-state-name", Arrays.asList(
+                                InstanceStateName.Pending.toString(), InstanceStateName.Running.toString())))
+                .withMaxResults(TAG_PAGE_SIZE);
+
+        DescribeInstancesResult result;
+        do {
+            result = ec2.describeInstances(request);
+            request.setNextToken(result.getNextToken());
+
+            for (final Reservation r : result.getReservations()) {
+                for (final Instance instance : r.getInstances()) {
+                    described.put(instance.getInstanceId(), FleetInstance.from(instance));
+                }
+            }
+        } while (result.getNextToken() != null);
+        return described;
+    }
+
     private static void describeInstancesBatch(
-            final AmazonEC2 ec2, final Map<String, Instance> described, final List<String> batch) {
+            final AmazonEC2 ec2, final Map<String, FleetInstance> described, final List<String> batch) {
         // we are going to modify list, so copy
         final List<String> copy = new ArrayList<>(batch);
 
@@ -104,7 +234,7 @@ public class EC2Api {
                         for (final Instance instance : r.getInstances()) {
                             // if instance not in terminated state, add it to described
                             if (!TERMINATED_STATES.contains(instance.getState().getName())) {
-                                described.put(instance.getInstanceId(), instance);
+                                described.put(instance.getInstanceId(), FleetInstance.from(instance));
                             }
                         }
                     }
@@ -172,7 +302,19 @@ public class EC2Api {
         ec2.createTags(request);
     }
 
+    /**
+     * Return shared client for provided parameters, see {@link AWSClientCache}.
+     */
     public AmazonEC2 connect(final String awsCredentialsId, final String regionName, final String endpoint) {
+        return AWSClientCache.get().getOrCreate(AmazonEC2Client.class, awsCredentialsId, regionName, endpoint,
+                () -> createClient(awsCredentialsId, regionName, endpoint));
+    }
+
+    /**
+     * Create new client, in most of cases you need {@link #connect(String, String, String)}
+     * which will reuse client and connections.
+     */
+    public AmazonEC2Client createClient(final String awsCredentialsId, final String regionName, final String endpoint) {
         final ClientConfiguration clientConfiguration = AWSUtils.getClientConfiguration(endpoint);
         final AmazonWebServicesCredentials credentials = AWSCredentialsHelper.getCredentials(awsCredentialsId, Jenkins.get());
         final AmazonEC2Client client =
@@ -0,0 +1,126 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * Part of described {@link Instance} used by plugin. SDK instance has block devices, network
+ * interfaces, tags, security groups etc. and with thousands of instances per describe that is a lot
+ * of garbage kept until update is done, so only this projection is created when response is parsed.
+ * <p>
+ * State, type, availability zone and lifecycle have few distinct values, so they are interned.
+ */
+@Immutable
+public final class FleetInstance {
+
+    @Nonnull
+    private final String instanceId;
+    @CheckForNull
+    private final String state;
+    @CheckForNull
+    private final String instanceType;
+    @CheckForNull
+    private final String privateIpAddress;
+    @CheckForNull
+    private final String publicIpAddress;
+    @CheckForNull
+    private final String availabilityZone;
+    @CheckForNull
+    private final String lifecycle;
+
+    public static FleetInstance from(final Instance instance) {
+        final InstanceState state = instance.getState();
+        final Placement placement = instance.getPlacement();
+        return new FleetInstance(instance.getInstanceId(), state == null ? null : state.getName(),
+                instance.getInstanceType(), instance.getPrivateIpAddress(), instance.getPublicIpAddress(),
+                placement == null ? null : placement.getAvailabilityZone(), instance.getInstanceLifecycle());
+    }
+
+    public FleetInstance(final @Nonnull String instanceId, final String state, final String instanceType,
+                         final String privateIpAddress, final String publicIpAddress,
+                         final String availabilityZone, final String lifecycle) {
+        this.instanceId = instanceId;
+        this.state = intern(state);
+        this.instanceType = intern(instanceType);
+        this.privateIpAddress = privateIpAddress;
+        this.publicIpAddress = publicIpAddress;
+        this.availabilityZone = intern(availabilityZone);
+        this.lifecycle = intern(lifecycle);
+    }
+
+    @Nonnull
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return state name, see {@link com.amazonaws.services.ec2.model.InstanceStateName}
+     */
+    @CheckForNull
+    public String getState() {
+        return state;
+    }
+
+    @CheckForNull
+    public String getInstanceType() {
+        return instanceType;
+    }
+
+    @CheckForNull
+    public String getPrivateIpAddress() {
+        return privateIpAddress;
+    }
+
+    @CheckForNull
+    public String getPublicIpAddress() {
+        return publicIpAddress;
+    }
+
+    @CheckForNull
+    public String getAvailabilityZone() {
+        return availabilityZone;
+    }
+
+    /**
+     * @return <code>spot</code>, <code>scheduled</code> or <code>null</code> for on-demand
+     */
+    @CheckForNull
+    public String getLifecycle() {
+        return lifecycle;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final FleetInstance that = (FleetInstance) o;
+        return instanceId.equals(that.instanceId)
+                && Objects.equals(state, that.state)
+                && Objects.equals(instanceType, that.instanceType)
+                && Objects.equals(privateIpAddress, that.privateIpAddress)
+                && Objects.equals(publicIpAddress, that.publicIpAddress)
+                && Objects.equals(availabilityZone, that.availabilityZone)
+                && Objects.equals(lifecycle, that.lifecycle);
+    }
+
+    @Override
+    public int hashCode() {
+        return instanceId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FleetInstance{" + instanceId + ", " + state + ", " + instanceType + ", " + availabilityZone + "}";
+    }
+
+    private static String intern(final String value) {
+        return value == null ? null : value.intern();
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstanceTypesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceTypesResult;
+import com.amazonaws.services.ec2.model.InstanceTypeInfo;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Process wide cache of {@link InstanceTypeInfo}. Instance type hardware doesn't change, so it's enough
+ * to describe each type once in a while, instead of call per new node.
+ * <p>
+ * Cache is per AWS client, as clients are shared by {@link AWSClientCache} all clouds with same credentials
+ * and region use same cache entries. Types are fetched by {@link #prefetch(AmazonEC2, Collection)} in one
+ * batched call before nodes are created, so node creation usually only reads cache.
+ */
+@ThreadSafe
+public class InstanceTypeInfoCache {
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceTypeInfoCache.class.getName());
+
+    private static final long TTL_MILLIS = Long.getLong(
+            InstanceTypeInfoCache.class.getName() + ".ttlMillis", TimeUnit.HOURS.toMillis(24));
+    /**
+     * Max number of instance types in one DescribeInstanceTypes request
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final InstanceTypeInfoCache INSTANCE = new InstanceTypeInfoCache(TTL_MILLIS);
+
+    public static InstanceTypeInfoCache get() {
+        return INSTANCE;
+    }
+
+    private final long ttlMillis;
+    // weak as client could be evicted from cache
+    private final Map<AmazonEC2, Map<String, Entry>> clients = new WeakHashMap<>();
+    private final AtomicLong describeCalls = new AtomicLong();
+
+    InstanceTypeInfoCache(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Describe instance types which are not in cache or expired, in batches.
+     *
+     * @param ec2           client
+     * @param instanceTypes types to have in cache
+     */
+    public void prefetch(final AmazonEC2 ec2, final Collection<String> instanceTypes) {
+        final List<String> missing = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            final Map<String, Entry> entries = getEntries(ec2);
+            for (final String instanceType : new LinkedHashSet<>(instanceTypes)) {
+                final Entry entry = entries.get(instanceType);
+                if (entry == null || now - entry.fetchedAt > ttlMillis) missing.add(instanceType);
+            }
+        }
+
+        for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+            final List<String> batch = missing.subList(i, Math.min(missing.size(), i + BATCH_SIZE));
+            describeCalls.incrementAndGet();
+            final DescribeInstanceTypesResult result = ec2.describeInstanceTypes(
+                    new DescribeInstanceTypesRequest().withInstanceTypes(batch));
+            final long fetchedAt = System.currentTimeMillis();
+            synchronized (this) {
+                final Map<String, Entry> entries = getEntries(ec2);
+                for (final InstanceTypeInfo info : result.getInstanceTypes()) {
+                    entries.put(info.getInstanceType(), new Entry(info, fetchedAt));
+                }
+            }
+            LOGGER.fine("Described instance types " + batch);
+        }
+    }
+
+    /**
+     * Same as {@link #getCached(AmazonEC2, String)}, but describes type if it's not in cache,
+     * for example when prefetch failed.
+     *
+     * @return info or <code>null</code> if AWS doesn't know type
+     */
+    @CheckForNull
+    public InstanceTypeInfo getInstanceTypeInfo(final AmazonEC2 ec2, final String instanceType) {
+        final InstanceTypeInfo cached = getCached(ec2, instanceType);
+        if (cached != null) return cached;
+        prefetch(ec2, Collections.singletonList(instanceType));
+        return getCached(ec2, instanceType);
+    }
+
+    /**
+     * Never calls AWS, expired entry is returned as better than nothing.
+     *
+     * @return cached info or <code>null</code> if type was not prefetched
+     */
+    @CheckForNull
+    public synchronized InstanceTypeInfo getCached(final AmazonEC2 ec2, final String instanceType) {
+        final Entry entry = getEntries(ec2).get(instanceType);
+        return entry == null ? null : entry.info;
+    }
+
+    /**
+     * @return number of DescribeInstanceTypes calls
+     */
+    public long getDescribeCalls() {
+        return describeCalls.get();
+    }
+
+    private Map<String, Entry> getEntries(final AmazonEC2 ec2) {
+        Map<String, Entry> entries = clients.get(ec2);
+        if (entries == null) {
+            entries = new HashMap<>();
+            clients.put(ec2, entries);
+        }
+        return entries;
+    }
+
+    private static class Entry {
+
+        private final InstanceTypeInfo info;
+        private final long fetchedAt;
+
+        private Entry(final InstanceTypeInfo info, final long fetchedAt) {
+            this.info = info;
+            this.fetchedAt = fetchedAt;
+        }
+
+    }
+
+}
@@ -32,7 +32,7 @@ public class RegionHelper {
         final TreeMap<String, String> regionDisplayNames = new TreeMap<>();
         try {
             final AmazonEC2 client = Registry.getEc2Api().connect(awsCredentialsId, null, null);
-            final DescribeRegionsResult regions = client.describeRegions();
+            final DescribeRegionsResult regions = AWSRateLimiter.background(() -> client.describeRegions());
             regionDisplayNames.putAll(regions.getRegions().stream()
                     .collect(Collectors.toMap(Region::getRegionName, Region::getRegionName)));
         } catch (final Exception ex) {
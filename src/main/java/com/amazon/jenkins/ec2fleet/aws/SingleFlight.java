@@ -0,0 +1,141 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicate identical reads, for example same fleet state requested by update and reconfiguration of
+ * cloud, or fleet list requested by few UI forms right after restart. Key is operation plus its arguments
+ * like credentials, region, endpoint and fleet id.
+ * <p>
+ * Concurrent callers with same key share one in-flight call. Caller which allows cached result also
+ * gets result of call completed not longer than short TTL ago, so only UI reads should use it while
+ * update always sees fresh state. Failures are not cached.
+ */
+@ThreadSafe
+public class SingleFlight {
+
+    private static final long RESULT_TTL_MILLIS = Long.getLong(
+            SingleFlight.class.getName() + ".resultTtlMillis", 1000);
+
+    private static final SingleFlight INSTANCE = new SingleFlight(RESULT_TTL_MILLIS);
+
+    public static SingleFlight get() {
+        return INSTANCE;
+    }
+
+    private final long resultTtlMillis;
+    private final Map<List<?>, Call<?>> calls = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+
+    SingleFlight(final long resultTtlMillis) {
+        this.resultTtlMillis = resultTtlMillis;
+    }
+
+    /**
+     * @param key       operation and arguments, elements should have proper equals and hash code
+     * @param useCached <code>true</code> if result of call completed shortly before is good enough
+     * @param read      actual call
+     * @param <T>       result type, it's shared between callers so should not be modified
+     * @return result of own or shared call
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(final List<?> key, final boolean useCached, final Supplier<T> read) {
+        requests.incrementAndGet();
+
+        final long now = System.currentTimeMillis();
+        final Call<T> call;
+        final boolean leader;
+        synchronized (calls) {
+            final Call<T> existing = (Call<T>) calls.get(key);
+            if (existing != null && (!existing.future.isDone()
+                    || (useCached && now - existing.completedAt <= resultTtlMillis))) {
+                leader = false;
+                call = existing;
+            } else {
+                removeExpired(now);
+                leader = true;
+                call = new Call<>();
+                calls.put(key, call);
+            }
+        }
+
+        if (leader) {
+            executions.incrementAndGet();
+            try {
+                final T result = read.get();
+                synchronized (calls) {
+                    call.completedAt = System.currentTimeMillis();
+                }
+                call.future.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                synchronized (calls) {
+                    calls.remove(key, call);
+                }
+                // other callers are waiting on future, so complete it in any case
+                call.future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return call.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void removeExpired(final long now) {
+        final Iterator<Call<?>> iterator = calls.values().iterator();
+        while (iterator.hasNext()) {
+            final Call<?> call = iterator.next();
+            if (call.future.isDone() && now - call.completedAt > resultTtlMillis) iterator.remove();
+        }
+    }
+
+    /**
+     * Forget completed results, in-flight calls are still shared
+     */
+    public void invalidateAll() {
+        synchronized (calls) {
+            final Iterator<Call<?>> iterator = calls.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().future.isDone()) iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of reads requested by callers
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of actual calls made
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    private static class Call<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        // guarded by calls
+        private long completedAt;
+    }
+
+}
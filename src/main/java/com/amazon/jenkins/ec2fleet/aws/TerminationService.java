@@ -0,0 +1,274 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.ec2.AmazonEC2;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Terminate instances of all clouds in batches, off cloud update thread. Cloud submits instance ids
+ * and gets future which is completed with outcome for each id when all of them are processed.
+ * <p>
+ * One scope per AWS client, as for {@link DescribeInstancesCoalescer} same client means same
+ * credentials, region and endpoint. Pending ids are flushed when batch reaches EC2 limit
+ * of {@link #MAX_BATCH_SIZE} ids or when window since first pending id is passed.
+ * <p>
+ * If terminate call fails not because of throttling, batch is split in half and retried to find
+ * ids which really failed, so one bad instance doesn't block termination of others.
+ */
+@ThreadSafe
+public class TerminationService {
+
+    private static final Logger LOGGER = Logger.getLogger(TerminationService.class.getName());
+
+    /**
+     * EC2 limit of instance ids per terminate request
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private static final long WINDOW_MILLIS = Long.getLong(
+            TerminationService.class.getName() + ".windowMillis", 500);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(2,
+            new NamingThreadFactory(new DaemonThreadFactory(), TerminationService.class.getSimpleName()));
+
+    private static final TerminationService INSTANCE = new TerminationService(WINDOW_MILLIS, MAX_BATCH_SIZE);
+
+    public static TerminationService get() {
+        return INSTANCE;
+    }
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+    // weak as client could be evicted from cache
+    private final Map<AmazonEC2, Scope> scopes = new WeakHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong terminateCalls = new AtomicLong();
+
+    TerminationService(final long windowMillis, final int maxBatchSize) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param ec2Api      api used to make actual call
+     * @param ec2         client
+     * @param instanceIds instance ids to terminate
+     * @return future completed when all ids are processed, never completed exceptionally
+     */
+    public CompletableFuture<Result> terminate(
+            final EC2Api ec2Api, final AmazonEC2 ec2, final Collection<String> instanceIds) {
+        final Request request = new Request(instanceIds);
+        if (request.remaining.isEmpty()) {
+            request.future.complete(new Result(Collections.<String>emptySet(), Collections.<String, Exception>emptyMap()));
+            return request.future;
+        }
+        submitted.addAndGet(request.remaining.size());
+
+        final Scope scope = getScope(ec2);
+        final List<Map<String, List<Request>>> ready = new ArrayList<>();
+        final boolean schedule;
+        synchronized (scope) {
+            for (final String instanceId : new ArrayList<>(request.remaining)) {
+                scope.inFlight.add(instanceId);
+                List<Request> requests = scope.pending.get(instanceId);
+                if (requests == null) {
+                    requests = new ArrayList<>(1);
+                    scope.pending.put(instanceId, requests);
+                }
+                requests.add(request);
+                if (scope.pending.size() >= maxBatchSize) ready.add(scope.takeBatch(maxBatchSize));
+            }
+            schedule = !scope.pending.isEmpty() && !scope.flushScheduled;
+            if (schedule) scope.flushScheduled = true;
+        }
+
+        for (final Map<String, List<Request>> batch : ready) {
+            EXECUTOR.execute(() -> execute(ec2Api, ec2, scope, batch));
+        }
+        if (schedule) {
+            EXECUTOR.schedule(() -> flush(ec2Api, ec2, scope), windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return request.future;
+    }
+
+    /**
+     * @param ec2 client
+     * @return ids submitted for termination and not processed yet, their instances could still
+     * be described as running
+     */
+    public Set<String> getInFlight(final AmazonEC2 ec2) {
+        final Scope scope = getScope(ec2);
+        synchronized (scope) {
+            return new HashSet<>(scope.inFlight);
+        }
+    }
+
+    private void flush(final EC2Api ec2Api, final AmazonEC2 ec2, final Scope scope) {
+        final Map<String, List<Request>> batch;
+        synchronized (scope) {
+            scope.flushScheduled = false;
+            if (scope.pending.isEmpty()) return;
+            batch = scope.takeBatch(maxBatchSize);
+            // rest, if any, will be picked by next flush
+            if (!scope.pending.isEmpty()) {
+                scope.flushScheduled = true;
+                EXECUTOR.execute(() -> flush(ec2Api, ec2, scope));
+            }
+        }
+        execute(ec2Api, ec2, scope, batch);
+    }
+
+    private void execute(final EC2Api ec2Api, final AmazonEC2 ec2, final Scope scope,
+                         final Map<String, List<Request>> batch) {
+        final Map<String, Exception> failed = new HashMap<>();
+        try {
+            terminate(ec2Api, ec2, new ArrayList<>(batch.keySet()), failed);
+        } finally {
+            synchronized (scope) {
+                scope.inFlight.removeAll(batch.keySet());
+            }
+            for (final Map.Entry<String, List<Request>> entry : batch.entrySet()) {
+                for (final Request request : entry.getValue()) {
+                    request.report(entry.getKey(), failed.get(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    private void terminate(final EC2Api ec2Api, final AmazonEC2 ec2, final List<String> instanceIds,
+                           final Map<String, Exception> failed) {
+        try {
+            terminateCalls.incrementAndGet();
+            // not found instances are handled by api as terminated
+            ec2Api.terminateInstances(ec2, new LinkedHashSet<>(instanceIds));
+        } catch (RuntimeException e) {
+            if (instanceIds.size() == 1 || isThrottling(e)) {
+                LOGGER.log(Level.FINE, "Cannot terminate instances " + instanceIds, e);
+                for (final String instanceId : instanceIds) failed.put(instanceId, e);
+                return;
+            }
+            final int half = instanceIds.size() / 2;
+            terminate(ec2Api, ec2, instanceIds.subList(0, half), failed);
+            terminate(ec2Api, ec2, instanceIds.subList(half, instanceIds.size()), failed);
+        }
+    }
+
+    private static boolean isThrottling(final RuntimeException e) {
+        return e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e);
+    }
+
+    private Scope getScope(final AmazonEC2 ec2) {
+        synchronized (scopes) {
+            Scope scope = scopes.get(ec2);
+            if (scope == null) {
+                scope = new Scope();
+                scopes.put(ec2, scope);
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * @return number of instance ids submitted by clouds
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of actual calls to {@link EC2Api}
+     */
+    public long getTerminateCalls() {
+        return terminateCalls.get();
+    }
+
+    public static final class Result {
+
+        private final Set<String> terminated;
+        private final Map<String, Exception> failed;
+
+        private Result(final Set<String> terminated, final Map<String, Exception> failed) {
+            this.terminated = Collections.unmodifiableSet(terminated);
+            this.failed = Collections.unmodifiableMap(failed);
+        }
+
+        /**
+         * @return terminated or not found instance ids
+         */
+        public Set<String> getTerminated() {
+            return terminated;
+        }
+
+        /**
+         * @return instance ids which were not terminated with cause
+         */
+        public Map<String, Exception> getFailed() {
+            return failed;
+        }
+
+    }
+
+    private static class Scope {
+
+        private final LinkedHashMap<String, List<Request>> pending = new LinkedHashMap<>();
+        private final Set<String> inFlight = new HashSet<>();
+        private boolean flushScheduled;
+
+        private Map<String, List<Request>> takeBatch(final int maxBatchSize) {
+            final Map<String, List<Request>> batch = new LinkedHashMap<>();
+            final Iterator<Map.Entry<String, List<Request>>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < maxBatchSize) {
+                final Map.Entry<String, List<Request>> entry = iterator.next();
+                batch.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            return batch;
+        }
+
+    }
+
+    private static class Request {
+
+        private final Set<String> remaining;
+        private final Set<String> terminated = new HashSet<>();
+        private final Map<String, Exception> failed = new HashMap<>();
+        private final CompletableFuture<Result> future = new CompletableFuture<>();
+
+        private Request(final Collection<String> instanceIds) {
+            this.remaining = new LinkedHashSet<>(instanceIds);
+        }
+
+        private synchronized void report(final String instanceId, @Nullable final Exception exception) {
+            if (!remaining.remove(instanceId)) return;
+            if (exception == null) terminated.add(instanceId);
+            else failed.put(instanceId, exception);
+            if (remaining.isEmpty()) future.complete(new Result(terminated, failed));
+        }
+
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.amazon.jenkins.ec2fleet.fleet;
 
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
+import com.amazon.jenkins.ec2fleet.aws.AWSClientCache;
 import com.amazon.jenkins.ec2fleet.aws.AWSUtils;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
@@ -23,9 +24,12 @@ import org.springframework.util.ObjectUtils;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -34,11 +38,16 @@ import java.util.stream.Collectors;
 @ThreadSafe
 public class AutoScalingGroupFleet implements EC2Fleet {
 
+    /**
+     * Max number of names and records for one describe auto scaling groups call
+     */
+    private static final int MAX_GROUP_NAMES = 100;
+
     @Override
     public void describe(
             final String awsCredentialsId, final String regionName, final String endpoint,
             final ListBoxModel model, final String selectedId, final boolean showAll) {
-        final AmazonAutoScalingClient client = createClient(awsCredentialsId, regionName, endpoint);
+        final AmazonAutoScalingClient client = getClient(awsCredentialsId, regionName, endpoint);
         String token = null;
         do {
             final DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
@@ -58,7 +67,7 @@ public class AutoScalingGroupFleet implements EC2Fleet {
     public void modify(
             final String awsCredentialsId, final String regionName, final String endpoint,
             final String id, final int targetCapacity, final int min, final int max) {
-        final AmazonAutoScalingClient client = createClient(awsCredentialsId, regionName, endpoint);
+        final AmazonAutoScalingClient client = getClient(awsCredentialsId, regionName, endpoint);
         client.updateAutoScalingGroup(
                 new UpdateAutoScalingGroupRequest()
                         .withMinSize(min)
@@ -74,7 +83,7 @@ public class AutoScalingGroupFleet implements EC2Fleet {
     @Override
     public FleetStateStats getState(
             final String awsCredentialsId, final String regionName, final String endpoint, final String id) {
-        final AmazonAutoScalingClient client = createClient(awsCredentialsId, regionName, endpoint);
+        final AmazonAutoScalingClient client = getClient(awsCredentialsId, regionName, endpoint);
         final DescribeAutoScalingGroupsResult result = client.describeAutoScalingGroups(
                 new DescribeAutoScalingGroupsRequest()
                         .withAutoScalingGroupNames(id));
@@ -84,8 +93,10 @@ public class AutoScalingGroupFleet implements EC2Fleet {
                     "Cannot find auto scaling group with name %s in region %s", id, regionName));
         }
 
-        final AutoScalingGroup group = result.getAutoScalingGroups().get(0);
+        return toStats(id, result.getAutoScalingGroups().get(0));
+    }
 
+    private static FleetStateStats toStats(final String id, final AutoScalingGroup group) {
         final Set<String> instanceIds = new HashSet<>(group.getInstances().size());
         for (final Instance instance : group.getInstances()) {
             instanceIds.add(instance.getInstanceId());
@@ -107,9 +118,53 @@ public class AutoScalingGroupFleet implements EC2Fleet {
                 instanceIds, instanceWeights);
     }
 
+    /**
+     * Instances are part of group description, so they are listed in any case.
+     */
+    @Override
+    public String getInstanceTagKey() {
+        return "aws:autoscaling:groupName";
+    }
+
+    /**
+     * Describe groups by {@link #MAX_GROUP_NAMES} names per call, instances are part of group description,
+     * so no separate listing. Groups which can't be found are absent in result.
+     */
     @Override
-    public Map<String, FleetStateStats> getStateBatch(String awsCredentialsId, String regionName, String endpoint, Collection<String> ids) {
-        throw new UnsupportedOperationException();
+    public Map<String, FleetStateStats> getStateBatch(
+            final String awsCredentialsId, final String regionName, final String endpoint, final Collection<String> ids) {
+        final Map<String, FleetStateStats> r = new HashMap<>();
+        // empty names means all groups for describe
+        if (ids.isEmpty()) return r;
+
+        final AmazonAutoScalingClient client = getClient(awsCredentialsId, regionName, endpoint);
+        final List<String> names = new ArrayList<>(new HashSet<>(ids));
+        for (int i = 0; i < names.size(); i += MAX_GROUP_NAMES) {
+            final List<String> batch = names.subList(i, Math.min(i + MAX_GROUP_NAMES, names.size()));
+            String token = null;
+            do {
+                final DescribeAutoScalingGroupsResult result = client.describeAutoScalingGroups(
+                        new DescribeAutoScalingGroupsRequest()
+                                .withAutoScalingGroupNames(batch)
+                                .withMaxRecords(MAX_GROUP_NAMES)
+                                .withNextToken(token));
+                for (final AutoScalingGroup group : result.getAutoScalingGroups()) {
+                    final String name = group.getAutoScalingGroupName();
+                    if (batch.contains(name)) r.put(name, toStats(name, group));
+                }
+                token = result.getNextToken();
+            } while (token != null);
+        }
+        return r;
+    }
+
+    /**
+     * Return shared client, see {@link AWSClientCache}.
+     */
+    public AmazonAutoScalingClient getClient(
+            final String awsCredentialsId, final String regionName, final String endpoint) {
+        return AWSClientCache.get().getOrCreate(AmazonAutoScalingClient.class, awsCredentialsId, regionName, endpoint,
+                () -> createClient(awsCredentialsId, regionName, endpoint));
     }
 
     // TODO: move to Registry
@@ -2,6 +2,7 @@ package com.amazon.jenkins.ec2fleet.fleet;
 
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
 import com.amazon.jenkins.ec2fleet.Registry;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 import hudson.util.ListBoxModel;
@@ -60,6 +61,11 @@ public class EC2EC2Fleet implements EC2Fleet {
 
     @Override
     public FleetStateStats getState(String awsCredentialsId, String regionName, String endpoint, String id) {
+        return getState(awsCredentialsId, regionName, endpoint, id, true);
+    }
+
+    @Override
+    public FleetStateStats getState(String awsCredentialsId, String regionName, String endpoint, String id, boolean withInstances) {
         final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
 
         final DescribeFleetsRequest request = new DescribeFleetsRequest();
@@ -68,12 +74,29 @@ public class EC2EC2Fleet implements EC2Fleet {
         if (result.getFleets().isEmpty())
             throw new IllegalStateException("Fleet " + id + " doesn't exist");
 
-        final FleetData fleetData = result.getFleets().get(0);
-        final List<FleetLaunchTemplateConfig> templateConfigs = fleetData.getLaunchTemplateConfigs();
+        // with tag discovery instances are described by tag
+        return toStats(id, result.getFleets().get(0),
+                withInstances ? getActiveFleetInstances(ec2, id) : Collections.<String>emptySet());
+    }
+
+    private static FleetStateStats toStats(final String id, final FleetData fleetData, final Set<String> instances) {
+        return new FleetStateStats(id,
+                fleetData.getTargetCapacitySpecification().getTotalTargetCapacity(),
+                new FleetStateStats.State(
+                        isActive(fleetData),
+                        isModifying(fleetData),
+                        fleetData.getFleetState()),
+                instances,
+                FleetConfigCache.get().getInstanceTypeWeights(id, fleetData.getCreateTime(),
+                        isModifying(fleetData), () -> getInstanceTypeWeights(fleetData)));
+    }
 
-        // Index configured instance types by weight:
+    /**
+     * Index configured instance types by weight, max weight if type is in few overrides
+     */
+    private static Map<String, Double> getInstanceTypeWeights(final FleetData fleetData) {
         final Map<String, Double> instanceTypeWeights = new HashMap<>();
-        for (FleetLaunchTemplateConfig templateConfig : templateConfigs) {
+        for (FleetLaunchTemplateConfig templateConfig : fleetData.getLaunchTemplateConfigs()) {
             for (FleetLaunchTemplateOverrides launchOverrides : templateConfig.getOverrides()) {
                 final String instanceType = launchOverrides.getInstanceType();
                 if (instanceType == null) continue;
@@ -86,18 +109,15 @@ public class EC2EC2Fleet implements EC2Fleet {
                 instanceTypeWeights.put(instanceType, instanceWeight);
             }
         }
+        return instanceTypeWeights;
+    }
 
-        return new FleetStateStats(id,
-                fleetData.getTargetCapacitySpecification().getTotalTargetCapacity(),
-                new FleetStateStats.State(
-                        isActive(fleetData),
-                        isModifying(fleetData),
-                        fleetData.getFleetState()),
-                getActiveFleetInstances(ec2, id),
-                instanceTypeWeights);
+    @Override
+    public String getInstanceTagKey() {
+        return "aws:ec2:fleet-id";
     }
 
-    private Set<String> getActiveFleetInstances(AmazonEC2 ec2, String fleetId) {
+    private static Set<String> getActiveFleetInstances(AmazonEC2 ec2, String fleetId) {
         String token = null;
         final Set<String> instances = new HashSet<>();
         do {
@@ -114,50 +134,62 @@ public class EC2EC2Fleet implements EC2Fleet {
         return instances;
     }
 
-    private static class State {
-        String id;
-        Set<String> instances;
-        FleetData fleetData;
-    }
-
+    /**
+     * Describe all fleets by one paginated call and list their instances in parallel. One invalid
+     * or deleted fleet id fails whole describe call, in that case fleets are described one by one
+     * and fleets which can't be described are absent in result.
+     */
     @Override
     public Map<String, FleetStateStats> getStateBatch(String awsCredentialsId, String regionName, String endpoint, Collection<String> ids) {
-        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
+        final Map<String, FleetStateStats> r = new HashMap<>();
+        // empty ids means all fleets for describe
+        if (ids.isEmpty()) return r;
 
-        List<State> states = new ArrayList<>();
-        for (String id : ids) {
-            final State s = new State();
-            s.id = id;
-            states.add(s);
-        }
+        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
 
-        for (State state : states) {
-            state.instances = getActiveFleetInstances(ec2, state.id);
+        List<FleetData> fleets;
+        try {
+            fleets = describeFleets(ec2, ids);
+        } catch (final AmazonServiceException e) {
+            // throttling or service errors are not related to ids, one by one calls will not help
+            if (e.getErrorType() != AmazonServiceException.ErrorType.Client) throw e;
+            fleets = new ArrayList<>();
+            if (ids.size() > 1) {
+                for (final String id : ids) {
+                    try {
+                        fleets.addAll(describeFleets(ec2, Collections.singleton(id)));
+                    } catch (final AmazonServiceException ex) {
+                        if (ex.getErrorType() != AmazonServiceException.ErrorType.Client) throw ex;
+                    }
+                }
+            }
         }
 
-        final DescribeFleetsRequest request = new DescribeFleetsRequest();
-        request.setFleetIds(ids);
-        final DescribeFleetsResult result = ec2.describeFleets(request);
-
-        for (FleetData fleetData: result.getFleets()) {
-            for (State state : states) {
-                if (state.id.equals(fleetData.getFleetId())) state.fleetData = fleetData;
-            }
+        final Set<String> described = new HashSet<>();
+        for (final FleetData fleetData : fleets) {
+            if (ids.contains(fleetData.getFleetId())) described.add(fleetData.getFleetId());
         }
 
-        Map<String, FleetStateStats> r = new HashMap<>();
-        for (State state : states) {
-            if(state.fleetData != null) {
-                r.put(state.id, new FleetStateStats(state.id,
-                        state.fleetData.getTargetCapacitySpecification().getTotalTargetCapacity(),
-                        new FleetStateStats.State(
-                                isActive(state.fleetData),
-                                isModifying(state.fleetData),
-                                state.fleetData.getFleetState()),
-                        state.instances,
-                        Collections.<String, Double>emptyMap()));
-            }
+        final Map<String, Set<String>> instances = EC2Fleets.listInstances(
+                described, id -> getActiveFleetInstances(ec2, id));
+        for (final FleetData fleetData : fleets) {
+            final String id = fleetData.getFleetId();
+            if (described.contains(id)) r.put(id, toStats(id, fleetData, instances.get(id)));
         }
         return r;
     }
+
+    private static List<FleetData> describeFleets(final AmazonEC2 ec2, final Collection<String> ids) {
+        final List<FleetData> fleets = new ArrayList<>();
+        String token = null;
+        do {
+            final DescribeFleetsRequest request = new DescribeFleetsRequest();
+            request.setFleetIds(ids);
+            request.setNextToken(token);
+            final DescribeFleetsResult result = ec2.describeFleets(request);
+            fleets.addAll(result.getFleets());
+            token = result.getNextToken();
+        } while (token != null);
+        return fleets;
+    }
 }
@@ -28,6 +28,22 @@ public interface EC2Fleet {
             final String awsCredentialsId, final String regionName, final String endpoint,
             final String id);
 
+    /**
+     * Same as {@link #getState(String, String, String, String)}, however if <code>withInstances</code>
+     * is <code>false</code> implementation could skip listing of fleet instances when it's separate call,
+     * instances are discovered by {@link #getInstanceTagKey()} in that case.
+     */
+    default FleetStateStats getState(
+            final String awsCredentialsId, final String regionName, final String endpoint,
+            final String id, final boolean withInstances) {
+        return getState(awsCredentialsId, regionName, endpoint, id);
+    }
+
+    /**
+     * @return key of tag which AWS adds to each instance of fleet, value is fleet id
+     */
+    String getInstanceTagKey();
+
     Map<String, FleetStateStats> getStateBatch(
             final String awsCredentialsId, final String regionName, final String endpoint,
             final Collection<String> ids);
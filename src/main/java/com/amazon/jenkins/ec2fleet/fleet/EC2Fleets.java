@@ -1,10 +1,26 @@
 package com.amazon.jenkins.ec2fleet.fleet;
 
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import org.apache.commons.lang.StringUtils;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @ThreadSafe
 public class EC2Fleets {
@@ -15,6 +31,21 @@ public class EC2Fleets {
     private static final String EC2_EC2_FLEET_PREFIX = "fleet-";
     private static final EC2EC2Fleet EC2_EC2_FLEET = new EC2EC2Fleet();
 
+    /**
+     * Max number of fleets which instances are listed in parallel by batch state
+     */
+    private static final int LIST_CONCURRENCY = Integer.getInteger(
+            EC2Fleets.class.getName() + ".listConcurrency", 4);
+    /**
+     * Max number of threads shared by all batch state calls, when all are busy worker runs in caller thread
+     */
+    private static final int LIST_POOL_SIZE = Integer.getInteger(
+            EC2Fleets.class.getName() + ".listPoolSize", 8);
+    private static final ExecutorService LIST_EXECUTOR = new ThreadPoolExecutor(
+            0, LIST_POOL_SIZE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), EC2Fleets.class.getSimpleName() + ".listInstances"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
     private static EC2Fleet GET = null;
 
     private EC2Fleets() {
@@ -49,6 +80,61 @@ public class EC2Fleets {
         return StringUtils.startsWith(fleet, EC2_EC2_FLEET_PREFIX);
     }
 
+    /**
+     * List instances of each fleet in parallel, not more than {@link #LIST_CONCURRENCY} in same time,
+     * caller thread is one of workers. If listing of any fleet failed, first failure is thrown
+     * after all workers done.
+     *
+     * @param ids    fleet ids
+     * @param lister lists instances of one fleet
+     * @return instances by fleet id
+     */
+    static Map<String, Set<String>> listInstances(
+            final Collection<String> ids, final Function<String, Set<String>> lister) {
+        final Map<String, Set<String>> instances = new ConcurrentHashMap<>();
+        final Queue<String> queue = new ConcurrentLinkedQueue<>(ids);
+        final Runnable worker = () -> {
+            String id;
+            while ((id = queue.poll()) != null) {
+                instances.put(id, lister.apply(id));
+            }
+        };
+
+        // caller thread is one of workers
+        final int workers = Math.min(LIST_CONCURRENCY, queue.size());
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < workers - 1; i++) {
+            futures.add(LIST_EXECUTOR.submit(worker));
+        }
+
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+            // stop other workers from picking up new fleets
+            queue.clear();
+        }
+
+        boolean interrupted = false;
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                queue.clear();
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw failure;
+        return instances;
+    }
+
     // Visible for testing
     public static void setGet(EC2Fleet ec2Fleet) {
         GET = ec2Fleet;
@@ -2,6 +2,7 @@ package com.amazon.jenkins.ec2fleet.fleet;
 
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
 import com.amazon.jenkins.ec2fleet.Registry;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.ActiveInstance;
 import com.amazonaws.services.ec2.model.BatchState;
@@ -94,21 +95,18 @@ public class EC2SpotFleet implements EC2Fleet {
     public FleetStateStats getState(
             final String awsCredentialsId, final String regionName, final String endpoint,
             final String id) {
-        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
+        return getState(awsCredentialsId, regionName, endpoint, id, true);
+    }
 
-        String token = null;
-        final Set<String> instances = new HashSet<>();
-        do {
-            final DescribeSpotFleetInstancesRequest request = new DescribeSpotFleetInstancesRequest();
-            request.setSpotFleetRequestId(id);
-            request.setNextToken(token);
-            final DescribeSpotFleetInstancesResult res = ec2.describeSpotFleetInstances(request);
-            for (final ActiveInstance instance : res.getActiveInstances()) {
-                instances.add(instance.getInstanceId());
-            }
+    @Override
+    public FleetStateStats getState(
+            final String awsCredentialsId, final String regionName, final String endpoint,
+            final String id, final boolean withInstances) {
+        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
 
-            token = res.getNextToken();
-        } while (token != null);
+        // with tag discovery instances are described by tag
+        final Set<String> instances = withInstances
+                ? getActiveFleetInstances(ec2, id) : Collections.<String>emptySet();
 
         final DescribeSpotFleetRequestsRequest request = new DescribeSpotFleetRequestsRequest();
         request.setSpotFleetRequestIds(Collections.singleton(id));
@@ -116,10 +114,27 @@ public class EC2SpotFleet implements EC2Fleet {
         if (fleet.getSpotFleetRequestConfigs().isEmpty())
             throw new IllegalStateException("Fleet " + id + " can't be described");
 
-        final SpotFleetRequestConfig fleetConfig = fleet.getSpotFleetRequestConfigs().get(0);
+        return toStats(id, fleet.getSpotFleetRequestConfigs().get(0), instances);
+    }
+
+    private static FleetStateStats toStats(
+            final String id, final SpotFleetRequestConfig fleetConfig, final Set<String> instances) {
         final SpotFleetRequestConfigData fleetRequestConfig = fleetConfig.getSpotFleetRequestConfig();
+        return new FleetStateStats(id,
+                fleetRequestConfig.getTargetCapacity(),
+                new FleetStateStats.State(
+                        isActive(fleetConfig),
+                        isModifying(fleetConfig),
+                        fleetConfig.getSpotFleetRequestState()),
+                instances,
+                FleetConfigCache.get().getInstanceTypeWeights(id, fleetConfig.getCreateTime(),
+                        isModifying(fleetConfig), () -> getInstanceTypeWeights(fleetRequestConfig)));
+    }
 
-        // Index configured instance types by weight:
+    /**
+     * Index configured instance types by weight, max weight if type is in few launch specifications
+     */
+    private static Map<String, Double> getInstanceTypeWeights(final SpotFleetRequestConfigData fleetRequestConfig) {
         final Map<String, Double> instanceTypeWeights = new HashMap<>();
         for (SpotFleetLaunchSpecification launchSpecification : fleetRequestConfig.getLaunchSpecifications()) {
             final String instanceType = launchSpecification.getInstanceType();
@@ -132,76 +147,90 @@ public class EC2SpotFleet implements EC2Fleet {
             }
             instanceTypeWeights.put(instanceType, instanceWeight);
         }
+        return instanceTypeWeights;
+    }
 
-        return new FleetStateStats(id,
-                fleetRequestConfig.getTargetCapacity(),
-                new FleetStateStats.State(
-                        isActive(fleetConfig),
-                        isModifying(fleetConfig),
-                        fleetConfig.getSpotFleetRequestState()),
-                instances,
-                instanceTypeWeights);
+    private static Set<String> getActiveFleetInstances(final AmazonEC2 ec2, final String id) {
+        String token = null;
+        final Set<String> instances = new HashSet<>();
+        do {
+            final DescribeSpotFleetInstancesRequest request = new DescribeSpotFleetInstancesRequest();
+            request.setSpotFleetRequestId(id);
+            request.setNextToken(token);
+            final DescribeSpotFleetInstancesResult res = ec2.describeSpotFleetInstances(request);
+            for (final ActiveInstance instance : res.getActiveInstances()) {
+                instances.add(instance.getInstanceId());
+            }
+
+            token = res.getNextToken();
+        } while (token != null);
+        return instances;
     }
 
-    private static class State {
-        String id;
-        Set<String> instances;
-        SpotFleetRequestConfig config;
+    @Override
+    public String getInstanceTagKey() {
+        return "aws:ec2spot:fleet-request-id";
     }
 
+    /**
+     * Describe all fleets by one paginated call and list their instances in parallel. One invalid
+     * or deleted fleet id fails whole describe call, in that case fleets are described one by one
+     * and fleets which can't be described are absent in result.
+     */
     @Override
     public Map<String, FleetStateStats> getStateBatch(
             final String awsCredentialsId, final String regionName, final String endpoint,
             final Collection<String> ids) {
-        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
+        final Map<String, FleetStateStats> r = new HashMap<>();
+        // empty ids means all fleets for describe
+        if (ids.isEmpty()) return r;
 
-        List<State> states = new ArrayList<>();
-        for (String id : ids) {
-            final State s = new State();
-            s.id = id;
-            states.add(s);
-        }
+        final AmazonEC2 ec2 = Registry.getEc2Api().connect(awsCredentialsId, regionName, endpoint);
 
-        for (State state : states) {
-            String token = null;
-            state.instances = new HashSet<>();
-            do {
-                final DescribeSpotFleetInstancesRequest request = new DescribeSpotFleetInstancesRequest();
-                request.setSpotFleetRequestId(state.id);
-                request.setNextToken(token);
-                final DescribeSpotFleetInstancesResult res = ec2.describeSpotFleetInstances(request);
-                for (final ActiveInstance instance : res.getActiveInstances()) {
-                    state.instances.add(instance.getInstanceId());
+        List<SpotFleetRequestConfig> configs;
+        try {
+            configs = describeFleetRequests(ec2, ids);
+        } catch (final AmazonServiceException e) {
+            // throttling or service errors are not related to ids, one by one calls will not help
+            if (e.getErrorType() != AmazonServiceException.ErrorType.Client) throw e;
+            configs = new ArrayList<>();
+            if (ids.size() > 1) {
+                for (final String id : ids) {
+                    try {
+                        configs.addAll(describeFleetRequests(ec2, Collections.singleton(id)));
+                    } catch (final AmazonServiceException ex) {
+                        if (ex.getErrorType() != AmazonServiceException.ErrorType.Client) throw ex;
+                    }
                 }
-
-                token = res.getNextToken();
-            } while (token != null);
-        }
-
-        final DescribeSpotFleetRequestsRequest request = new DescribeSpotFleetRequestsRequest();
-        request.setSpotFleetRequestIds(ids);
-        final DescribeSpotFleetRequestsResult fleet = ec2.describeSpotFleetRequests(request);
-        for (SpotFleetRequestConfig c : fleet.getSpotFleetRequestConfigs()) {
-            for (State state : states) {
-                if (state.id.equals(c.getSpotFleetRequestId())) state.config = c;
             }
         }
 
-        Map<String, FleetStateStats> r = new HashMap<>();
-        for (State state : states) {
-            r.put(state.id, new FleetStateStats(state.id,
-                    state.config.getSpotFleetRequestConfig().getTargetCapacity(),
-                    new FleetStateStats.State(
-                            isActive(state.config),
-                            isModifying(state.config),
-                            state.config.getSpotFleetRequestState()),
-                    state.instances,
-                    Collections.<String, Double>emptyMap()));
+        final Set<String> described = new HashSet<>();
+        for (final SpotFleetRequestConfig config : configs) {
+            if (ids.contains(config.getSpotFleetRequestId())) described.add(config.getSpotFleetRequestId());
         }
 
-        // todo add weight
-        // todo replace single with multiple but just one id less code
+        final Map<String, Set<String>> instances = EC2Fleets.listInstances(
+                described, id -> getActiveFleetInstances(ec2, id));
+        for (final SpotFleetRequestConfig config : configs) {
+            final String id = config.getSpotFleetRequestId();
+            if (described.contains(id)) r.put(id, toStats(id, config, instances.get(id)));
+        }
         return r;
     }
 
+    private static List<SpotFleetRequestConfig> describeFleetRequests(final AmazonEC2 ec2, final Collection<String> ids) {
+        final List<SpotFleetRequestConfig> configs = new ArrayList<>();
+        String token = null;
+        do {
+            final DescribeSpotFleetRequestsRequest request = new DescribeSpotFleetRequestsRequest();
+            request.setSpotFleetRequestIds(ids);
+            request.setNextToken(token);
+            final DescribeSpotFleetRequestsResult result = ec2.describeSpotFleetRequests(request);
+            configs.addAll(result.getSpotFleetRequestConfigs());
+            token = result.getNextToken();
+        } while (token != null);
+        return configs;
+    }
+
 }
@@ -0,0 +1,89 @@
+package com.amazon.jenkins.ec2fleet.fleet;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keep slow changing part of fleet state (instance type weights from launch specifications or overrides)
+ * by fleet id, so it's not rebuilt each update cycle. Fast changing part (target capacity, state, instances)
+ * is not cached. Describe call is still the same, AWS returns launch config with capacity and state.
+ * <p>
+ * Launch config of fleet is changed only by modification, so weights are rebuilt when fleet is in
+ * modifying state or was recreated with same id (other create time). Modification could finish between
+ * two update cycles unnoticed, so weights are rebuilt anyway when they are older than max age.
+ * <p>
+ * Entries older than max age are removed on each rebuild, so deleted fleets don't stay in cache.
+ */
+@ThreadSafe
+class FleetConfigCache {
+
+    private static final long MAX_AGE_MILLIS = Long.getLong(
+            FleetConfigCache.class.getName() + ".maxAgeMillis", TimeUnit.MINUTES.toMillis(10));
+
+    private static final FleetConfigCache INSTANCE = new FleetConfigCache(MAX_AGE_MILLIS);
+
+    static FleetConfigCache get() {
+        return INSTANCE;
+    }
+
+    private final long maxAgeMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    FleetConfigCache(final long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param fleetId    fleet id
+     * @param createTime fleet create time
+     * @param modifying  <code>true</code> if fleet is modifying, its launch config could change
+     * @param loader     build weights from config
+     * @return unmodifiable weights, same instance till fleet is modified or max age
+     */
+    Map<String, Double> getInstanceTypeWeights(
+            final String fleetId, @Nullable final Date createTime, final boolean modifying,
+            final Supplier<Map<String, Double>> loader) {
+        final long now = System.currentTimeMillis();
+        final Entry entry = entries.get(fleetId);
+        if (entry != null && !modifying && Objects.equals(entry.createTime, createTime)
+                && now - entry.loadedAt <= maxAgeMillis) {
+            return entry.weights;
+        }
+
+        final Map<String, Double> weights = Collections.unmodifiableMap(loader.get());
+        entries.values().removeIf(e -> now - e.loadedAt > maxAgeMillis);
+        entries.put(fleetId, new Entry(createTime, weights, now));
+        return weights;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void invalidateAll() {
+        entries.clear();
+    }
+
+    private static class Entry {
+
+        private final Date createTime;
+        private final Map<String, Double> weights;
+        private final long loadedAt;
+
+        private Entry(final Date createTime, final Map<String, Double> weights, final long loadedAt) {
+            this.createTime = createTime;
+            this.weights = weights;
+            this.loadedAt = loadedAt;
+        }
+
+    }
+
+}
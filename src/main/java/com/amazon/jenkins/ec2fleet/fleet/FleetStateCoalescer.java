@@ -0,0 +1,144 @@
+package com.amazon.jenkins.ec2fleet.fleet;
+
+import com.amazon.jenkins.ec2fleet.FleetStateStats;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesce fleet state calls of multiple clouds which use same fleet type, credentials, region and endpoint
+ * into one {@link EC2Fleet#getStateBatch(String, String, String, java.util.Collection)}.
+ * <p>
+ * First caller opens short window and became leader, all callers joined in that window add their fleet ids.
+ * When window closed leader gets state of all of them by one batch and fan out result. Nothing is kept
+ * after that, so each update still sees fresh state.
+ * <p>
+ * If batch failed or fleet is absent in batch result, caller gets state by own
+ * {@link EC2Fleet#getState(String, String, String, String)}, so one broken fleet doesn't break update
+ * of others and error is the same as without coalescing.
+ */
+@ThreadSafe
+public class FleetStateCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetStateCoalescer.class.getName());
+
+    private static final long WINDOW_MILLIS = Long.getLong(
+            FleetStateCoalescer.class.getName() + ".windowMillis", 200);
+
+    private static final FleetStateCoalescer INSTANCE = new FleetStateCoalescer(WINDOW_MILLIS);
+
+    public static FleetStateCoalescer get() {
+        return INSTANCE;
+    }
+
+    private final long windowMillis;
+    private final Map<List<String>, Batch> pending = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batchCalls = new AtomicLong();
+
+    FleetStateCoalescer(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param ec2Fleet         fleet implementation, clouds are coalesced only with same implementation
+     * @param awsCredentialsId credentials
+     * @param regionName       region
+     * @param endpoint         endpoint
+     * @param id               fleet id
+     * @return same as {@link EC2Fleet#getState(String, String, String, String)}
+     */
+    public FleetStateStats getState(
+            final EC2Fleet ec2Fleet, final String awsCredentialsId, final String regionName,
+            final String endpoint, final String id) {
+        requests.incrementAndGet();
+
+        final List<String> key = Arrays.asList(ec2Fleet.getClass().getName(), awsCredentialsId, regionName, endpoint);
+        final Batch batch;
+        final boolean leader;
+        synchronized (pending) {
+            Batch current = pending.get(key);
+            leader = current == null;
+            if (leader) {
+                current = new Batch();
+                pending.put(key, current);
+            }
+            current.ids.add(id);
+            batch = current;
+        }
+
+        if (leader) {
+            lead(ec2Fleet, awsCredentialsId, regionName, endpoint, key, batch);
+        }
+
+        Map<String, FleetStateStats> states = null;
+        try {
+            states = batch.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for fleet state", e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Batch state failed, get state of " + id + " separately", e.getCause());
+        }
+
+        final FleetStateStats stats = states == null ? null : states.get(id);
+        if (stats != null) return stats;
+        return ec2Fleet.getState(awsCredentialsId, regionName, endpoint, id);
+    }
+
+    private void lead(
+            final EC2Fleet ec2Fleet, final String awsCredentialsId, final String regionName,
+            final String endpoint, final List<String> key, final Batch batch) {
+        try {
+            // let other clouds to join
+            Thread.sleep(windowMillis);
+        } catch (InterruptedException e) {
+            // proceed without waiting
+            Thread.currentThread().interrupt();
+        }
+
+        final Set<String> ids;
+        synchronized (pending) {
+            pending.remove(key);
+            ids = new HashSet<>(batch.ids);
+        }
+
+        try {
+            batchCalls.incrementAndGet();
+            batch.future.complete(ec2Fleet.getStateBatch(awsCredentialsId, regionName, endpoint, ids));
+        } catch (RuntimeException | Error e) {
+            // other callers are waiting on future, so complete it in any case
+            batch.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return number of state requests made by clouds
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of actual {@link EC2Fleet#getStateBatch(String, String, String, java.util.Collection)} calls
+     */
+    public long getBatchCalls() {
+        return batchCalls.get();
+    }
+
+    private static class Batch {
+        private final Set<String> ids = new HashSet<>();
+        private final CompletableFuture<Map<String, FleetStateStats>> future = new CompletableFuture<>();
+    }
+
+}
@@ -13,12 +13,17 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 @RunWith(PowerMockRunner.class)
@@ -88,6 +93,9 @@ public class CloudNannyTest {
         recurrenceCounter2.set(1);
 
         Whitebox.setInternalState(cloudNanny, "recurrenceCounters", recurrenceCounters);
+        Whitebox.setInternalState(cloudNanny, "cycleStats", Collections.synchronizedMap(new WeakHashMap<>()));
+        // run updates in caller thread to simplify verification
+        Whitebox.setInternalState(cloudNanny, "executor", new QueueExecutor(true));
 
         return cloudNanny;
     }
@@ -215,4 +223,86 @@ public class CloudNannyTest {
         assertEquals(EC2FleetCloud.WeightedScaler.class, cloud1.getExecutorScaler().getClass());
         assertEquals(EC2FleetCloud.NoScaler.class, cloud2.getExecutorScaler().getClass());
     }
+
+    @Test
+    public void doRun_skipCloudIfPreviousUpdateStillRunning() {
+        clouds.add(cloud1);
+        CloudNanny cloudNanny = getMockCloudNannyInstance();
+        QueueExecutor executor = new QueueExecutor(false);
+        Whitebox.setInternalState(cloudNanny, "executor", executor);
+
+        cloudNanny.doRun();
+        recurrenceCounter1.set(1);
+        cloudNanny.doRun();
+
+        verify(cloud1, never()).update();
+        assertEquals(1, executor.tasks.size());
+        assertEquals(1, cloudNanny.getCycleStats(cloud1).getSkipped());
+
+        executor.tasks.get(0).run();
+        verify(cloud1).update();
+        assertTrue(cloudNanny.getCycleStats(cloud1).getLastDurationMillis() >= 0);
+        assertTrue(cloudNanny.getCycleStats(cloud1).getLastLagMillis() >= 0);
+
+        recurrenceCounter1.set(1);
+        cloudNanny.doRun();
+        assertEquals(2, executor.tasks.size());
+    }
+
+    @Test
+    public void doRun_scheduleFirstUpdateOfNewCloudWithinInterval() {
+        clouds.add(cloud1);
+        CloudNanny cloudNanny = getMockCloudNannyInstance();
+        recurrenceCounters.clear();
+
+        cloudNanny.doRun();
+
+        final int counter = recurrenceCounters.get(cloud1).get();
+        assertTrue(counter >= 0 && counter <= recurrencePeriod);
+    }
+
+    /**
+     * Executes task in caller thread or keeps them until test runs them.
+     */
+    private static class QueueExecutor extends AbstractExecutorService {
+
+        private final boolean runImmediately;
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        private QueueExecutor(boolean runImmediately) {
+            this.runImmediately = runImmediately;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (runImmediately) command.run();
+            else tasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+    }
+
 }
@@ -0,0 +1,86 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CloudStateHandoffTest {
+
+    private final Jenkins jenkins = mock(Jenkins.class);
+    private final CloudStateHandoff handoff = new CloudStateHandoff();
+
+    @Test
+    public void handOver_migrateStateOfReplacedCloudWithSameNameAndFleet() {
+        final EC2FleetCloud oldCloud = cloud("a", "f");
+        final EC2FleetCloud newCloud = cloud("a", "f");
+
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(oldCloud));
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(newCloud));
+
+        verify(newCloud).migrateStateFrom(oldCloud);
+    }
+
+    @Test
+    public void handOver_doNothingIfFleetChanged() {
+        final EC2FleetCloud oldCloud = cloud("a", "f");
+        final EC2FleetCloud newCloud = cloud("a", "f2");
+
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(oldCloud));
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(newCloud));
+
+        verify(newCloud, never()).migrateStateFrom(any(EC2FleetCloud.class));
+    }
+
+    @Test
+    public void handOver_doNothingForSameCloudsAndOtherNames() {
+        final EC2FleetCloud cloudA = cloud("a", "f");
+        final EC2FleetCloud cloudB = cloud("b", "f");
+
+        handoff.handOver(jenkins, Arrays.<Cloud>asList(cloudA, cloudB));
+        handoff.handOver(jenkins, Arrays.<Cloud>asList(cloudA, cloudB));
+
+        verify(cloudA, never()).migrateStateFrom(any(EC2FleetCloud.class));
+        verify(cloudB, never()).migrateStateFrom(any(EC2FleetCloud.class));
+    }
+
+    @Test
+    public void handOver_doNothingForCloudsOfOtherJenkins() {
+        final EC2FleetCloud oldCloud = cloud("a", "f");
+        final EC2FleetCloud newCloud = cloud("a", "f");
+
+        handoff.handOver(mock(Jenkins.class), Collections.<Cloud>singletonList(oldCloud));
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(newCloud));
+
+        verify(newCloud, never()).migrateStateFrom(any(EC2FleetCloud.class));
+    }
+
+    @Test
+    public void handOver_migrateOnlyOnce() {
+        final EC2FleetCloud oldCloud = cloud("a", "f");
+        final EC2FleetCloud newCloud = cloud("a", "f");
+
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(oldCloud));
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(newCloud));
+        handoff.handOver(jenkins, Collections.<Cloud>singletonList(newCloud));
+
+        verify(newCloud).migrateStateFrom(oldCloud);
+    }
+
+    private static EC2FleetCloud cloud(final String name, final String fleet) {
+        final EC2FleetCloud cloud = mock(EC2FleetCloud.class);
+        Whitebox.setInternalState(cloud, "name", name, Cloud.class);
+        when(cloud.getFleet()).thenReturn(fleet);
+        return cloud;
+    }
+
+}
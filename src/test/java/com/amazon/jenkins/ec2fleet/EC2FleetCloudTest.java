@@ -1,11 +1,13 @@
 package com.amazon.jenkins.ec2fleet;
 
 import com.amazon.jenkins.ec2fleet.aws.EC2Api;
+import com.amazon.jenkins.ec2fleet.aws.FleetInstance;
 import com.amazon.jenkins.ec2fleet.fleet.AutoScalingGroupFleet;
 import com.amazon.jenkins.ec2fleet.fleet.EC2Fleet;
 import com.amazon.jenkins.ec2fleet.fleet.EC2Fleets;
 import com.amazon.jenkins.ec2fleet.fleet.EC2SpotFleet;
 import com.amazon.jenkins.ec2fleet.aws.RegionInfo;
+import com.amazon.jenkins.ec2fleet.aws.SingleFlight;
 import com.amazon.jenkins.ec2fleet.aws.AwsPermissionChecker;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.ec2.AmazonEC2;
@@ -47,20 +49,27 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
@@ -68,6 +77,8 @@ import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.nullable;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -159,6 +170,8 @@ public class EC2FleetCloudTest {
     @After
     public void after() {
         Registry.setEc2Api(new EC2Api());
+        // UI reads are cached for short time, make sure each test gets own result
+        SingleFlight.get().invalidateAll();
     }
 
     @Test
@@ -403,6 +416,129 @@ public class EC2FleetCloudTest {
         assertEquals(5, fleetCloud.getToAdd());
     }
 
+    @Test
+    public void pushCapacity_shouldModifyOnceForMultipleProvisions() {
+        // given
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats("", 5, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 2);
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 1);
+
+        // when
+        fleetCloud.pushCapacity();
+        fleetCloud.pushCapacity();
+
+        // then
+        verify(ec2Fleet, times(1)).modify("credId", "region", "", "fleetId", 8, 0, 10);
+        assertEquals(0, fleetCloud.getToAdd());
+        assertEquals(8, fleetCloud.getStats().getNumDesired());
+        assertEquals(3, fleetCloud.getPlannedNodeTracker().size());
+        assertEquals(0, fleetCloud.getPlannedNodeTracker().getUnscaledCount());
+    }
+
+    @Test
+    public void pushCapacity_shouldKeepToAddIfModifyFailed() {
+        // given
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+        doThrow(new UnsupportedOperationException("test")).when(ec2Fleet)
+                .modify(anyString(), anyString(), anyString(), anyString(), anyInt(), anyInt(), anyInt());
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats("", 5, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 2);
+
+        // when
+        fleetCloud.pushCapacity();
+
+        // then
+        assertEquals(2, fleetCloud.getToAdd());
+        assertEquals(5, fleetCloud.getStats().getNumDesired());
+        assertEquals(2, fleetCloud.getPlannedNodeTracker().getUnscaledCount());
+    }
+
+    @Test
+    public void pushCapacity_shouldReduceTargetCapacityForScheduledTerminationsOnlyOnce() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(new HashMap<String, FleetInstance>());
+        // constructor and update after push
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()))
+                .thenReturn(new FleetStateStats("fleetId", 6, FleetStateStats.State.active(),
+                        Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats("fleetId", 5, FleetStateStats.State.active(),
+                Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+        fleetCloud.scheduleToTerminate("i-0", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 2);
+
+        // when
+        fleetCloud.pushCapacity();
+
+        // then
+        verify(ec2Fleet).modify("credId", "region", "", "fleetId", 6, 0, 10);
+        assertEquals(6, fleetCloud.getStats().getNumDesired());
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, Collections.singleton("i-0"));
+        verify(ec2Fleet, times(2)).modify("credId", "region", "", "fleetId", 6, 0, 10);
+        assertTrue(fleetCloud.getInstanceIdsToTerminate().isEmpty());
+    }
+
+    @Test
+    public void provision_withCapacityPushOnProvisionShouldModifyFleetWithoutUpdate() {
+        // given
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+        fleetCloud.setCapacityPushOnProvision(true);
+
+        fleetCloud.setStats(new FleetStateStats("", 5, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        // when
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 2);
+        fleetCloud.provision(new Cloud.CloudState(null, 0), 2);
+
+        // then
+        verify(ec2Fleet, timeout(5000).times(1)).modify("credId", "region", "", "fleetId", 9, 0, 10);
+    }
+
     @Test
     public void provision_shouldProvisionNoneIfNotYetUpdated() {
         // given
@@ -614,6 +750,76 @@ public class EC2FleetCloudTest {
         }}, fleetCloud.getInstanceIdsToTerminate());
     }
 
+    @Test
+    public void scheduleToTerminate_concurrentCallsRemoveNoMoreMin() throws InterruptedException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        final EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "", "", null, null, false,
+                false, 0, 5, 20, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        final Set<String> instanceIds = new HashSet<>();
+        for (int i = 0; i < 20; i++) instanceIds.add("i-" + i);
+        fleetCloud.setStats(new FleetStateStats("", 20, FleetStateStats.State.active(),
+                instanceIds, Collections.<String, Double>emptyMap()));
+
+        // when
+        final AtomicInteger scheduled = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>();
+        for (final String instanceId : instanceIds) {
+            threads.add(new Thread(() -> {
+                if (fleetCloud.scheduleToTerminate(instanceId, false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)) {
+                    scheduled.incrementAndGet();
+                }
+            }));
+        }
+        for (final Thread thread : threads) thread.start();
+        for (final Thread thread : threads) thread.join();
+
+        // then
+        assertEquals(15, scheduled.get());
+        assertEquals(15, fleetCloud.getInstanceIdsToTerminate().size());
+    }
+
+    @Test
+    public void scheduleToTerminate_batchTakeCandidatesInOrderUpToMin() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "", "", null, null, false,
+                false, 0, 2, 5, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats("", 4, FleetStateStats.State.active(),
+                new HashSet<>(Arrays.asList("i-1", "i-2", "i-3", "i-4")), Collections.<String, Double>emptyMap()));
+
+        final Map<String, EC2AgentTerminationReason> candidates = new LinkedHashMap<>();
+        candidates.put("i-3", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        candidates.put("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        candidates.put("i-2", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        candidates.put("i-4", EC2AgentTerminationReason.MAX_TOTAL_USES_EXHAUSTED);
+
+        // when
+        final Set<String> scheduled = fleetCloud.scheduleToTerminate(candidates);
+
+        // then
+        assertEquals(new HashSet<>(Arrays.asList("i-3", "i-1", "i-4")), scheduled);
+        assertEquals(scheduled, fleetCloud.getInstanceIdsToTerminate().keySet());
+    }
+
     @Test
     public void update_shouldDoNothingIfNoTerminationOrProvisionAndFleetIsEmpty() {
         // given
@@ -726,6 +932,160 @@ public class EC2FleetCloudTest {
         assertEquals(0, fleetCloud.getToAdd());
     }
 
+    @Test
+    public void migrateStateFrom_newCloudTakesStateOfReplacedCloud() {
+        // given
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 5, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud oldCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+        for (int i = 0; i < 3; i++) oldCloud.provision(new Cloud.CloudState(null, 0), 1);
+        oldCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+
+        EC2FleetCloud newCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+        newCloud.provision(new Cloud.CloudState(null, 0), 1);
+
+        // when
+        newCloud.migrateStateFrom(oldCloud);
+
+        // then
+        assertEquals(4, newCloud.getToAdd());
+        assertEquals(4, newCloud.getPlannedNodeTracker().size());
+        assertEquals(Collections.singleton("i-1"), newCloud.getInstanceIdsToTerminate().keySet());
+        assertEquals(0, oldCloud.getToAdd());
+        assertEquals(0, oldCloud.getPlannedNodeTracker().size());
+        assertEquals(0, oldCloud.getInstanceIdsToTerminate().size());
+        // replaced cloud is retired
+        assertEquals(0, oldCloud.provision(new Cloud.CloudState(null, 0), 1).size());
+        oldCloud.update();
+        verify(ec2Fleet, never()).modify(anyString(), anyString(), anyString(), anyString(), anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void migrateStateFrom_failedTerminationOfReplacedCloudIsRetriedByNewCloud() throws InterruptedException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+        final CountDownLatch migrated = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            migrated.await(5, TimeUnit.SECONDS);
+            throw new AmazonEC2Exception("test");
+        }).when(ec2Api).terminateInstances(any(AmazonEC2.class), any(Collection.class));
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 4, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud oldCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+        oldCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        oldCloud.update();
+
+        EC2FleetCloud newCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+
+        // when
+        newCloud.migrateStateFrom(oldCloud);
+        migrated.countDown();
+
+        // then
+        for (int i = 0; i < 100 && newCloud.getTerminationRetries().isEmpty(); i++) Thread.sleep(50);
+        assertEquals(Collections.singleton("i-1"), newCloud.getTerminationRetries());
+        assertTrue(oldCloud.getTerminationRetries().isEmpty());
+    }
+
+    @Test
+    public void migrateStateFrom_newCloudReducesCapacityForInstancesTerminatedWhileFleetModifying() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final FleetStateStats modifying = new FleetStateStats("fleetId", 4, FleetStateStats.State.modifying(""),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+        final FleetStateStats active = new FleetStateStats("fleetId", 4, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+        // old cloud constructor and update, new cloud constructor and update
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(modifying, modifying, modifying, active);
+
+        EC2FleetCloud oldCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+        oldCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        oldCloud.scheduleToTerminate("i-2", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        oldCloud.update();
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-2")));
+
+        EC2FleetCloud newCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+
+        // when
+        newCloud.migrateStateFrom(oldCloud);
+        newCloud.update();
+
+        // then
+        verify(ec2Fleet).modify(anyString(), anyString(), anyString(), eq("fleetId"), eq(2), eq(0), eq(10));
+    }
+
+    @Test
+    public void migrateStateFrom_newCloudDoesNotReduceCapacityAgainForPushedTermination() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(new HashMap<String, FleetInstance>());
+        // old cloud constructor, new cloud constructor and update after push
+        final FleetStateStats pushed = new FleetStateStats("fleetId", 6, FleetStateStats.State.active(),
+                Collections.singleton("i-0"), Collections.<String, Double>emptyMap());
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("", 0, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()))
+                .thenReturn(pushed);
+
+        EC2FleetCloud oldCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+        oldCloud.setStats(new FleetStateStats("fleetId", 5, FleetStateStats.State.active(),
+                Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+        oldCloud.scheduleToTerminate("i-0", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        oldCloud.provision(new Cloud.CloudState(null, 0), 2);
+        oldCloud.pushCapacity();
+        verify(ec2Fleet).modify("credId", "region", "", "fleetId", 6, 0, 10);
+
+        EC2FleetCloud newCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0, 0,
+                10, false, false, noScaling);
+
+        // when
+        newCloud.migrateStateFrom(oldCloud);
+        newCloud.update();
+
+        // then
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, Collections.singleton("i-0"));
+        verify(ec2Fleet, times(2)).modify("credId", "region", "", "fleetId", 6, 0, 10);
+        verify(ec2Fleet, never()).modify("credId", "region", "", "fleetId", 5, 0, 10);
+    }
+
     @Test
     public void update_shouldNotCountScheduledToTerminateWhenScaleUp() {
         // given
@@ -782,7 +1142,41 @@ public class EC2FleetCloudTest {
 
         // then
         verify(ec2Fleet).modify(anyString(), anyString(), anyString(), eq("fleetId"), eq(2), eq(0), eq(10));
-        verify(ec2Api).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-2")));
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-2")));
+    }
+
+    @Test
+    public void update_givenFailedTerminationShouldRetryOnNextUpdateWithoutCapacityChange() throws InterruptedException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+        doThrow(new AmazonEC2Exception("test")).doNothing()
+                .when(ec2Api).terminateInstances(any(AmazonEC2.class), any(Collection.class));
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 4, FleetStateStats.State.active(),
+                        Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats("", 4, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap()));
+
+        fleetCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        fleetCloud.update();
+
+        // when
+        for (int i = 0; i < 100 && fleetCloud.getTerminationRetries().isEmpty(); i++) Thread.sleep(50);
+        assertEquals(Collections.singleton("i-1"), fleetCloud.getTerminationRetries());
+        fleetCloud.update();
+
+        // then
+        verify(ec2Api, timeout(5000).times(2)).terminateInstances(amazonEC2, Collections.singleton("i-1"));
+        verify(ec2Fleet, times(1)).modify(anyString(), anyString(), anyString(), anyString(), anyInt(), anyInt(), anyInt());
+        assertEquals(0, fleetCloud.getInstanceIdsToTerminate().size());
     }
 
     @Test
@@ -794,8 +1188,8 @@ public class EC2FleetCloudTest {
                 .withPublicIpAddress("p-ip")
                 .withInstanceId("i-0");
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -828,6 +1222,180 @@ public class EC2FleetCloudTest {
         assertEquals(Node.Mode.NORMAL, actualFleetNode.getMode());
     }
 
+    @Test
+    public void update_withTagDiscoveryDescribeInstancesByTagOnly() throws IOException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0")));
+        when(ec2Api.describeInstancesByTag(amazonEC2, "aws:ec2spot:fleet-request-id", "fleetId")).thenReturn(instanceIdMap);
+        when(ec2Fleet.getInstanceTagKey()).thenReturn("aws:ec2spot:fleet-request-id");
+
+        final FleetStateStats withoutInstances = new FleetStateStats("fleetId", 1, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(withoutInstances);
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString(), eq(false)))
+                .thenReturn(withoutInstances);
+
+        mockNodeCreatingPart();
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
+                false, 0, 0, 1, 0, 1, false,
+                false, "-1", false,
+                0, 0, 10, false, false, noScaling);
+        fleetCloud.setTagDiscovery(true);
+
+        ArgumentCaptor<Node> nodeCaptor = ArgumentCaptor.forClass(Node.class);
+        doNothing().when(jenkins).addNode(nodeCaptor.capture());
+
+        // when
+        FleetStateStats stats = fleetCloud.update();
+
+        // then
+        assertEquals(Collections.singleton("i-0"), stats.getInstances());
+        assertEquals(1, stats.getNumActive());
+        assertEquals("i-0", nodeCaptor.getValue().getNodeName());
+        verify(ec2Api, never()).describeInstances(any(AmazonEC2.class), any(Set.class));
+        verify(ec2Fleet).getState("credId", "region", "", "fleetId", false);
+    }
+
+    @Test
+    public void update_withStateCoalescingGetStateByBatch() throws IOException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0")));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(instanceIdMap);
+
+        final FleetStateStats stats = new FleetStateStats("fleetId", 1, FleetStateStats.State.active(),
+                Collections.singleton("i-0"), Collections.<String, Double>emptyMap());
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(stats);
+        PowerMockito.when(ec2Fleet.getStateBatch(anyString(), anyString(), anyString(), any(Collection.class)))
+                .thenReturn(Collections.singletonMap("fleetId", stats));
+
+        mockNodeCreatingPart();
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
+                false, 0, 0, 1, 0, 1, false,
+                false, "-1", false,
+                0, 0, 10, false, false, noScaling);
+        fleetCloud.setStateCoalescing(true);
+
+        ArgumentCaptor<Node> nodeCaptor = ArgumentCaptor.forClass(Node.class);
+        doNothing().when(jenkins).addNode(nodeCaptor.capture());
+
+        // when
+        FleetStateStats updated = fleetCloud.update();
+
+        // then
+        assertEquals(Collections.singleton("i-0"), updated.getInstances());
+        assertEquals("i-0", nodeCaptor.getValue().getNodeName());
+        verify(ec2Fleet).getStateBatch("credId", "region", "", Collections.singleton("fleetId"));
+        // only by constructor
+        verify(ec2Fleet, times(1)).getState(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void update_withPendingInstancePollAddNodeWhenInstanceGetsIpWithoutNextUpdate() throws IOException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final HashMap<String, FleetInstance> withoutIp = new HashMap<>();
+        withoutIp.put("i-0", FleetInstance.from(new Instance().withInstanceId("i-0")));
+        final HashMap<String, FleetInstance> withIp = new HashMap<>();
+        withIp.put("i-0", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0")));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(withoutIp, withIp);
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 0, FleetStateStats.State.active(),
+                        Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+
+        mockNodeCreatingPart();
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
+                false, 0, 0, 1, 0, 1, false,
+                false, "-1", false,
+                0, 0, 10, false, false, noScaling);
+        fleetCloud.setPendingInstancePoll(true);
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(jenkins, never()).addNode(any(Node.class));
+        verify(ec2Api, timeout(5000).times(2)).describeInstances(amazonEC2, Collections.singleton("i-0"));
+        verify(jenkins, timeout(5000)).addNode(any(Node.class));
+    }
+
+    @Test
+    public void update_withPendingInstancePollRetryPollIfDescribeFailed() throws IOException {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final HashMap<String, FleetInstance> withoutIp = new HashMap<>();
+        withoutIp.put("i-0", FleetInstance.from(new Instance().withInstanceId("i-0")));
+        final HashMap<String, FleetInstance> withIp = new HashMap<>();
+        withIp.put("i-0", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0")));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class)))
+                .thenReturn(withoutIp)
+                .thenThrow(new UnsupportedOperationException("test"))
+                .thenReturn(withIp);
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 0, FleetStateStats.State.active(),
+                        Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+
+        mockNodeCreatingPart();
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
+                false, 0, 0, 1, 0, 1, false,
+                false, "-1", false,
+                0, 0, 10, false, false, noScaling);
+        fleetCloud.setPendingInstancePoll(true);
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(ec2Api, timeout(5000).times(3)).describeInstances(amazonEC2, Collections.singleton("i-0"));
+        verify(jenkins, timeout(5000)).addNode(any(Node.class));
+    }
+
+    @Test
+    public void update_withoutPendingInstancePollLeaveInstanceWithoutIpToNextUpdate() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final HashMap<String, FleetInstance> withoutIp = new HashMap<>();
+        withoutIp.put("i-0", FleetInstance.from(new Instance().withInstanceId("i-0")));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(withoutIp);
+
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(new FleetStateStats("fleetId", 0, FleetStateStats.State.active(),
+                        Collections.singleton("i-0"), Collections.<String, Double>emptyMap()));
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
+                false, 0, 0, 1, 0, 1, false,
+                false, "-1", false,
+                0, 0, 10, false, false, noScaling);
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(ec2Api, after(1500).times(1)).describeInstances(any(AmazonEC2.class), any(Set.class));
+        verify(jenkins, never()).addNode(any(Node.class));
+    }
+
     @Test
     public void update_shouldTagNewNodesBeforeAdding() throws IOException {
         // given
@@ -835,9 +1403,9 @@ public class EC2FleetCloudTest {
 
         final Instance instance1 = new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0");
         final Instance instance2 = new Instance().withPublicIpAddress("p-ip").withInstanceId("i-1");
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance1);
-        instanceIdMap.put("i-1", instance2);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance1));
+        instanceIdMap.put("i-1", FleetInstance.from(instance2));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -872,8 +1440,8 @@ public class EC2FleetCloudTest {
         when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
 
         final Instance instance1 = new Instance().withPublicIpAddress("p-ip").withInstanceId("i-0");
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance1);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance1));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -913,8 +1481,8 @@ public class EC2FleetCloudTest {
                 .withPublicIpAddress("p-ip")
                 .withInstanceId("i-0");
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -955,8 +1523,8 @@ public class EC2FleetCloudTest {
         final Instance instance = new Instance()
                 .withPublicIpAddress("p-ip")
                 .withInstanceId("i-0");
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -995,8 +1563,8 @@ public class EC2FleetCloudTest {
                 .withPublicIpAddress("p-ip")
                 .withInstanceType(instanceType)
                 .withInstanceId("i-0");
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1059,7 +1627,7 @@ public class EC2FleetCloudTest {
         // then
         // should reset list to empty
         verify(ec2Fleet).modify(anyString(), anyString(), anyString(), anyString(), anyInt(), anyInt(), anyInt());
-        Assert.assertEquals(0, fleetCloud.getPlannedNodesCache().size());
+        Assert.assertEquals(0, fleetCloud.getPlannedNodeTracker().size());
     }
 
     @Test
@@ -1102,7 +1670,7 @@ public class EC2FleetCloudTest {
 
         // then
         // should reset list to empty
-        Assert.assertEquals(0, fleetCloud.getPlannedNodesCache().size());
+        Assert.assertEquals(0, fleetCloud.getPlannedNodeTracker().size());
         // make sure all trimmed planned nodes were cancelled
         Assert.assertEquals(10, plannedNodes.size());
         for (NodeProvisioner.PlannedNode plannedNode : plannedNodes) {
@@ -1151,7 +1719,7 @@ public class EC2FleetCloudTest {
 
         // then
         // should be two, planned one added before update another during update
-        Assert.assertEquals(2, fleetCloud.getPlannedNodesCache().size());
+        Assert.assertEquals(2, fleetCloud.getPlannedNodeTracker().size());
     }
 
     @Test
@@ -1164,8 +1732,8 @@ public class EC2FleetCloudTest {
                 .withPublicIpAddress("p-ip")
                 .withInstanceType(instanceType)
                 .withInstanceId("i-0");
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1210,8 +1778,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId("i-0");
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1249,10 +1817,10 @@ public class EC2FleetCloudTest {
     public void update_shouldTerminateIdleOrNullInstancesOnly() {
         // given
         when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
-        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(new HashMap<String, Instance>(){{
-                put("i-1", new Instance().withPublicIpAddress("p-ip").withInstanceId("i-1"));
-                put("i-2", new Instance().withPublicIpAddress("p-ip").withInstanceId("i-2"));
-                put("i-3", new Instance().withPublicIpAddress("p-ip").withInstanceId("i-3"));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(new HashMap<String, FleetInstance>(){{
+                put("i-1", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-1")));
+                put("i-2", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-2")));
+                put("i-3", FleetInstance.from(new Instance().withPublicIpAddress("p-ip").withInstanceId("i-3")));
             }});
         PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(new FleetStateStats("fleetId", 0, FleetStateStats.State.active(),
@@ -1281,7 +1849,7 @@ public class EC2FleetCloudTest {
         fleetCloud.update();
 
         // then - i-2 remains scheduled for termination, for next update cycle as it is busy
-        verify(ec2Api).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-3")));
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-3")));
         assertEquals(new HashSet<>(Arrays.asList("i-2")), fleetCloud.getInstanceIdsToTerminate().keySet());
     }
 
@@ -1291,7 +1859,7 @@ public class EC2FleetCloudTest {
         final int minSpareSize = 2;
         when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1331,8 +1899,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1373,8 +1941,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1415,8 +1983,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1457,8 +2025,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1499,8 +2067,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1545,8 +2113,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1576,7 +2144,7 @@ public class EC2FleetCloudTest {
     }
 
     @Test
-    public void update_givenFleetInModifyingShouldNotDoAnyUpdates() throws IOException {
+    public void update_givenFleetInModifyingShouldRegisterNodesWithoutCapacityChange() throws IOException {
         // given
         when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
 
@@ -1587,8 +2155,8 @@ public class EC2FleetCloudTest {
                 .withInstanceType(instanceType)
                 .withInstanceId(instanceId);
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put(instanceId, instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put(instanceId, FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1619,14 +2187,90 @@ public class EC2FleetCloudTest {
         FleetStateStats newStats = fleetCloud.update();
 
         // then
-        Assert.assertSame(initialState, newStats);
-        Assert.assertSame(initialState, fleetCloud.getStats());
+        Assert.assertTrue(newStats.getState().isModifying());
+        Assert.assertEquals(Collections.singleton(instanceId), newStats.getInstances());
+        Assert.assertSame(newStats, fleetCloud.getStats());
         verify(ec2Fleet, never()).modify(any(String.class), any(String.class), any(String.class), any(String.class), anyInt(), anyInt(), anyInt());
-        verify(jenkins, never()).addNode(any(Node.class));
+        verify(jenkins).addNode(any(Node.class));
     }
 
     @Test
-    public void update_scheduledFuturesExecutesAfterTimeout() throws IOException, InterruptedException {
+    public void update_givenFleetInModifyingShouldTerminateAndDeferCapacityChange() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final FleetStateStats modifying = new FleetStateStats("fleetId", 4, FleetStateStats.State.modifying(""),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+        final FleetStateStats active = new FleetStateStats("fleetId", 4, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+        // constructor, update in modification, update after
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(modifying, modifying, active);
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 0, 10, 0, 1, true,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+
+        fleetCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        fleetCloud.scheduleToTerminate("i-2", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(ec2Fleet, never()).modify(anyString(), anyString(), anyString(), anyString(), anyInt(), anyInt(), anyInt());
+        verify(ec2Api, timeout(5000)).terminateInstances(amazonEC2, new HashSet<>(Arrays.asList("i-1", "i-2")));
+        // terminated, only target capacity is waiting
+        assertTrue(fleetCloud.getInstanceIdsToTerminate().isEmpty());
+
+        // when
+        fleetCloud.update();
+
+        // then
+        verify(ec2Fleet).modify(anyString(), anyString(), anyString(), eq("fleetId"), eq(2), eq(0), eq(10));
+        verify(ec2Api, after(1000).times(1)).terminateInstances(any(AmazonEC2.class), any(Collection.class));
+        assertTrue(fleetCloud.getInstanceIdsToTerminate().isEmpty());
+        assertEquals(0, fleetCloud.getModifyingMillis());
+    }
+
+
+    @Test
+    public void scheduleToTerminate_givenInstancesTerminatedWhileFleetModifyingShouldNotCountThemTwiceForMinSize() {
+        // given
+        when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
+
+        final FleetStateStats modifying = new FleetStateStats("fleetId", 3, FleetStateStats.State.modifying(""),
+                new HashSet<>(Arrays.asList("i-0", "i-1", "i-2")), Collections.<String, Double>emptyMap());
+        PowerMockito.when(ec2Fleet.getState(anyString(), anyString(), anyString(), anyString())).thenReturn(modifying);
+
+        // terminated instance is not described any more, others have no IP yet so nodes are not created
+        final HashMap<String, FleetInstance> described = new HashMap<>();
+        described.put("i-1", FleetInstance.from(new Instance().withInstanceId("i-1")));
+        described.put("i-2", FleetInstance.from(new Instance().withInstanceId("i-2")));
+        when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(described);
+
+        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
+                "", "fleetId", "", null, null, false,
+                false, 0, 1, 10, 0, 1, false,
+                false, "-1", false, 0,
+                0, 10, false, false, noScaling);
+
+        fleetCloud.setStats(new FleetStateStats(modifying, 3));
+        assertTrue(fleetCloud.scheduleToTerminate("i-0", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG));
+
+        // when
+        fleetCloud.update();
+
+        // then
+        assertEquals(2, fleetCloud.getStats().getNumActive());
+        assertTrue(fleetCloud.scheduleToTerminate("i-1", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG));
+        assertFalse(fleetCloud.scheduleToTerminate("i-2", false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG));
+    }
+
+    @Test
+    public void update_scheduledFuturesExecutesAfterTimeout() throws IOException, InterruptedException, ExecutionException {
         // given
         when(ec2Api.connect(any(String.class), any(String.class), anyString())).thenReturn(amazonEC2);
 
@@ -1647,13 +2291,15 @@ public class EC2FleetCloudTest {
 
         // when
         Collection<NodeProvisioner.PlannedNode> r = fleetCloud.provision(new Cloud.CloudState(null, 0), 1);
-        ScheduledFuture<?> scheduledFuture = fleetCloud.getPlannedNodeScheduledFutures().get(0);
 
-        // sleep for a little more than the timeout to let the scheduled future execute
-        Thread.sleep(TimeUnit.SECONDS.toMillis(fleetCloud.getScheduledFutureTimeoutSec()) + 200);
+        // sleep for a little more than the timeout to let the scale timeout fire
+        Thread.sleep(TimeUnit.SECONDS.toMillis(fleetCloud.getScheduledFutureTimeoutSec()) + 500);
 
         // then
-        Assert.assertTrue(scheduledFuture.isDone());
+        final Future<Node> future = r.iterator().next().future;
+        Assert.assertTrue(future.isDone());
+        Assert.assertNull(future.get());
+        Assert.assertEquals(0, fleetCloud.getPlannedNodeTracker().size());
     }
 
     @Test
@@ -1678,13 +2324,13 @@ public class EC2FleetCloudTest {
 
         // when
         Collection<NodeProvisioner.PlannedNode> r = fleetCloud.provision(new Cloud.CloudState(null, 0), 1);
-        ScheduledFuture<?> scheduledFuture = fleetCloud.getPlannedNodeScheduledFutures().get(0);
 
         // call update before the timeout expires
         fleetCloud.update();
 
         // then
-        Assert.assertTrue(scheduledFuture.isCancelled());
+        Assert.assertEquals(0, fleetCloud.getPlannedNodeTracker().getUnscaledCount());
+        Assert.assertEquals(1, fleetCloud.getPlannedNodeTracker().size());
     }
 
     @Test
@@ -1728,8 +2374,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                             .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1780,8 +2426,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1832,8 +2478,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1884,8 +2530,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1936,8 +2582,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -1988,8 +2634,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -2040,8 +2686,8 @@ public class EC2FleetCloudTest {
                 .withState(new InstanceState()
                         .withName(InstanceStateName.Running));
 
-        final HashMap<String, Instance> instanceIdMap = new HashMap<>();
-        instanceIdMap.put("i-0", instance);
+        final HashMap<String, FleetInstance> instanceIdMap = new HashMap<>();
+        instanceIdMap.put("i-0", FleetInstance.from(instance));
 
         when(ec2Api.describeInstances(any(AmazonEC2.class), any(Set.class))).thenReturn(
                 instanceIdMap);
@@ -2071,67 +2717,6 @@ public class EC2FleetCloudTest {
         assertEquals(fleetCloud.getNumExecutors(), actualFleetNode.getNumExecutors());
     }
 
-    @Test
-    public void removeScheduledFutures_success() {
-        // given
-        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
-                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
-                false, 0, 0, 1, 0, 1, false,
-                true, "-1", false,
-                0, 0, 10, false, false, weightedScaling);
-
-        ArrayList<ScheduledFuture<?>> scheduledFutures = new ArrayList<>();
-        scheduledFutures.add(mock(ScheduledFuture.class));
-        fleetCloud.setPlannedNodeScheduledFutures(scheduledFutures);
-
-        // when
-        boolean result = fleetCloud.removePlannedNodeScheduledFutures(1);
-
-        // then
-        Assert.assertEquals(0, fleetCloud.getPlannedNodeScheduledFutures().size());
-        Assert.assertTrue(result);
-    }
-
-    @Test
-    public void removeScheduledFutures_scheduledFutureIsEmpty() {
-        // given
-        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
-                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
-                false, 0, 0, 1, 0, 1, false,
-                true, "-1", false,
-                0, 0, 10, false, false, weightedScaling);
-
-        ArrayList<ScheduledFuture<?>> scheduledFutures = new ArrayList<>();
-        fleetCloud.setPlannedNodeScheduledFutures(scheduledFutures);
-
-        // when
-        boolean result = fleetCloud.removePlannedNodeScheduledFutures(1);
-
-        // then
-        Assert.assertFalse(result);
-    }
-
-    @Test
-    public void removeScheduledFutures_numToRemoveIsZero() {
-        // given
-        EC2FleetCloud fleetCloud = new EC2FleetCloud("TestCloud", "credId", null, "region",
-                "", "fleetId", "", null, PowerMockito.mock(ComputerConnector.class), false,
-                false, 0, 0, 1, 0, 1, false,
-                true, "-1", false,
-                0, 0, 10, false, false, weightedScaling);
-
-        ArrayList<ScheduledFuture<?>> scheduledFutures = new ArrayList<>();
-        scheduledFutures.add(mock(ScheduledFuture.class));
-        fleetCloud.setPlannedNodeScheduledFutures(scheduledFutures);
-
-        // when
-        boolean result = fleetCloud.removePlannedNodeScheduledFutures(0);
-
-        // then
-        Assert.assertEquals(1, fleetCloud.getPlannedNodeScheduledFutures().size());
-        Assert.assertFalse(result);
-    }
-
     @Test
     public void descriptorImpl_doFillRegionItems_returnStaticRegionsIfApiCallFailed() {
         AmazonEC2Client amazonEC2Client = mock(AmazonEC2Client.class);
@@ -2288,8 +2873,49 @@ public class EC2FleetCloudTest {
 
         assertEquals(1, r.size());
         assertEquals("", r.get(0).value);
-        verify(ec2SpotFleet).describe("", "", "", r, "", false);
-        verify(autoScalingGroupFleet).describe("", "", "", r, "", false);
+        // fleets describe into shared model, options are copied to result
+        verify(ec2SpotFleet).describe(eq(""), eq(""), eq(""), any(ListBoxModel.class), eq(""), eq(false));
+        verify(autoScalingGroupFleet).describe(eq(""), eq(""), eq(""), any(ListBoxModel.class), eq(""), eq(false));
+    }
+
+    @Test
+    public void descriptorImpl_doFillFleetItems_sameRequestShortlyAfterReuseDescribedFleets() {
+        final EC2Fleet ec2SpotFleet = mock(EC2SpotFleet.class);
+        doAnswer(invocation -> {
+            ((ListBoxModel) invocation.getArgument(3)).add(new ListBoxModel.Option("EC2 Spot Fleet - f1", "f1", false));
+            return null;
+        }).when(ec2SpotFleet).describe(anyString(), anyString(), anyString(), any(ListBoxModel.class), anyString(), anyBoolean());
+        when(EC2Fleets.all()).thenReturn(Collections.singletonList(ec2SpotFleet));
+
+        ListBoxModel first = new EC2FleetCloud.DescriptorImpl().doFillFleetItems(
+                false, "", "", "", "");
+        ListBoxModel second = new EC2FleetCloud.DescriptorImpl().doFillFleetItems(
+                false, "", "", "", "");
+
+        assertEquals(2, first.size());
+        assertEquals("f1", second.get(1).value);
+        assertNotSame(first.get(1), second.get(1));
+        verify(ec2SpotFleet, times(1)).describe(anyString(), anyString(), anyString(), any(ListBoxModel.class), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void descriptorImpl_doFillFleetItems_keepFleetsOfPreviousTypesIfException() {
+        final EC2Fleet ec2SpotFleet = mock(EC2SpotFleet.class);
+        doAnswer(invocation -> {
+            ((ListBoxModel) invocation.getArgument(3)).add(new ListBoxModel.Option("EC2 Spot Fleet - f1", "f1", false));
+            return null;
+        }).when(ec2SpotFleet).describe(anyString(), anyString(), anyString(), any(ListBoxModel.class), anyString(), anyBoolean());
+
+        final EC2Fleet autoScalingGroupFleet = mock(AutoScalingGroupFleet.class);
+        doThrow(new RuntimeException("test")).when(autoScalingGroupFleet).describe(
+                anyString(), anyString(), anyString(), any(ListBoxModel.class), anyString(), anyBoolean());
+        when(EC2Fleets.all()).thenReturn(Arrays.asList(ec2SpotFleet, autoScalingGroupFleet));
+
+        ListBoxModel r = new EC2FleetCloud.DescriptorImpl().doFillFleetItems(
+                false, "", "", "", "");
+
+        assertEquals(2, r.size());
+        assertEquals("f1", r.get(1).value);
     }
 
     @Test
@@ -2459,6 +3085,41 @@ public class EC2FleetCloudTest {
         assertFalse(ec2FleetCloud.hasUnlimitedUsesForNodes());
     }
 
+    @Test
+    public void copyOptionsFrom_shouldCopyAllOptions() {
+        EC2FleetCloud oldCloud = new EC2FleetCloud(
+                "CloudName", null, null, null, null, null,
+                null, null, null, false,
+                false, null, 0, 1, 0,
+                0, true, false, "-1", false
+                , 0, 0,
+                45, false, false, noScaling);
+        oldCloud.setDescribeConcurrency(3);
+        oldCloud.setDescribeCoalescing(true);
+        oldCloud.setCapacityPushOnProvision(true);
+        oldCloud.setBatchIdleScan(true);
+        oldCloud.setTagDiscovery(true);
+        oldCloud.setStateCoalescing(true);
+        oldCloud.setPendingInstancePoll(true);
+
+        EC2FleetCloud cloud = new EC2FleetCloud(
+                "CloudName", null, null, null, null, null,
+                null, null, null, false,
+                false, null, 0, 1, 0,
+                0, true, false, "-1", false
+                , 0, 0,
+                45, false, false, noScaling);
+        cloud.copyOptionsFrom(oldCloud);
+
+        assertEquals(3, cloud.getDescribeConcurrency());
+        assertTrue(cloud.isDescribeCoalescing());
+        assertTrue(cloud.isCapacityPushOnProvision());
+        assertTrue(cloud.isBatchIdleScan());
+        assertTrue(cloud.isTagDiscovery());
+        assertTrue(cloud.isStateCoalescing());
+        assertTrue(cloud.isPendingInstancePoll());
+    }
+
     private void mockNodeCreatingPart() {
         when(jenkins.getNodesObject()).thenReturn(mock(Nodes.class));
 
@@ -17,7 +17,8 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
-import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
@@ -42,6 +43,8 @@ public class EC2FleetOnlineCheckerTest {
     @Before
     public void before() throws Exception {
         when(node.getDisplayName()).thenReturn("MockEC2FleetCloud i-1");
+        when(node.getNodeName()).thenReturn("i-1");
+        PowerMockito.when(computer.getName()).thenReturn("i-1");
 
         PowerMockito.mockStatic(Jenkins.class);
 
@@ -75,7 +78,9 @@ public class EC2FleetOnlineCheckerTest {
         } catch (InterruptedException | ExecutionException e) {
             Assert.assertEquals("Failed to provision node. Could not connect to node '" + node.getDisplayName() + "' before timeout (100ms)", e.getCause().getMessage());
             Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
-            verify(computer, atLeast(2)).isOnline();
+            // no polling, only initial check
+            verify(computer, times(1)).isOnline();
+            Assert.assertEquals(0, EC2FleetOnlineChecker.getPendingCount());
         }
     }
 
@@ -105,32 +110,53 @@ public class EC2FleetOnlineCheckerTest {
     }
 
     @Test
-    public void shouldWaitIfOffline() throws InterruptedException, ExecutionException {
-        PowerMockito.when(computer.isOnline())
-                .thenReturn(false)
-                .thenReturn(false)
-                .thenReturn(false)
-                .thenReturn(true);
+    public void shouldFinishWithNodeWhenListenerNotifiedOnline() throws Exception {
+        EC2FleetOnlineChecker.start(node, future, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(1, EC2FleetOnlineChecker.getPendingCount());
 
-        EC2FleetOnlineChecker.start(node, future, 100, 10);
+        new EC2FleetOnlineChecker.Listener().onOnline(computer, null);
 
+        // no need to wait interval
+        Assert.assertSame(node, future.get(0, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, EC2FleetOnlineChecker.getPendingCount());
+        verify(computer, never()).connect(false);
+    }
+
+    @Test
+    public void shouldIgnoreListenerNotificationForOtherComputer() {
+        final Computer other = PowerMockito.mock(Computer.class);
+        PowerMockito.when(other.getName()).thenReturn("i-2");
+        EC2FleetOnlineChecker.start(node, future, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+
+        new EC2FleetOnlineChecker.Listener().onOnline(other, null);
+
+        Assert.assertFalse(future.isDone());
+        future.cancel(true);
+        Assert.assertEquals(0, EC2FleetOnlineChecker.getPendingCount());
+    }
+
+    @Test
+    public void shouldConnectAgainAfterIntervalIfLaunchFailed() throws InterruptedException, ExecutionException {
+        EC2FleetOnlineChecker.start(node, future, TimeUnit.MINUTES.toMillis(1), 10);
+
+        new EC2FleetOnlineChecker.Listener().onLaunchFailure(computer, null);
+        verify(computer, timeout(TimeUnit.SECONDS.toMillis(5))).connect(false);
+
+        new EC2FleetOnlineChecker.Listener().onOnline(computer, null);
         Assert.assertSame(node, future.get());
-        verify(computer, times(3)).connect(false);
     }
 
     @Test
     public void shouldWaitIfComputerIsNull() throws InterruptedException, ExecutionException {
-        PowerMockito.when(computer.isOnline()).thenReturn(true);
+        PowerMockito.when(node.toComputer()).thenReturn(null);
 
-        PowerMockito.when(node.toComputer())
-                .thenReturn(null)
-                .thenReturn(null)
-                .thenReturn(computer);
+        EC2FleetOnlineChecker.start(node, future, TimeUnit.MINUTES.toMillis(1), 10);
+        Assert.assertFalse(future.isDone());
 
-        EC2FleetOnlineChecker.start(node, future, 100, 10);
+        new EC2FleetOnlineChecker.Listener().onOnline(computer, null);
 
         Assert.assertSame(node, future.get());
-        verify(computer, times(1)).isOnline();
     }
 
 }
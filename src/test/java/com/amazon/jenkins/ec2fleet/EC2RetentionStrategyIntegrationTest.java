@@ -31,8 +31,10 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -92,7 +94,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         cloud.update();
 
         final ArgumentCaptor<TerminateInstancesRequest> argument = ArgumentCaptor.forClass(TerminateInstancesRequest.class);
-        verify(amazonEC2, times(1)).terminateInstances(argument.capture());
+        verify(amazonEC2, timeout(5000).times(1)).terminateInstances(argument.capture());
         assertTrue(argument.getAllValues().get(0).getInstanceIds().containsAll(Arrays.asList("i-1")));
     }
 
@@ -122,7 +124,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         // Make sure the scheduled for termination instances are terminated
         cloud.update();
 
-        verify((amazonEC2), times(1)).terminateInstances(argument.capture());
+        verify((amazonEC2), timeout(5000).times(1)).terminateInstances(argument.capture());
 
         final List<String> instanceIds = new ArrayList<String>();
         instanceIds.add("i-2");
@@ -163,7 +165,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         }
         cloud.update();
 
-        verify((amazonEC2), times(0)).terminateInstances(any());
+        verify((amazonEC2), after(2000).times(0)).terminateInstances(any());
         cancelTasks(rs);
     }
 
@@ -190,7 +192,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         }
         cloud.update();
 
-        verify((amazonEC2), times(1)).terminateInstances(argument.capture());
+        verify((amazonEC2), timeout(5000).times(1)).terminateInstances(argument.capture());
 
         final List<String> instanceIds = new ArrayList<String>();
         instanceIds.add("i-2");
@@ -219,7 +221,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         }
         cloud.update();
 
-        verify((amazonEC2), times(0)).terminateInstances(any());
+        verify((amazonEC2), after(2000).times(0)).terminateInstances(any());
     }
 
     @Test
@@ -243,7 +245,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         }
         cloud.update();
 
-        verify((amazonEC2), times(0)).terminateInstances(any());
+        verify((amazonEC2), after(2000).times(0)).terminateInstances(any());
     }
 
     @Test
@@ -269,7 +271,7 @@ public class EC2RetentionStrategyIntegrationTest extends IntegrationTest {
         cloud.update();
 
         final ArgumentCaptor<TerminateInstancesRequest> argument = ArgumentCaptor.forClass(TerminateInstancesRequest.class);
-        verify((amazonEC2)).terminateInstances(argument.capture());
+        verify((amazonEC2), timeout(5000)).terminateInstances(argument.capture());
         assertTrue(argument.getAllValues().get(0).getInstanceIds().containsAll(Arrays.asList("i-1", "i-2")));
     }
 }
@@ -225,6 +225,16 @@ public class EC2RetentionStrategyTest {
         inOrder.verify(computer).setAcceptingTasks(true);
     }
 
+    @Test
+    public void if_cloud_uses_batch_idle_scan_should_not_terminate_node() {
+        when(cloud.isBatchIdleScan()).thenReturn(true);
+
+        new EC2RetentionStrategy().check(computer);
+
+        verify(cloud, never()).scheduleToTerminate(anyString(), anyBoolean(), any(EC2AgentTerminationReason.class));
+        verify(computer, never()).setAcceptingTasks(anyBoolean());
+    }
+
     @Test
     public void if_computer_has_no_cloud_should_do_nothing() {
         when(computer.getCloud()).thenReturn(null);
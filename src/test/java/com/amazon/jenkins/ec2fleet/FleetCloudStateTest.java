@@ -0,0 +1,71 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FleetCloudStateTest {
+
+    private final FleetStateStats stats = new FleetStateStats("fleetId", 3, FleetStateStats.State.active(),
+            Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+
+    @Test
+    public void withTermination_doNotChangeOriginal() {
+        final FleetCloudState original = FleetCloudState.EMPTY.withStats(stats).withToAdd(2);
+
+        final FleetCloudState updated = original.withTermination("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+
+        Assert.assertTrue(original.getInstanceIdsToTerminate().isEmpty());
+        Assert.assertEquals(Collections.singletonMap("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG),
+                updated.getInstanceIdsToTerminate());
+        Assert.assertSame(stats, updated.getStats());
+        Assert.assertEquals(2, updated.getToAdd());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getInstanceIdsToTerminate_isUnmodifiable() {
+        FleetCloudState.EMPTY.withTermination("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)
+                .getInstanceIdsToTerminate().clear();
+    }
+
+    @Test
+    public void withTerminations_keepReasonOfAlreadyScheduled() {
+        final Map<String, EC2AgentTerminationReason> toTerminate = new HashMap<>();
+        toTerminate.put("i-1", EC2AgentTerminationReason.AGENT_DELETED);
+        toTerminate.put("i-2", EC2AgentTerminationReason.AGENT_DELETED);
+
+        final FleetCloudState state = FleetCloudState.EMPTY
+                .withTermination("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)
+                .withTerminations(toTerminate);
+
+        Assert.assertEquals(EC2AgentTerminationReason.IDLE_FOR_TOO_LONG, state.getInstanceIdsToTerminate().get("i-1"));
+        Assert.assertEquals(EC2AgentTerminationReason.AGENT_DELETED, state.getInstanceIdsToTerminate().get("i-2"));
+    }
+
+    @Test
+    public void withoutTerminations_removeOnlyGivenIds() {
+        final FleetCloudState state = FleetCloudState.EMPTY
+                .withTermination("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)
+                .withTermination("i-2", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)
+                .withoutTerminations(Arrays.asList("i-1", "i-3"));
+
+        Assert.assertEquals(Collections.singleton("i-2"), state.getInstanceIdsToTerminate().keySet());
+    }
+
+    @Test
+    public void retire_dropPendingChangesAndKeepStats() {
+        final FleetCloudState state = FleetCloudState.EMPTY.withStats(stats).withToAdd(2)
+                .withTermination("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG)
+                .retire();
+
+        Assert.assertTrue(state.isRetired());
+        Assert.assertSame(stats, state.getStats());
+        Assert.assertEquals(0, state.getToAdd());
+        Assert.assertTrue(state.getInstanceIdsToTerminate().isEmpty());
+    }
+
+}
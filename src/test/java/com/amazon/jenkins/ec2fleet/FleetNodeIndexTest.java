@@ -0,0 +1,139 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class, EC2FleetNode.class, Computer.class})
+public class FleetNodeIndexTest {
+
+    private final FleetNodeIndex index = new FleetNodeIndex();
+
+    @Test
+    public void isReady_falseUntilRebuild() {
+        final Jenkins jenkins = mock(Jenkins.class);
+        when(jenkins.getNodes()).thenReturn(Collections.<Node>emptyList());
+
+        Assert.assertFalse(index.isReady());
+        index.rebuild(jenkins);
+        Assert.assertTrue(index.isReady());
+    }
+
+    @Test
+    public void rebuild_indexFleetNodesWithBusyState() {
+        final EC2FleetNode busy = node("i-1", "a", "label");
+        final Computer computer = PowerMockito.mock(Computer.class);
+        PowerMockito.when(computer.countBusy()).thenReturn(2);
+        PowerMockito.when(busy.toComputer()).thenReturn(computer);
+        final EC2FleetNode idle = node("i-2", "a", "label");
+        final Jenkins jenkins = mock(Jenkins.class);
+        when(jenkins.getNodes()).thenReturn(Arrays.<Node>asList(busy, idle, mock(Node.class)));
+
+        index.rebuild(jenkins);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), index.getNodeNames("a"));
+        Assert.assertEquals(1, index.getBusyCount("a"));
+        Assert.assertEquals(1, index.getIdleCount("a"));
+    }
+
+    @Test
+    public void add_keepNodesByCloud() {
+        final EC2FleetNode a1 = node("i-1", "a", "label");
+        final EC2FleetNode b1 = node("i-2", "b", "label");
+
+        index.add(a1);
+        index.add(b1);
+
+        Assert.assertEquals(Collections.singleton("i-1"), index.getNodeNames("a"));
+        Assert.assertEquals(Collections.singleton("i-2"), index.getNodeNames("b"));
+        Assert.assertEquals(Collections.<String>emptySet(), index.getNodeNames("c"));
+
+        index.remove(a1);
+
+        Assert.assertEquals(Collections.<String>emptySet(), index.getNodeNames("a"));
+    }
+
+    @Test
+    public void add_replaceNodeWithSameNameKeepsBusyState() {
+        final EC2FleetNode old = node("i-1", "a", "label");
+        final EC2FleetNode replacement = node("i-1", "a", "label");
+        index.add(old);
+        index.taskAccepted("i-1");
+
+        index.add(replacement);
+        // remove event for old node after replacement is ignored
+        index.remove(old);
+
+        Assert.assertEquals(Collections.singleton("i-1"), index.getNodeNames("a"));
+        Assert.assertEquals(1, index.getBusyCount("a"));
+    }
+
+    @Test
+    public void taskAccepted_countNodeBusyUntilAllTasksCompleted() {
+        index.add(node("i-1", "a", "label"));
+        index.add(node("i-2", "a", "label"));
+
+        index.taskAccepted("i-1");
+        index.taskAccepted("i-1");
+        Assert.assertEquals(1, index.getBusyCount("a"));
+
+        index.taskCompleted("i-1");
+        Assert.assertEquals(1, index.getBusyCount("a"));
+
+        index.taskCompleted("i-1");
+        index.taskCompleted("i-1");
+        Assert.assertEquals(0, index.getBusyCount("a"));
+        Assert.assertEquals(2, index.getIdleCount("a"));
+    }
+
+    @Test
+    public void remove_busyNodeDecreaseBusyCount() {
+        final EC2FleetNode node = node("i-1", "a", "label");
+        index.add(node);
+        index.add(node("i-2", "a", "label"));
+        index.taskAccepted("i-1");
+
+        index.remove(node);
+
+        Assert.assertEquals(0, index.getBusyCount("a"));
+    }
+
+    @Test
+    public void getNodeNamesByLabel_groupCloudNodes() {
+        index.add(node("i-1", "a", "x"));
+        index.add(node("i-2", "a", "y"));
+        index.add(node("i-3", "a", "x"));
+        index.add(node("i-4", "b", "x"));
+
+        final Map<String, Set<String>> byLabel = index.getNodeNamesByLabel("a");
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-3")), byLabel.get("x"));
+        Assert.assertEquals(Collections.singleton("i-2"), byLabel.get("y"));
+        Assert.assertEquals(2, byLabel.size());
+    }
+
+    private static EC2FleetNode node(final String name, final String cloudName, final String label) {
+        final EC2FleetNode node = PowerMockito.mock(EC2FleetNode.class);
+        when(node.getNodeName()).thenReturn(name);
+        when(node.getCloudName()).thenReturn(cloudName);
+        when(node.getLabelString()).thenReturn(label);
+        return node;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FleetReconcilerTest {
+
+    private final FleetReconciler reconciler = new FleetReconciler();
+
+    @Test
+    public void reconcile_firstCallChecksEverything() {
+        final FleetReconciler.Delta delta = reconciler.reconcile(
+                set("i-1", "i-2", "i-3"), set("i-1", "i-2"), set("i-2", "i-4"), "label");
+
+        Assert.assertEquals(set("i-1"), delta.getNewInstances());
+        Assert.assertEquals(set("i-4"), delta.getNodesToRemove());
+        Assert.assertEquals(set("i-2"), delta.getNodesToRelabel());
+    }
+
+    @Test
+    public void reconcile_skipIfNothingChangedSinceConvergedState() {
+        Assert.assertFalse(reconciler.reconcile(set("i-1"), set("i-1"), set(), "label").isEmpty());
+        // nodes were added, state is converged
+        final FleetReconciler.Delta converged = reconciler.reconcile(set("i-1"), set("i-1"), set("i-1"), "label");
+        Assert.assertEquals(set(), converged.getNewInstances());
+        Assert.assertEquals(set(), converged.getNodesToRemove());
+        Assert.assertEquals(0, reconciler.getSkipped());
+
+        Assert.assertTrue(reconciler.reconcile(set("i-1"), set("i-1"), set("i-1"), "label").isEmpty());
+        Assert.assertEquals(1, reconciler.getSkipped());
+        Assert.assertEquals(2, reconciler.getReconciled());
+    }
+
+    @Test
+    public void reconcile_retryUntilConverged() {
+        reconciler.reconcile(set("i-1"), set("i-1"), set(), "label");
+
+        // node was not added
+        final FleetReconciler.Delta delta = reconciler.reconcile(set("i-1"), set("i-1"), set(), "label");
+
+        Assert.assertEquals(set("i-1"), delta.getNewInstances());
+    }
+
+    @Test
+    public void reconcile_diffDescribedInstancesWithNodesAfterChange() {
+        reconciler.reconcile(set("i-1", "i-2", "i-3"), set("i-1", "i-2", "i-3"), set("i-1", "i-2", "i-3"), "label");
+
+        // i-2 terminated, i-3 node removed manually, i-4 added
+        final FleetReconciler.Delta delta = reconciler.reconcile(
+                set("i-1", "i-2", "i-3", "i-4"), set("i-1", "i-3", "i-4"), set("i-1", "i-2"), "label");
+
+        Assert.assertEquals(set("i-3", "i-4"), delta.getNewInstances());
+        Assert.assertEquals(set("i-2"), delta.getNodesToRemove());
+        Assert.assertEquals(set(), delta.getNodesToRelabel());
+    }
+
+    @Test
+    public void reconcile_removeNodeOfInstanceWhichLeftFleet() {
+        reconciler.reconcile(set("i-1", "i-2"), set("i-1", "i-2"), set("i-1", "i-2"), "label");
+
+        final FleetReconciler.Delta delta = reconciler.reconcile(set("i-1"), set("i-1"), set("i-1", "i-2"), "label");
+
+        Assert.assertEquals(set("i-2"), delta.getNodesToRemove());
+        Assert.assertEquals(set(), delta.getNewInstances());
+    }
+
+    @Test
+    public void reconcile_relabelNewNodesOrAllIfLabelChanged() {
+        reconciler.reconcile(set("i-1"), set("i-1"), set("i-1"), "label");
+
+        Assert.assertEquals(set("i-2"), reconciler.reconcile(
+                set("i-1", "i-2"), set("i-1", "i-2"), set("i-1", "i-2"), "label").getNodesToRelabel());
+        Assert.assertEquals(set("i-1", "i-2"), reconciler.reconcile(
+                set("i-1", "i-2"), set("i-1", "i-2"), set("i-1", "i-2"), "other").getNodesToRelabel());
+    }
+
+    private static Set<String> set(final String... ids) {
+        return ids.length == 0 ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(ids));
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class FleetStateStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FleetStateStats stats = new FleetStateStats("fleetId", 3, FleetStateStats.State.active(),
+            new HashSet<>(Arrays.asList("i-1", "i-2")), Collections.singletonMap("t2.small", 2.0));
+
+    @Test
+    public void load_returnsSavedSnapshotAfterRestart() throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), "state.xml");
+        final FleetStateStore store = new FleetStateStore(() -> file, 60000);
+        store.save("cloud", stats, Collections.singletonMap("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG),
+                Collections.singletonMap("i-3", EC2AgentTerminationReason.AGENT_DELETED));
+        store.write();
+
+        final FleetStateStore.Snapshot snapshot = new FleetStateStore(() -> file, 60000).load("cloud", "fleetId");
+
+        Assert.assertNotNull(snapshot);
+        Assert.assertEquals("fleetId", snapshot.getStats().getFleetId());
+        Assert.assertEquals(3, snapshot.getStats().getNumDesired());
+        Assert.assertEquals(2, snapshot.getStats().getNumActive());
+        Assert.assertTrue(snapshot.getStats().getState().isActive());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), snapshot.getStats().getInstances());
+        Assert.assertEquals(Collections.singletonMap("t2.small", 2.0), snapshot.getStats().getInstanceTypeWeights());
+        Assert.assertEquals(Collections.singletonMap("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG),
+                snapshot.getInstanceIdsToTerminate());
+        Assert.assertEquals(Collections.singletonMap("i-3", EC2AgentTerminationReason.AGENT_DELETED),
+                snapshot.getTerminationRetries());
+    }
+
+    @Test
+    public void load_ignoreSnapshotOfOtherFleet() {
+        final File file = new File(temporaryFolder.getRoot(), "state.xml");
+        final FleetStateStore store = new FleetStateStore(() -> file, 60000);
+        store.save("cloud", stats, Collections.<String, EC2AgentTerminationReason>emptyMap(),
+                Collections.<String, EC2AgentTerminationReason>emptyMap());
+
+        Assert.assertNull(store.load("cloud", "otherFleetId"));
+        Assert.assertNull(store.load("otherCloud", "fleetId"));
+    }
+
+    @Test
+    public void load_ignoreOldSnapshot() throws InterruptedException {
+        final File file = new File(temporaryFolder.getRoot(), "state.xml");
+        final FleetStateStore store = new FleetStateStore(() -> file, 1);
+        store.save("cloud", stats, Collections.<String, EC2AgentTerminationReason>emptyMap(),
+                Collections.<String, EC2AgentTerminationReason>emptyMap());
+        Thread.sleep(10);
+
+        Assert.assertNull(store.load("cloud", "fleetId"));
+    }
+
+    @Test
+    public void load_returnsNullIfNoFile() {
+        final File file = new File(temporaryFolder.getRoot(), "state.xml");
+
+        Assert.assertNull(new FleetStateStore(() -> file, 60000).load("cloud", "fleetId"));
+    }
+
+    @Test
+    public void save_doNothingWithoutJenkins() {
+        final FleetStateStore store = new FleetStateStore(() -> null, 60000);
+        store.save("cloud", stats, Collections.<String, EC2AgentTerminationReason>emptyMap(),
+                Collections.<String, EC2AgentTerminationReason>emptyMap());
+
+        Assert.assertNull(store.load("cloud", "fleetId"));
+    }
+
+    @Test
+    public void load_ignoreCorruptedFile() throws IOException {
+        final File file = temporaryFolder.newFile("state.xml");
+        Files.write(file.toPath(), "<broken".getBytes());
+
+        Assert.assertNull(new FleetStateStore(() -> file, 60000).load("cloud", "fleetId"));
+    }
+
+    @Test
+    public void save_snapshotIsNotAffectedByLaterChanges() {
+        final File file = new File(temporaryFolder.getRoot(), "state.xml");
+        final FleetStateStore store = new FleetStateStore(() -> file, 60000);
+        final Map<String, EC2AgentTerminationReason> toTerminate = new HashMap<>();
+        toTerminate.put("i-1", EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+        store.save("cloud", stats, toTerminate, Collections.<String, EC2AgentTerminationReason>emptyMap());
+
+        toTerminate.clear();
+
+        Assert.assertEquals(1, store.load("cloud", "fleetId").getInstanceIdsToTerminate().size());
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("test", 10, 8);
+
+    @Test
+    public void newTimeout_executeTaskAfterDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+
+        final HashedWheelTimer.Timeout timeout = timer.newTimeout(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        Assert.assertTrue(timeout.isExpired());
+        Assert.assertEquals(0, timer.getPending());
+    }
+
+    @Test
+    public void newTimeout_delayLongerThanWheelRound() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+
+        // wheel round is 80 ms
+        timer.newTimeout(latch::countDown, 200, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void newTimeout_concurrentFirstTimeoutsExecuteAfterDelay() throws InterruptedException {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                timer.newTimeout(latch::countDown, 20, TimeUnit.MILLISECONDS);
+            }).start();
+        }
+
+        start.countDown();
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void newTimeout_firstTimeoutLongAfterCreationExecuteAfterDelay() throws InterruptedException {
+        Thread.sleep(200);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+
+        timer.newTimeout(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test
+    public void cancel_taskIsNotExecuted() throws InterruptedException {
+        final AtomicInteger executed = new AtomicInteger();
+        final HashedWheelTimer.Timeout timeout = timer.newTimeout(executed::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(timeout.cancel());
+        Thread.sleep(100);
+
+        Assert.assertEquals(0, executed.get());
+        Assert.assertTrue(timeout.isCancelled());
+        Assert.assertFalse(timeout.cancel());
+        Assert.assertEquals(0, timer.getPending());
+    }
+
+    @Test
+    public void newTimeout_failedTaskDoesNotStopTimer() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        timer.newTimeout(() -> {
+            throw new IllegalStateException("test");
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.newTimeout(latch::countDown, 30, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+}
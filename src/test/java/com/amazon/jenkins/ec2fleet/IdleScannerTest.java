@@ -0,0 +1,121 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.slaves.SlaveComputer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SlaveComputer.class)
+@SuppressWarnings("unchecked")
+public class IdleScannerTest {
+
+    private final EC2FleetCloud cloud = mock(EC2FleetCloud.class);
+
+    @Before
+    public void before() {
+        when(cloud.getIdleMinutes()).thenReturn(10);
+        when(cloud.hasUnlimitedUsesForNodes()).thenReturn(true);
+    }
+
+    @Test
+    public void scan_scheduleCandidatesInOneCallOldestIdleFirst() {
+        final EC2FleetNodeComputer recent = computer("i-recent", 11, 1);
+        final EC2FleetNodeComputer oldest = computer("i-oldest", 30, 1);
+        final EC2FleetNodeComputer busy = computer("i-busy", 30, 1);
+        PowerMockito.when(busy.isIdle()).thenReturn(false);
+        final EC2FleetNodeComputer fresh = computer("i-fresh", 1, 1);
+        when(cloud.scheduleToTerminate(anyMap())).thenReturn(Collections.singleton("i-oldest"));
+
+        final Set<String> scheduled = IdleScanner.scan(cloud, Arrays.asList(recent, oldest, busy, fresh));
+
+        final ArgumentCaptor<Map<String, EC2AgentTerminationReason>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(cloud).scheduleToTerminate(captor.capture());
+        Assert.assertEquals(Arrays.asList("i-oldest", "i-recent"), Arrays.asList(captor.getValue().keySet().toArray()));
+        Assert.assertEquals(EC2AgentTerminationReason.IDLE_FOR_TOO_LONG, captor.getValue().get("i-oldest"));
+        Assert.assertEquals(Collections.singleton("i-oldest"), scheduled);
+
+        // not scheduled candidate accepts tasks again
+        verify(oldest).setAcceptingTasks(false);
+        verify(oldest, never()).setAcceptingTasks(true);
+        verify(recent).setAcceptingTasks(true);
+        verify(busy, never()).setAcceptingTasks(false);
+        verify(fresh, never()).setAcceptingTasks(false);
+    }
+
+    @Test
+    public void scan_rankDeletedFirstAndLessExecutorsForSameIdleTime() {
+        final long idleStart = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(20);
+        final EC2FleetNodeComputer big = computer("i-big", 0, 4);
+        PowerMockito.when(big.getIdleStartMilliseconds()).thenReturn(idleStart);
+        final EC2FleetNodeComputer small = computer("i-small", 0, 1);
+        PowerMockito.when(small.getIdleStartMilliseconds()).thenReturn(idleStart);
+        final EC2FleetNodeComputer deleted = computer("i-deleted", 1, 1);
+        when(deleted.isMarkedForDeletion()).thenReturn(true);
+
+        IdleScanner.scan(cloud, Arrays.asList(big, small, deleted));
+
+        final ArgumentCaptor<Map<String, EC2AgentTerminationReason>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(cloud).scheduleToTerminate(captor.capture());
+        Assert.assertEquals(Arrays.asList("i-deleted", "i-small", "i-big"), Arrays.asList(captor.getValue().keySet().toArray()));
+        Assert.assertEquals(EC2AgentTerminationReason.AGENT_DELETED, captor.getValue().get("i-deleted"));
+    }
+
+    @Test
+    public void scan_checkExcessCapacityOnce() {
+        when(cloud.hasExcessCapacity()).thenReturn(true);
+        final EC2FleetNodeComputer first = computer("i-1", 1, 1);
+        final EC2FleetNodeComputer second = computer("i-2", 1, 1);
+
+        IdleScanner.scan(cloud, Arrays.asList(first, second));
+
+        final ArgumentCaptor<Map<String, EC2AgentTerminationReason>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(cloud).scheduleToTerminate(captor.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(EC2AgentTerminationReason.EXCESS_CAPACITY)),
+                new HashSet<>(captor.getValue().values()));
+        verify(cloud).hasExcessCapacity();
+    }
+
+    @Test
+    public void scan_doNothingWithoutCandidates() {
+        final EC2FleetNodeComputer fresh = computer("i-fresh", 1, 1);
+
+        Assert.assertTrue(IdleScanner.scan(cloud, Collections.singletonList(fresh)).isEmpty());
+
+        verify(cloud, never()).scheduleToTerminate(anyMap());
+        verify(fresh, never()).setAcceptingTasks(false);
+    }
+
+    private EC2FleetNodeComputer computer(final String name, final int idleMinutes, final int numExecutors) {
+        final EC2FleetNodeComputer computer = mock(EC2FleetNodeComputer.class);
+        final EC2FleetNode node = mock(EC2FleetNode.class);
+        when(node.getNodeName()).thenReturn(name);
+        when(node.getNumExecutors()).thenReturn(numExecutors);
+        when(computer.getNode()).thenReturn(node);
+        when(computer.getCloud()).thenReturn(cloud);
+        when(computer.isAcceptingTasks()).thenReturn(true);
+        PowerMockito.when(computer.isIdle()).thenReturn(true);
+        PowerMockito.when(computer.getIdleStartMilliseconds())
+                .thenReturn(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(idleMinutes));
+        return computer;
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Compare diff time and allocation of {@link InstanceIdSet} and {@link HashSet} for 10k instances,
+ * same diffs as done by {@link FleetReconciler} and {@link EC2FleetLabelCloud} on each update.
+ */
+@Ignore
+public class InstanceIdSetPerformanceTest {
+
+    private static final int INSTANCES = 10000;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void diff10kInstances() {
+        final Random random = new Random(0);
+        final Set<String> fleet = new HashSet<>();
+        while (fleet.size() < INSTANCES) fleet.add(randomId(random));
+        // 5% of nodes are outdated
+        final Set<String> jenkins = new HashSet<>();
+        for (final String id : fleet) if (random.nextInt(20) != 0) jenkins.add(id);
+        while (jenkins.size() < INSTANCES) jenkins.add(randomId(random));
+
+        measure("HashSet", () -> {
+            final Set<String> copy = new HashSet<>(fleet);
+            final Set<String> newInstances = new HashSet<>(copy);
+            newInstances.removeAll(jenkins);
+            final Set<String> nodesToRemove = new HashSet<>(jenkins);
+            nodesToRemove.removeAll(copy);
+            return newInstances.size() + nodesToRemove.size();
+        });
+
+        final InstanceIdSet fleetIds = InstanceIdSet.copyOf(fleet);
+        final InstanceIdSet jenkinsIds = InstanceIdSet.copyOf(jenkins);
+        measure("InstanceIdSet", () ->
+                fleetIds.difference(jenkinsIds).size() + jenkinsIds.difference(fleetIds).size());
+        // jenkins nodes are collected from node names each update
+        measure("InstanceIdSet with copy", () -> {
+            final InstanceIdSet nodes = InstanceIdSet.copyOf(jenkins);
+            return fleetIds.difference(nodes).size() + nodes.difference(fleetIds).size();
+        });
+    }
+
+    private static void measure(final String name, final Supplier<Integer> diff) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) sink += diff.get();
+
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) sink += diff.get();
+        final long nanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%s: %.1f us per diff, %s bytes allocated per diff (%s)",
+                name, nanos / 1000.0 / ITERATIONS, allocated / ITERATIONS, sink));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String randomId(final Random random) {
+        return String.format("i-%017x", random.nextLong() & 0xFFFFFFFFFFFFFL);
+    }
+
+}
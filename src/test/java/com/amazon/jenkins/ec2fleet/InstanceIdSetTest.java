@@ -0,0 +1,108 @@
+package com.amazon.jenkins.ec2fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class InstanceIdSetTest {
+
+    @Test
+    public void copyOf_keepAllFormatsOfIds() {
+        final Set<String> ids = set("i-12345678", "i-0123456789abcdef0", "i-fffffffffffffffff", "i-1",
+                "i-00000000000000000000000000000", "z", "i-", "i-ABC", "x-123", "");
+
+        final InstanceIdSet set = InstanceIdSet.copyOf(ids);
+
+        Assert.assertEquals(ids, set);
+        Assert.assertEquals(set, ids);
+        Assert.assertEquals(ids.size(), set.size());
+        Assert.assertEquals(ids, new HashSet<>(set));
+        Assert.assertEquals(ids.hashCode(), set.hashCode());
+    }
+
+    @Test
+    public void copyOf_returnSameIfInstanceIdSet() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-1"));
+
+        Assert.assertSame(set, InstanceIdSet.copyOf(set));
+        Assert.assertSame(InstanceIdSet.empty(), InstanceIdSet.copyOf(Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void copyOf_removeDuplicates() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(Arrays.asList("i-2", "i-1", "i-2", "z", "z"));
+
+        Assert.assertEquals(set("i-1", "i-2", "z"), set);
+        Assert.assertEquals(3, set.size());
+    }
+
+    @Test
+    public void contains() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-0123456789abcdef0", "i-12345678", "z"));
+
+        Assert.assertTrue(set.contains("i-0123456789abcdef0"));
+        Assert.assertTrue(set.contains("i-12345678"));
+        Assert.assertTrue(set.contains("z"));
+        Assert.assertFalse(set.contains("i-0123456789abcdef1"));
+        // same value, different length
+        Assert.assertFalse(set.contains("i-012345678"));
+        Assert.assertFalse(set.contains("i-0123456789ABCDEF0"));
+        Assert.assertFalse(set.contains(1));
+    }
+
+    @Test
+    public void difference() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-1", "i-2", "i-3", "a", "b"));
+
+        Assert.assertEquals(set("i-1", "a"), set.difference(set("i-2", "i-3", "i-4", "b")));
+        Assert.assertEquals(set, set.difference(Collections.<String>emptySet()));
+        Assert.assertEquals(Collections.emptySet(), set.difference(set));
+    }
+
+    @Test
+    public void union() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-1", "i-3", "a"));
+
+        Assert.assertEquals(set("i-1", "i-2", "i-3", "a", "b"), set.union(set("i-2", "i-3", "b")));
+        Assert.assertEquals(set("i-2"), InstanceIdSet.empty().union(set("i-2")));
+    }
+
+    @Test
+    public void intersection() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-1", "i-2", "a", "b"));
+
+        Assert.assertEquals(set("i-2", "b"), set.intersection(set("i-2", "i-3", "b", "c")));
+        Assert.assertEquals(Collections.emptySet(), set.intersection(Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void iterateInOrder() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-0123456789abcdef1", "i-0123456789abcdef0", "i-2", "z"));
+
+        Assert.assertEquals(Arrays.asList("i-2", "i-0123456789abcdef0", "i-0123456789abcdef1", "z"),
+                Arrays.asList(set.toArray()));
+    }
+
+    @Test
+    public void mixedHash_dependOnContentAndSalt() {
+        final InstanceIdSet set = InstanceIdSet.copyOf(set("i-1", "i-2", "a"));
+
+        Assert.assertEquals(set.mixedHash(1), InstanceIdSet.copyOf(set("a", "i-2", "i-1")).mixedHash(1));
+        Assert.assertNotEquals(set.mixedHash(1), set.mixedHash(2));
+        Assert.assertNotEquals(set.mixedHash(1), InstanceIdSet.copyOf(set("i-1", "i-3", "a")).mixedHash(1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void isUnmodifiable() {
+        InstanceIdSet.copyOf(set("i-1")).add("i-2");
+    }
+
+    private static Set<String> set(final String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+}
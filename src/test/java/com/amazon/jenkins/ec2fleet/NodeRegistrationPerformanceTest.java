@@ -0,0 +1,84 @@
+package com.amazon.jenkins.ec2fleet;
+
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import hudson.model.Queue;
+import hudson.slaves.ComputerConnector;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure how long queue lock is blocked when cloud registers big batch of new instances.
+ * Probe thread takes queue lock in loop, max wait of probe is close to max lock hold time.
+ */
+@Ignore
+public class NodeRegistrationPerformanceTest extends IntegrationTest {
+
+    private final EC2FleetCloud.ExecutorScaler noScaling = new EC2FleetCloud.NoScaler();
+
+    @BeforeClass
+    public static void beforeClass() {
+        turnOffJenkinsTestTimout();
+    }
+
+    @Test
+    public void register500Instances() throws Exception {
+        test(500);
+    }
+
+    private void test(final int instances) throws Exception {
+        mockEc2FleetApiToEc2SpotFleet(InstanceStateName.Running);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final Thread probe = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    final long start = System.nanoTime();
+                    Queue.withLock(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long wait = System.nanoTime() - start;
+                            if (wait > maxWaitNanos.get()) maxWaitNanos.set(wait);
+                        }
+                    });
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        probe.setDaemon(true);
+        probe.start();
+
+        final ComputerConnector computerConnector = new LocalComputerConnector(j);
+        final EC2FleetCloud cloud = new EC2FleetCloud(null, "credId", null, "region",
+                null, "fId", "momo", null, computerConnector, false, false,
+                1, instances, instances, 0, 1, true, false,
+                "-1", false, 0, 0,
+                2, false, false, noScaling);
+        j.jenkins.clouds.add(cloud);
+
+        final long start = System.currentTimeMillis();
+        tryUntil(new Runnable() {
+            @Override
+            public void run() {
+                Assert.assertEquals(instances, j.jenkins.getLabel("momo").getNodes().size());
+            }
+        }, TimeUnit.MINUTES.toMillis(5));
+        stop.set(true);
+        probe.join();
+
+        System.out.println(instances + " nodes registered in " + (System.currentTimeMillis() - start) + " ms");
+        System.out.println("max queue lock wait " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + " ms");
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.amazon.jenkins.ec2fleet;
+
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PlannedNodeTrackerTest {
+
+    private final PlannedNodeTracker tracker = new PlannedNodeTracker("test", new HashedWheelTimer("test", 10, 8));
+
+    @Test
+    public void poll_returnOldestPlannedNodeFirst() {
+        final NodeProvisioner.PlannedNode first = plannedNode("first");
+        final NodeProvisioner.PlannedNode second = plannedNode("second");
+        tracker.add(first, TimeUnit.MINUTES.toMillis(1));
+        tracker.add(second, TimeUnit.MINUTES.toMillis(1));
+
+        Assert.assertSame(first.future, tracker.poll());
+        Assert.assertSame(second.future, tracker.poll());
+        Assert.assertNull(tracker.poll());
+    }
+
+    @Test
+    public void poll_skipCancelledPlannedNodes() {
+        final NodeProvisioner.PlannedNode first = plannedNode("first");
+        final NodeProvisioner.PlannedNode second = plannedNode("second");
+        tracker.add(first, TimeUnit.MINUTES.toMillis(1));
+        tracker.add(second, TimeUnit.MINUTES.toMillis(1));
+        first.future.cancel(true);
+
+        Assert.assertSame(second.future, tracker.poll());
+        Assert.assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void scaleTimeout_completePlannedNodeWithNull() throws InterruptedException, ExecutionException {
+        final NodeProvisioner.PlannedNode plannedNode = plannedNode("first");
+        tracker.add(plannedNode, 20);
+
+        Assert.assertNull(plannedNode.future.get());
+        // timeout removes planned node after completion
+        Thread.sleep(50);
+        Assert.assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void confirmScaled_cancelScaleTimeoutOfOldest() throws InterruptedException {
+        final NodeProvisioner.PlannedNode first = plannedNode("first");
+        final NodeProvisioner.PlannedNode second = plannedNode("second");
+        tracker.add(first, 50);
+        tracker.add(second, 50);
+
+        Assert.assertTrue(tracker.confirmScaled(1));
+        Thread.sleep(300);
+
+        Assert.assertFalse(first.future.isDone());
+        Assert.assertTrue(second.future.isDone());
+        Assert.assertEquals(Arrays.asList(first), tracker.getPlannedNodes());
+    }
+
+    @Test
+    public void confirmScaled_returnFalseIfNotEnoughPlannedNodes() {
+        tracker.add(plannedNode("first"), TimeUnit.MINUTES.toMillis(1));
+
+        Assert.assertFalse(tracker.confirmScaled(0));
+        Assert.assertFalse(tracker.confirmScaled(2));
+        Assert.assertEquals(0, tracker.getUnscaledCount());
+    }
+
+    @Test
+    public void trim_cancelNewestPlannedNodes() {
+        final NodeProvisioner.PlannedNode first = plannedNode("first");
+        final NodeProvisioner.PlannedNode second = plannedNode("second");
+        final NodeProvisioner.PlannedNode third = plannedNode("third");
+        tracker.add(first, TimeUnit.MINUTES.toMillis(1));
+        tracker.add(second, TimeUnit.MINUTES.toMillis(1));
+        tracker.add(third, TimeUnit.MINUTES.toMillis(1));
+
+        final List<NodeProvisioner.PlannedNode> cancelled = tracker.trim(1);
+
+        Assert.assertEquals(Arrays.asList(third, second), cancelled);
+        Assert.assertTrue(second.future.isCancelled());
+        Assert.assertTrue(third.future.isCancelled());
+        Assert.assertFalse(first.future.isDone());
+        Assert.assertEquals(1, tracker.size());
+        Assert.assertTrue(tracker.trim(1).isEmpty());
+    }
+
+    @Test
+    public void transferFrom_takeOlderPlannedNodesFirstWithTheirTimeouts() throws InterruptedException {
+        final PlannedNodeTracker other = new PlannedNodeTracker("other", new HashedWheelTimer("other", 10, 8));
+        final NodeProvisioner.PlannedNode old = plannedNode("old");
+        final NodeProvisioner.PlannedNode own = plannedNode("own");
+        other.add(old, 100);
+        tracker.add(own, TimeUnit.MINUTES.toMillis(1));
+
+        tracker.transferFrom(other);
+
+        Assert.assertEquals(0, other.size());
+        Assert.assertEquals(2, tracker.getUnscaledCount());
+        Assert.assertEquals(Arrays.asList(old, own), tracker.getPlannedNodes());
+        Thread.sleep(400);
+        Assert.assertTrue(old.future.isDone());
+        Assert.assertFalse(own.future.isDone());
+        Assert.assertEquals(Arrays.asList(own), tracker.getPlannedNodes());
+    }
+
+    @Test
+    public void getAgeDistribution_countNewPlannedNodesInFirstBucket() {
+        tracker.add(plannedNode("first"), TimeUnit.MINUTES.toMillis(1));
+        tracker.add(plannedNode("second"), TimeUnit.MINUTES.toMillis(1));
+
+        final SortedMap<Long, Integer> distribution = tracker.getAgeDistribution();
+
+        Assert.assertEquals(5, distribution.size());
+        Assert.assertEquals(Integer.valueOf(2), distribution.get(distribution.firstKey()));
+        Assert.assertEquals(Integer.valueOf(0), distribution.get(Long.MAX_VALUE));
+    }
+
+    private static NodeProvisioner.PlannedNode plannedNode(final String name) {
+        return new NodeProvisioner.PlannedNode(name, new CompletableFuture<Node>(), 1);
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.amazon.jenkins.ec2fleet;
+
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import hudson.slaves.Cloud;
+import hudson.slaves.ComputerConnector;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure throughput and max latency of retention checks ({@link EC2FleetCloud#hasExcessCapacity()}
+ * and {@link EC2FleetCloud#scheduleToTerminate(String, boolean, EC2AgentTerminationReason)}) done
+ * by many threads while other threads provision and update the same cloud.
+ */
+@Ignore
+public class RetentionCheckContentionPerformanceTest extends IntegrationTest {
+
+    private final EC2FleetCloud.ExecutorScaler noScaling = new EC2FleetCloud.NoScaler();
+
+    @BeforeClass
+    public static void beforeClass() {
+        turnOffJenkinsTestTimout();
+    }
+
+    @Test
+    public void retentionChecks64Threads() throws Exception {
+        test(64, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    private void test(final int checkThreads, final long durationMillis) throws Exception {
+        mockEc2FleetApiToEc2SpotFleet(InstanceStateName.Running);
+
+        final ComputerConnector computerConnector = new LocalComputerConnector(j);
+        final EC2FleetCloud cloud = new EC2FleetCloud(null, "credId", null, "region",
+                null, "fId", "momo", null, computerConnector, false, false,
+                1, 0, 100000, 0, 1, true, false,
+                "-1", false, 0, 0, 10, false, false, noScaling);
+        j.jenkins.clouds.add(cloud);
+        Assert.assertNotNull(cloud.getStats());
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong checks = new AtomicLong();
+        final AtomicLong maxCheckNanos = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < checkThreads; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                long i = 0;
+                while (!stop.get()) {
+                    final long start = System.nanoTime();
+                    cloud.hasExcessCapacity();
+                    // like idle agent which reached timeout
+                    if (++i % 1000 == 0) {
+                        cloud.scheduleToTerminate("i-" + thread + "-" + i, false, EC2AgentTerminationReason.IDLE_FOR_TOO_LONG);
+                    }
+                    final long time = System.nanoTime() - start;
+                    if (time > maxCheckNanos.get()) maxCheckNanos.set(time);
+                    checks.incrementAndGet();
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            while (!stop.get()) {
+                cloud.provision(new Cloud.CloudState(null, 0), 1);
+            }
+        }));
+        threads.add(new Thread(() -> {
+            while (!stop.get()) {
+                cloud.update();
+            }
+        }));
+
+        for (final Thread thread : threads) thread.start();
+        Thread.sleep(durationMillis);
+        stop.set(true);
+        for (final Thread thread : threads) thread.join();
+
+        System.out.println("retention checks: " + checks.get() + ", per second: "
+                + checks.get() * 1000 / durationMillis
+                + ", max check time: " + TimeUnit.NANOSECONDS.toMillis(maxCheckNanos.get()) + " ms");
+    }
+
+}
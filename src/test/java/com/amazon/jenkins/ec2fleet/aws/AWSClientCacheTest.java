@@ -0,0 +1,161 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
+import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
+import hudson.ProxyConfiguration;
+import hudson.model.Saveable;
+import jenkins.model.Jenkins;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class, AWSCredentialsHelper.class})
+public class AWSClientCacheTest {
+
+    private final AWSClientCache cache = new AWSClientCache(0);
+
+    private Jenkins jenkins;
+
+    @Before
+    public void before() {
+        jenkins = mock(Jenkins.class);
+        PowerMockito.mockStatic(Jenkins.class);
+        when(Jenkins.getInstanceOrNull()).thenReturn(jenkins);
+        PowerMockito.mockStatic(AWSCredentialsHelper.class);
+        when(AWSCredentialsHelper.getCredentials("cred", jenkins)).thenReturn(mock(AmazonWebServicesCredentials.class));
+        when(AWSCredentialsHelper.getCredentials("cred-other", jenkins)).thenReturn(mock(AmazonWebServicesCredentials.class));
+    }
+
+    @Test
+    public void getOrCreate_returnsSameClientForSameParameters() {
+        final AtomicInteger created = new AtomicInteger();
+
+        final AmazonEC2Client client1 = cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> {
+            created.incrementAndGet();
+            return mock(AmazonEC2Client.class);
+        });
+        final AmazonEC2Client client2 = cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> {
+            created.incrementAndGet();
+            return mock(AmazonEC2Client.class);
+        });
+
+        Assert.assertSame(client1, client2);
+        Assert.assertEquals(1, created.get());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void getOrCreate_createsNewClientIfAnyParameterDifferent() {
+        final AmazonEC2Client client = cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class));
+
+        Assert.assertNotSame(client, cache.getOrCreate(AmazonEC2Client.class, "cred1", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class)));
+        Assert.assertNotSame(client, cache.getOrCreate(AmazonEC2Client.class, "cred", "us-west-2", null,
+                () -> mock(AmazonEC2Client.class)));
+        Assert.assertNotSame(client, cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", "http://a",
+                () -> mock(AmazonEC2Client.class)));
+        Assert.assertNotNull(cache.getOrCreate(AmazonAutoScalingClient.class, "cred", "us-east-1", null,
+                () -> mock(AmazonAutoScalingClient.class)));
+
+        Assert.assertEquals(5, cache.size());
+        Assert.assertEquals(5, cache.getMisses());
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void invalidateAll_removeClientsAndShutdownThemAfterDelay() {
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> client);
+
+        cache.invalidateAll();
+
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNotSame(client, cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class)));
+        verify(client, timeout(5000)).shutdown();
+    }
+
+    @Test
+    public void invalidateAll_doNotShutdownClientWhichCouldBeInUseRightAway() {
+        final AWSClientCache cache = new AWSClientCache(60000);
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> client);
+
+        cache.invalidateAll();
+
+        Assert.assertEquals(0, cache.size());
+        verify(client, after(500).never()).shutdown();
+    }
+
+    @Test
+    public void invalidateChanged_evictAllClientsIfProxyChanged() {
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> client);
+
+        jenkins.proxy = mock(ProxyConfiguration.class);
+        cache.invalidateChanged();
+
+        Assert.assertEquals(0, cache.size());
+        verify(client, timeout(5000)).shutdown();
+    }
+
+    @Test
+    public void invalidateChanged_evictOnlyClientsOfChangedCredentials() {
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        cache.getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> client);
+        final AmazonEC2Client otherClient = mock(AmazonEC2Client.class);
+        cache.getOrCreate(AmazonEC2Client.class, "cred-other", "us-east-1", null, () -> otherClient);
+
+        when(AWSCredentialsHelper.getCredentials("cred", jenkins)).thenReturn(mock(AmazonWebServicesCredentials.class));
+        cache.invalidateChanged();
+
+        Assert.assertEquals(1, cache.size());
+        Assert.assertSame(otherClient, cache.getOrCreate(AmazonEC2Client.class, "cred-other", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class)));
+        verify(client, timeout(5000)).shutdown();
+        verify(otherClient, never()).shutdown();
+    }
+
+    @Test
+    public void invalidationListener_keepClientsIfNothingChanged() {
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        AWSClientCache.get().getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null, () -> client);
+
+        new AWSClientCache.InvalidationListener().onChange(mock(ProxyConfiguration.class), null);
+
+        Assert.assertSame(client, AWSClientCache.get().getOrCreate(AmazonEC2Client.class, "cred", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class)));
+        AWSClientCache.get().invalidateAll();
+    }
+
+    @Test
+    public void invalidationListener_ignoreNotRelatedChanges() {
+        final AmazonEC2Client client = mock(AmazonEC2Client.class);
+        AWSClientCache.get().getOrCreate(AmazonEC2Client.class, "cred-other", "us-east-1", null, () -> client);
+
+        new AWSClientCache.InvalidationListener().onChange(mock(Saveable.class), null);
+
+        Assert.assertSame(client, AWSClientCache.get().getOrCreate(AmazonEC2Client.class, "cred-other", "us-east-1", null,
+                () -> mock(AmazonEC2Client.class)));
+        AWSClientCache.get().invalidateAll();
+    }
+
+}
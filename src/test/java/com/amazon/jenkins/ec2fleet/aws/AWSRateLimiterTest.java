@@ -0,0 +1,104 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.ModifyFleetRequest;
+import com.amazonaws.services.ec2.model.ModifySpotFleetRequestRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class AWSRateLimiterTest {
+
+    @Test
+    public void getPriority_capacityChangesAreCritical() {
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, AWSRateLimiter.getPriority(new ModifySpotFleetRequestRequest()));
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, AWSRateLimiter.getPriority(new ModifyFleetRequest()));
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, AWSRateLimiter.getPriority(new UpdateAutoScalingGroupRequest()));
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, AWSRateLimiter.getPriority(new TerminateInstancesRequest()));
+    }
+
+    @Test
+    public void getPriority_otherRequestsAreNormal() {
+        Assert.assertEquals(AWSRateLimiter.Priority.NORMAL, AWSRateLimiter.getPriority(new DescribeInstancesRequest()));
+    }
+
+    @Test
+    public void getPriority_backgroundCallsAreBackground() {
+        final AWSRateLimiter.Priority priority = AWSRateLimiter.background(
+                () -> AWSRateLimiter.getPriority(new DescribeInstancesRequest()));
+
+        Assert.assertEquals(AWSRateLimiter.Priority.BACKGROUND, priority);
+        // critical is not downgraded
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, AWSRateLimiter.background(
+                () -> AWSRateLimiter.getPriority(new TerminateInstancesRequest())));
+        // marker is reset after call
+        Assert.assertEquals(AWSRateLimiter.Priority.NORMAL, AWSRateLimiter.getPriority(new DescribeInstancesRequest()));
+    }
+
+    @Test
+    public void bucket_throttlingHalvesRateAndSuccessIncreases() {
+        final AWSRateLimiter.Bucket bucket = new AWSRateLimiter.Bucket("test", 10, 1);
+
+        bucket.onThrottled();
+        Assert.assertEquals(5, bucket.getRate(), 0.001);
+        bucket.onThrottled();
+        bucket.onThrottled();
+        bucket.onThrottled();
+        Assert.assertEquals(1, bucket.getRate(), 0.001);
+        Assert.assertEquals(4, bucket.getThrottled());
+
+        bucket.onSuccess();
+        Assert.assertEquals(1.1, bucket.getRate(), 0.001);
+        for (int i = 0; i < 1000; i++) bucket.onSuccess();
+        Assert.assertEquals(10, bucket.getRate(), 0.001);
+    }
+
+    @Test
+    public void bucket_acquireWaitsForTokenWhenRateExceeded() throws InterruptedException {
+        final AWSRateLimiter.Bucket bucket = new AWSRateLimiter.Bucket("test", 2, 1);
+        bucket.acquire(AWSRateLimiter.Priority.NORMAL);
+        bucket.acquire(AWSRateLimiter.Priority.NORMAL);
+
+        final long start = System.currentTimeMillis();
+        bucket.acquire(AWSRateLimiter.Priority.NORMAL);
+
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void bucket_criticalGoesBeforeBackground() throws InterruptedException {
+        final AWSRateLimiter.Bucket bucket = new AWSRateLimiter.Bucket("test", 2, 1);
+        bucket.onThrottled();
+        bucket.onThrottled();
+
+        final List<AWSRateLimiter.Priority> order = Collections.synchronizedList(new ArrayList<>());
+        final Thread background = new Thread(() -> acquire(bucket, AWSRateLimiter.Priority.BACKGROUND, order));
+        final Thread critical = new Thread(() -> acquire(bucket, AWSRateLimiter.Priority.CRITICAL, order));
+        background.start();
+        // make sure background is already waiting
+        while (bucket.getQueueDepth(AWSRateLimiter.Priority.BACKGROUND) == 0) Thread.sleep(1);
+        critical.start();
+        background.join();
+        critical.join();
+
+        Assert.assertEquals(AWSRateLimiter.Priority.CRITICAL, order.get(0));
+        Assert.assertEquals(AWSRateLimiter.Priority.BACKGROUND, order.get(1));
+    }
+
+    private static void acquire(
+            final AWSRateLimiter.Bucket bucket, final AWSRateLimiter.Priority priority,
+            final List<AWSRateLimiter.Priority> order) {
+        try {
+            bucket.acquire(priority);
+            order.add(priority);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.Instance;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class DescribeInstancesCoalescerTest {
+
+    private final EC2Api ec2Api = mock(EC2Api.class);
+    private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+
+    @Test
+    public void describeInstances_callsArrivedWhileDescribeInFlightShareNextDescribe() throws Exception {
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> {
+                    inFlight.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return describedAll(invocation.getArgument(1));
+                })
+                .thenAnswer(invocation -> describedAll(invocation.getArgument(1)));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final Future<Map<String, FleetInstance>> first = executor.submit(
+                    describe(coalescer, Collections.singleton("i-1")));
+            Assert.assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+            final Future<Map<String, FleetInstance>> second = executor.submit(
+                    describe(coalescer, new HashSet<>(Arrays.asList("i-2", "i-3"))));
+            final Future<Map<String, FleetInstance>> third = executor.submit(
+                    describe(coalescer, Collections.singleton("i-4")));
+            while (coalescer.getRequests() < 3) Thread.sleep(10);
+            release.countDown();
+
+            Assert.assertEquals(Collections.singleton("i-1"), first.get().keySet());
+            Assert.assertEquals(new HashSet<>(Arrays.asList("i-2", "i-3")), second.get().keySet());
+            Assert.assertEquals(Collections.singleton("i-4"), third.get().keySet());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final ArgumentCaptor<Set<String>> captor = ArgumentCaptor.forClass(Set.class);
+        verify(ec2Api, times(2)).describeInstances(eq(ec2), captor.capture(), anyInt(), anyInt());
+        // first caller doesn't wait for others, only ids of joined callers are described
+        Assert.assertEquals(Collections.singleton("i-1"), captor.getAllValues().get(0));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-2", "i-3", "i-4")), captor.getAllValues().get(1));
+        Assert.assertEquals(3, coalescer.getRequests());
+        Assert.assertEquals(2, coalescer.getDescribeCalls());
+    }
+
+    @Test
+    public void describeInstances_shareDescribeInFlightIfAllInstancesCovered() throws Exception {
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> {
+                    inFlight.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return describedAll(invocation.getArgument(1));
+                });
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Map<String, FleetInstance>> first = executor.submit(
+                    describe(coalescer, new HashSet<>(Arrays.asList("i-1", "i-2"))));
+            Assert.assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+            final Future<Map<String, FleetInstance>> second = executor.submit(
+                    describe(coalescer, Collections.singleton("i-2")));
+            while (coalescer.getRequests() < 2) Thread.sleep(10);
+            release.countDown();
+
+            Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), first.get().keySet());
+            Assert.assertEquals(Collections.singleton("i-2"), second.get().keySet());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(ec2Api, times(1)).describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void describeInstances_byDefaultDoNotReuseResultAfterDescribeDone() {
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> describedAll(invocation.getArgument(1)));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(0);
+
+        coalescer.describeInstances(ec2Api, ec2, new HashSet<>(Arrays.asList("i-1", "i-2")), 1);
+        coalescer.describeInstances(ec2Api, ec2, Collections.singleton("i-2"), 1);
+
+        verify(ec2Api, times(2)).describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void describeInstances_reuseRecentResultIfAllInstancesCovered() {
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> describedAll(invocation.getArgument(1)));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(60000);
+
+        coalescer.describeInstances(ec2Api, ec2, new HashSet<>(Arrays.asList("i-1", "i-2")), 1);
+        final Map<String, FleetInstance> described = coalescer.describeInstances(
+                ec2Api, ec2, Collections.singleton("i-2"), 1);
+
+        Assert.assertEquals(Collections.singleton("i-2"), described.keySet());
+        verify(ec2Api, times(1)).describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void describeInstances_describeAgainIfInstanceNotCovered() {
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> describedAll(invocation.getArgument(1)));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(60000);
+
+        coalescer.describeInstances(ec2Api, ec2, Collections.singleton("i-1"), 1);
+        coalescer.describeInstances(ec2Api, ec2, Collections.singleton("i-2"), 1);
+
+        final ArgumentCaptor<Set<String>> captor = ArgumentCaptor.forClass(Set.class);
+        verify(ec2Api, times(2)).describeInstances(eq(ec2), captor.capture(), anyInt(), anyInt());
+        Assert.assertEquals(Collections.singleton("i-2"), captor.getAllValues().get(1));
+    }
+
+    @Test
+    public void describeInstances_notDescribedInstancesAreAbsent() {
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenReturn(describedAll(Collections.singleton("i-1")));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(60000);
+
+        final Map<String, FleetInstance> described = coalescer.describeInstances(
+                ec2Api, ec2, new HashSet<>(Arrays.asList("i-1", "i-2")), 1);
+
+        Assert.assertEquals(Collections.singleton("i-1"), described.keySet());
+    }
+
+    @Test(expected = AmazonEC2Exception.class)
+    public void describeInstances_rethrowException() {
+        when(ec2Api.describeInstances(eq(ec2), any(Set.class), anyInt(), anyInt()))
+                .thenThrow(new AmazonEC2Exception("test"));
+        final DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(60000);
+
+        coalescer.describeInstances(ec2Api, ec2, Collections.singleton("i-1"), 1);
+    }
+
+    private Callable<Map<String, FleetInstance>> describe(
+            final DescribeInstancesCoalescer coalescer, final Set<String> instanceIds) {
+        return () -> coalescer.describeInstances(ec2Api, ec2, instanceIds, 1);
+    }
+
+    private static Map<String, FleetInstance> describedAll(final Set<String> instanceIds) {
+        final Map<String, FleetInstance> described = new HashMap<>();
+        for (final String instanceId : instanceIds) {
+            described.put(instanceId, FleetInstance.from(new Instance().withInstanceId(instanceId)));
+        }
+        return described;
+    }
+
+}
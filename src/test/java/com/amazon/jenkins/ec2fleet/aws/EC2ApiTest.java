@@ -1,30 +1,38 @@
 package com.amazon.jenkins.ec2fleet.aws;
 
+import com.amazon.jenkins.ec2fleet.EmptyAmazonEC2;
 import com.amazon.jenkins.ec2fleet.aws.EC2Api;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.AmazonEC2Exception;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.times;
@@ -42,9 +50,9 @@ public class EC2ApiTest {
 
     @Test
     public void describeInstances_shouldReturnEmptyResultAndNoCallIfEmptyListOfInstances() {
-        Map<String, Instance> described = new EC2Api().describeInstances(amazonEC2, Collections.<String>emptySet());
+        Map<String, FleetInstance> described = new EC2Api().describeInstances(amazonEC2, Collections.<String>emptySet());
 
-        Assert.assertEquals(Collections.<String, Instance>emptyMap(), described);
+        Assert.assertEquals(Collections.<String, FleetInstance>emptyMap(), described);
         verifyZeroInteractions(amazonEC2);
     }
 
@@ -69,12 +77,12 @@ public class EC2ApiTest {
         when(amazonEC2.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(describeInstancesResult);
 
         // when
-        Map<String, Instance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
+        Map<String, FleetInstance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
 
         // then
-        Map<String, Instance> expected = new HashMap<>();
-        expected.put("i-1", instance1);
-        expected.put("i-2", instance2);
+        Map<String, FleetInstance> expected = new HashMap<>();
+        expected.put("i-1", FleetInstance.from(instance1));
+        expected.put("i-2", FleetInstance.from(instance2));
         Assert.assertEquals(expected, described);
         verify(amazonEC2, times(1))
                 .describeInstances(any(DescribeInstancesRequest.class));
@@ -135,12 +143,12 @@ public class EC2ApiTest {
                 .thenReturn(describeInstancesResult2);
 
         // when
-        Map<String, Instance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
+        Map<String, FleetInstance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
 
         // then
-        Map<String, Instance> expected = new HashMap<>();
-        expected.put("i-1", instance1);
-        expected.put("i-2", instance2);
+        Map<String, FleetInstance> expected = new HashMap<>();
+        expected.put("i-1", FleetInstance.from(instance1));
+        expected.put("i-2", FleetInstance.from(instance2));
         Assert.assertEquals(expected, described);
         verify(amazonEC2, times(2))
                 .describeInstances(any(DescribeInstancesRequest.class));
@@ -178,10 +186,10 @@ public class EC2ApiTest {
                 .thenReturn(describeInstancesResult1);
 
         // when
-        Map<String, Instance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
+        Map<String, FleetInstance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
 
         // then
-        Assert.assertEquals(Collections.<String, Instance>emptyMap(), described);
+        Assert.assertEquals(Collections.<String, FleetInstance>emptyMap(), described);
         verify(amazonEC2, times(1))
                 .describeInstances(any(DescribeInstancesRequest.class));
     }
@@ -263,10 +271,10 @@ public class EC2ApiTest {
                 .thenReturn(describeInstancesResult2);
 
         // when
-        final Map<String, Instance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
+        final Map<String, FleetInstance> described = new EC2Api().describeInstances(amazonEC2, instanceIds);
 
         // then
-        Assert.assertEquals(Collections.singletonMap("i-3", instance3), described);
+        Assert.assertEquals(Collections.singletonMap("i-3", FleetInstance.from(instance3)), described);
         verify(amazonEC2).describeInstances(new DescribeInstancesRequest().withInstanceIds(Arrays.asList("i-1", "i-3", "i-f")));
         verify(amazonEC2).describeInstances(new DescribeInstancesRequest().withInstanceIds(Arrays.asList("i-3")));
         verifyNoMoreInteractions(amazonEC2);
@@ -400,4 +408,167 @@ public class EC2ApiTest {
                 Mockito.any(TerminateInstancesRequest.class));
     }
 
+    @Test
+    public void describeInstancesByTag_shouldFilterByTagAndStateAndProcessAllPages() {
+        final Instance instance1 = new Instance().withInstanceId("i-1")
+                .withState(new InstanceState().withName(InstanceStateName.Running));
+        final Instance instance2 = new Instance().withInstanceId("i-2")
+                .withState(new InstanceState().withName(InstanceStateName.Pending));
+        when(amazonEC2.describeInstances(any(DescribeInstancesRequest.class)))
+                .thenReturn(new DescribeInstancesResult()
+                        .withReservations(new Reservation().withInstances(instance1)).withNextToken("a"))
+                .thenReturn(new DescribeInstancesResult()
+                        .withReservations(new Reservation().withInstances(instance2)));
+
+        final Map<String, FleetInstance> described = new EC2Api().describeInstancesByTag(
+                amazonEC2, "aws:ec2spot:fleet-request-id", "sfr-1");
+
+        final Map<String, FleetInstance> expected = new HashMap<>();
+        expected.put("i-1", FleetInstance.from(instance1));
+        expected.put("i-2", FleetInstance.from(instance2));
+        Assert.assertEquals(expected, described);
+        final ArgumentCaptor<DescribeInstancesRequest> captor = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(amazonEC2, times(2)).describeInstances(captor.capture());
+        Assert.assertEquals(Arrays.asList(
+                new Filter("tag:aws:ec2spot:fleet-request-id", Arrays.asList("sfr-1")),
+                new Filter("instance-state-name", Arrays.asList("pending", "running"))),
+                captor.getAllValues().get(0).getFilters());
+        Assert.assertTrue(captor.getAllValues().get(0).getInstanceIds().isEmpty());
+    }
+
+    @Test
+    public void describeInstances_concurrently_shouldDescribeAllBatchesWithLimitedConcurrency() {
+        final LatencyAmazonEC2 ec2 = new LatencyAmazonEC2(50);
+        final Set<String> instanceIds = instanceIds(100);
+
+        final Map<String, FleetInstance> described = new EC2Api().describeInstances(ec2, instanceIds, 10, 4);
+
+        Assert.assertEquals(instanceIds, described.keySet());
+        Assert.assertEquals(10, ec2.calls.get());
+        Assert.assertTrue("expected parallel calls, max " + ec2.maxConcurrentCalls.get(), ec2.maxConcurrentCalls.get() > 1);
+        Assert.assertTrue("expected max 4 parallel calls, max " + ec2.maxConcurrentCalls.get(), ec2.maxConcurrentCalls.get() <= 4);
+    }
+
+    @Test
+    public void describeInstances_concurrently_shouldRetryOnlyBatchWithNotFoundInstances() {
+        final LatencyAmazonEC2 ec2 = new LatencyAmazonEC2(10);
+        ec2.notFound.add("i-15");
+        final Set<String> instanceIds = instanceIds(50);
+
+        final Map<String, FleetInstance> described = new EC2Api().describeInstances(ec2, instanceIds, 10, 3);
+
+        final Set<String> expected = new HashSet<>(instanceIds);
+        expected.remove("i-15");
+        Assert.assertEquals(expected, described.keySet());
+        // 5 batches and one retry for batch with not found instance
+        Assert.assertEquals(6, ec2.calls.get());
+    }
+
+    @Test
+    public void describeInstances_concurrently_shouldRethrowException() {
+        final LatencyAmazonEC2 ec2 = new LatencyAmazonEC2(10);
+        ec2.failure = new AmazonEC2Exception("throttling");
+        ec2.failure.setErrorCode("RequestLimitExceeded");
+
+        try {
+            new EC2Api().describeInstances(ec2, instanceIds(50), 10, 3);
+            Assert.fail("exception expected");
+        } catch (AmazonEC2Exception e) {
+            Assert.assertSame(ec2.failure, e);
+        }
+    }
+
+    @Test
+    public void describeInstances_concurrently_givenInterruptedWhileWaitingShouldNotReturnPartialResult() {
+        final LatencyAmazonEC2 ec2 = new LatencyAmazonEC2(500);
+        // caller thread describes its batches immediately and gets interrupted before other workers finished
+        ec2.interruptedThread = Thread.currentThread();
+
+        try {
+            new EC2Api().describeInstances(ec2, instanceIds(50), 10, 3);
+            Assert.fail("exception expected");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void describeInstances_concurrently_withConcurrencyOneDescribeSequentially() {
+        final LatencyAmazonEC2 ec2 = new LatencyAmazonEC2(1);
+
+        final Map<String, FleetInstance> described = new EC2Api().describeInstances(ec2, instanceIds(30), 10, 1);
+
+        Assert.assertEquals(30, described.size());
+        Assert.assertEquals(1, ec2.maxConcurrentCalls.get());
+    }
+
+    private static Set<String> instanceIds(final int count) {
+        final Set<String> instanceIds = new HashSet<>();
+        for (int i = 0; i < count; i++) instanceIds.add("i-" + i);
+        return instanceIds;
+    }
+
+    /**
+     * Fake EC2 which answers describe with running instances after fixed delay and tracks concurrency.
+     */
+    private static class LatencyAmazonEC2 extends EmptyAmazonEC2 {
+
+        private final long latencyMillis;
+        private final Set<String> notFound = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger concurrentCalls = new AtomicInteger();
+        private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        private volatile AmazonEC2Exception failure;
+        private volatile Thread interruptedThread;
+
+        private LatencyAmazonEC2(final long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public DescribeInstancesResult describeInstances(final DescribeInstancesRequest request) {
+            calls.incrementAndGet();
+            if (Thread.currentThread() == interruptedThread) {
+                // let other workers start their calls first
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (concurrentCalls.get() < 2 && System.currentTimeMillis() < deadline) Thread.yield();
+                Thread.currentThread().interrupt();
+                return running(request);
+            }
+
+            final int current = concurrentCalls.incrementAndGet();
+            maxConcurrentCalls.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                concurrentCalls.decrementAndGet();
+            }
+
+            if (failure != null) throw failure;
+
+            final List<String> missing = new ArrayList<>(request.getInstanceIds());
+            missing.retainAll(notFound);
+            if (!missing.isEmpty()) {
+                final AmazonEC2Exception exception = new AmazonEC2Exception(
+                        "The instance IDs '" + StringUtils.join(missing, ", ") + "' do not exist");
+                exception.setErrorCode("InvalidInstanceID.NotFound");
+                throw exception;
+            }
+
+            return running(request);
+        }
+
+        private static DescribeInstancesResult running(final DescribeInstancesRequest request) {
+            final Reservation reservation = new Reservation();
+            for (final String instanceId : request.getInstanceIds()) {
+                reservation.withInstances(new Instance().withInstanceId(instanceId)
+                        .withState(new InstanceState().withName(InstanceStateName.Running)));
+            }
+            return new DescribeInstancesResult().withReservations(reservation);
+        }
+
+    }
+
 }
@@ -0,0 +1,104 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazon.jenkins.ec2fleet.EmptyAmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.InstanceNetworkInterface;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compare heap retained by described instances for 5000 instances, full SDK {@link Instance}
+ * as before and {@link FleetInstance} as returned by {@link EC2Api} now.
+ */
+@Ignore
+public class FleetInstancePerformanceTest {
+
+    private static final int INSTANCES = 5000;
+
+    @Test
+    public void retainedHeapFor5000Instances() {
+        final Set<String> instanceIds = new HashSet<>();
+        for (int i = 0; i < INSTANCES; i++) instanceIds.add(String.format("i-%017x", i));
+        final RealisticAmazonEC2 ec2 = new RealisticAmazonEC2();
+
+        // warm up
+        new EC2Api().describeInstances(ec2, instanceIds);
+
+        final long before = usedHeap();
+        final Map<String, Instance> full = new HashMap<>();
+        for (final Reservation reservation : ec2.describeInstances(
+                new DescribeInstancesRequest().withInstanceIds(instanceIds)).getReservations()) {
+            for (final Instance instance : reservation.getInstances()) full.put(instance.getInstanceId(), instance);
+        }
+        final long fullBytes = usedHeap() - before;
+        System.out.println(String.format("SDK Instance: %s bytes retained for %s instances", fullBytes, full.size()));
+        full.clear();
+
+        final long beforeSlim = usedHeap();
+        final Map<String, FleetInstance> slim = new EC2Api().describeInstances(ec2, instanceIds);
+        final long slimBytes = usedHeap() - beforeSlim;
+        System.out.println(String.format("FleetInstance: %s bytes retained for %s instances", slimBytes, slim.size()));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Answers describe with instances filled like real response.
+     */
+    private static class RealisticAmazonEC2 extends EmptyAmazonEC2 {
+
+        @Override
+        public DescribeInstancesResult describeInstances(final DescribeInstancesRequest request) {
+            final Reservation reservation = new Reservation();
+            int i = 0;
+            for (final String instanceId : request.getInstanceIds()) {
+                final String privateIp = "10.0." + (i / 250) + "." + (i % 250);
+                reservation.withInstances(new Instance()
+                        .withInstanceId(instanceId)
+                        .withState(new InstanceState().withName(InstanceStateName.Running).withCode(16))
+                        .withInstanceType("m5.large")
+                        .withPrivateIpAddress(privateIp)
+                        .withPrivateDnsName("ip-" + privateIp.replace('.', '-') + ".ec2.internal")
+                        .withPublicIpAddress("54.0." + (i / 250) + "." + (i % 250))
+                        .withImageId("ami-0123456789abcdef0")
+                        .withSubnetId("subnet-0123456789abcdef0")
+                        .withVpcId("vpc-0123456789abcdef0")
+                        .withPlacement(new Placement().withAvailabilityZone("us-east-1a").withTenancy("default"))
+                        .withInstanceLifecycle("spot")
+                        .withSecurityGroups(new GroupIdentifier().withGroupId("sg-0123456789abcdef0").withGroupName("jenkins"))
+                        .withBlockDeviceMappings(new InstanceBlockDeviceMapping().withDeviceName("/dev/xvda")
+                                .withEbs(new EbsInstanceBlockDevice().withVolumeId("vol-" + instanceId.substring(2))
+                                        .withStatus("attached").withDeleteOnTermination(true)))
+                        .withNetworkInterfaces(new InstanceNetworkInterface()
+                                .withNetworkInterfaceId("eni-" + instanceId.substring(2))
+                                .withPrivateIpAddress(privateIp).withMacAddress("0a:00:00:00:00:00")
+                                .withGroups(new GroupIdentifier().withGroupId("sg-0123456789abcdef0").withGroupName("jenkins")))
+                        .withTags(new Tag().withKey("ec2-fleet-plugin:cloud-name").withValue("cloud"),
+                                new Tag().withKey("aws:ec2spot:fleet-request-id").withValue("sfr-0123")));
+                i++;
+            }
+            return new DescribeInstancesResult().withReservations(reservation);
+        }
+
+    }
+
+}
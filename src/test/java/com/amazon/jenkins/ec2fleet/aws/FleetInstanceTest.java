@@ -0,0 +1,61 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FleetInstanceTest {
+
+    @Test
+    public void from_keepOnlyUsedFields() {
+        final FleetInstance instance = FleetInstance.from(new Instance()
+                .withInstanceId("i-1")
+                .withState(new InstanceState().withName(InstanceStateName.Running))
+                .withInstanceType("m5.large")
+                .withPrivateIpAddress("10.0.0.1")
+                .withPublicIpAddress("54.0.0.1")
+                .withPlacement(new Placement().withAvailabilityZone("us-east-1a"))
+                .withInstanceLifecycle("spot")
+                .withTags(new Tag().withKey("k").withValue("v")));
+
+        Assert.assertEquals("i-1", instance.getInstanceId());
+        Assert.assertEquals("running", instance.getState());
+        Assert.assertEquals("m5.large", instance.getInstanceType());
+        Assert.assertEquals("10.0.0.1", instance.getPrivateIpAddress());
+        Assert.assertEquals("54.0.0.1", instance.getPublicIpAddress());
+        Assert.assertEquals("us-east-1a", instance.getAvailabilityZone());
+        Assert.assertEquals("spot", instance.getLifecycle());
+    }
+
+    @Test
+    public void from_instanceWithoutStateAndPlacement() {
+        final FleetInstance instance = FleetInstance.from(new Instance().withInstanceId("i-1"));
+
+        Assert.assertEquals("i-1", instance.getInstanceId());
+        Assert.assertNull(instance.getState());
+        Assert.assertNull(instance.getAvailabilityZone());
+        Assert.assertNull(instance.getLifecycle());
+    }
+
+    @Test
+    public void from_internRepeatedValues() {
+        final FleetInstance instance = FleetInstance.from(new Instance().withInstanceId("i-1")
+                .withInstanceType(new String("m5.large".toCharArray())));
+
+        Assert.assertSame("m5.large", instance.getInstanceType());
+    }
+
+    @Test
+    public void equalsByAllFields() {
+        final Instance instance = new Instance().withInstanceId("i-1").withPublicIpAddress("ip");
+
+        Assert.assertEquals(FleetInstance.from(instance), FleetInstance.from(instance));
+        Assert.assertNotEquals(FleetInstance.from(instance),
+                FleetInstance.from(new Instance().withInstanceId("i-1").withPublicIpAddress("other")));
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstanceTypesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceTypesResult;
+import com.amazonaws.services.ec2.model.InstanceTypeInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InstanceTypeInfoCacheTest {
+
+    private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+
+    @Test
+    public void prefetch_describeAllTypesInOneCall() {
+        when(ec2.describeInstanceTypes(any(DescribeInstanceTypesRequest.class))).thenAnswer(invocation -> described(
+                ((DescribeInstanceTypesRequest) invocation.getArgument(0)).getInstanceTypes()));
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(60000);
+
+        cache.prefetch(ec2, Arrays.asList("m5.large", "c5.large", "m5.large"));
+
+        final ArgumentCaptor<DescribeInstanceTypesRequest> captor = ArgumentCaptor.forClass(DescribeInstanceTypesRequest.class);
+        verify(ec2, times(1)).describeInstanceTypes(captor.capture());
+        Assert.assertEquals(Arrays.asList("m5.large", "c5.large"), captor.getValue().getInstanceTypes());
+        Assert.assertEquals("m5.large", cache.getCached(ec2, "m5.large").getInstanceType());
+        Assert.assertEquals("c5.large", cache.getCached(ec2, "c5.large").getInstanceType());
+    }
+
+    @Test
+    public void prefetch_skipCachedTypes() {
+        when(ec2.describeInstanceTypes(any(DescribeInstanceTypesRequest.class))).thenAnswer(invocation -> described(
+                ((DescribeInstanceTypesRequest) invocation.getArgument(0)).getInstanceTypes()));
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(60000);
+
+        cache.prefetch(ec2, Collections.singletonList("m5.large"));
+        cache.prefetch(ec2, Collections.singletonList("m5.large"));
+
+        verify(ec2, times(1)).describeInstanceTypes(any(DescribeInstanceTypesRequest.class));
+        Assert.assertEquals(1, cache.getDescribeCalls());
+    }
+
+    @Test
+    public void prefetch_describeAgainWhenExpired() {
+        when(ec2.describeInstanceTypes(any(DescribeInstanceTypesRequest.class))).thenAnswer(invocation -> described(
+                ((DescribeInstanceTypesRequest) invocation.getArgument(0)).getInstanceTypes()));
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(-1);
+
+        cache.prefetch(ec2, Collections.singletonList("m5.large"));
+        cache.prefetch(ec2, Collections.singletonList("m5.large"));
+
+        verify(ec2, times(2)).describeInstanceTypes(any(DescribeInstanceTypesRequest.class));
+    }
+
+    @Test
+    public void getCached_neverCallAws() {
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(60000);
+
+        Assert.assertNull(cache.getCached(ec2, "m5.large"));
+        verify(ec2, never()).describeInstanceTypes(any(DescribeInstanceTypesRequest.class));
+    }
+
+    @Test
+    public void getCached_cacheIsPerClient() {
+        when(ec2.describeInstanceTypes(any(DescribeInstanceTypesRequest.class))).thenAnswer(invocation -> described(
+                ((DescribeInstanceTypesRequest) invocation.getArgument(0)).getInstanceTypes()));
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(60000);
+
+        cache.prefetch(ec2, Collections.singletonList("m5.large"));
+
+        Assert.assertNull(cache.getCached(mock(AmazonEC2.class), "m5.large"));
+    }
+
+    @Test
+    public void getInstanceTypeInfo_describeTypeIfNotPrefetched() {
+        when(ec2.describeInstanceTypes(any(DescribeInstanceTypesRequest.class))).thenAnswer(invocation -> described(
+                ((DescribeInstanceTypesRequest) invocation.getArgument(0)).getInstanceTypes()));
+        final InstanceTypeInfoCache cache = new InstanceTypeInfoCache(60000);
+
+        Assert.assertEquals("m5.large", cache.getInstanceTypeInfo(ec2, "m5.large").getInstanceType());
+        Assert.assertEquals("m5.large", cache.getInstanceTypeInfo(ec2, "m5.large").getInstanceType());
+
+        verify(ec2, times(1)).describeInstanceTypes(any(DescribeInstanceTypesRequest.class));
+    }
+
+    private static DescribeInstanceTypesResult described(final List<String> instanceTypes) {
+        final List<InstanceTypeInfo> infos = new ArrayList<>();
+        for (final String instanceType : instanceTypes) infos.add(new InstanceTypeInfo().withInstanceType(instanceType));
+        return new DescribeInstanceTypesResult().withInstanceTypes(infos);
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class SingleFlightTest {
+
+    private static final List<String> KEY = Arrays.asList("getState", "cred", "region", "", "f1");
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void execute_concurrentSameReadsShareOneCall() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(() -> singleFlight.execute(KEY, false, () -> {
+                started.countDown();
+                await(release);
+                return "state-" + calls.incrementAndGet();
+            }));
+            started.await();
+            final Future<String> second = executor.submit(() -> singleFlight.execute(KEY, false, read()));
+            // let second join
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertEquals("state-1", first.get());
+            Assert.assertEquals("state-1", second.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(2, singleFlight.getRequests());
+        Assert.assertEquals(1, singleFlight.getExecutions());
+    }
+
+    @Test
+    public void execute_reuseCompletedResultOnlyIfAllowed() {
+        final SingleFlight singleFlight = new SingleFlight(60000);
+
+        Assert.assertEquals("state-1", singleFlight.execute(KEY, true, read()));
+        Assert.assertEquals("state-1", singleFlight.execute(KEY, true, read()));
+        Assert.assertEquals("state-2", singleFlight.execute(KEY, false, read()));
+    }
+
+    @Test
+    public void execute_differentKeysAreNotShared() {
+        final SingleFlight singleFlight = new SingleFlight(60000);
+
+        singleFlight.execute(KEY, true, read());
+        singleFlight.execute(Collections.singletonList("describe"), true, read());
+
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void execute_failureIsNotCached() {
+        final SingleFlight singleFlight = new SingleFlight(60000);
+
+        try {
+            singleFlight.execute(KEY, true, () -> {
+                throw new IllegalStateException("test");
+            });
+            Assert.fail("Exception not raised");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+
+        Assert.assertEquals("state-1", singleFlight.execute(KEY, true, read()));
+    }
+
+    @Test
+    public void invalidateAll_forgetCompletedResults() {
+        final SingleFlight singleFlight = new SingleFlight(60000);
+
+        singleFlight.execute(KEY, true, read());
+        singleFlight.invalidateAll();
+
+        Assert.assertEquals("state-2", singleFlight.execute(KEY, true, read()));
+    }
+
+    private Supplier<String> read() {
+        return () -> "state-" + calls.incrementAndGet();
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.amazon.jenkins.ec2fleet.aws;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SuppressWarnings("unchecked")
+public class TerminationServiceTest {
+
+    private final EC2Api ec2Api = mock(EC2Api.class);
+    private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+
+    @Test
+    public void terminate_completedWithTerminatedIds() throws Exception {
+        final TerminationService service = new TerminationService(200, 1000);
+
+        final TerminationService.Result first = service.terminate(ec2Api, ec2, Arrays.asList("i-1", "i-2"))
+                .get(5, TimeUnit.SECONDS);
+        final TerminationService.Result second = service.terminate(ec2Api, ec2, Collections.singleton("i-3"))
+                .get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), first.getTerminated());
+        Assert.assertEquals(Collections.singleton("i-3"), second.getTerminated());
+        Assert.assertTrue(first.getFailed().isEmpty());
+        Assert.assertEquals(2, service.getTerminateCalls());
+    }
+
+    @Test
+    public void terminate_concurrentCallsAreBatched() throws Exception {
+        final TerminationService service = new TerminationService(500, 1000);
+
+        final TerminationService.Result[] results = new TerminationService.Result[2];
+        final Thread other = new Thread(() -> {
+            try {
+                results[1] = service.terminate(ec2Api, ec2, Collections.singleton("i-3")).get(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        final CompletableFuture<TerminationService.Result> future =
+                service.terminate(ec2Api, ec2, Arrays.asList("i-1", "i-2"));
+        other.start();
+        results[0] = future.get(5, TimeUnit.SECONDS);
+        other.join();
+
+        final ArgumentCaptor<Collection<String>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(ec2Api, times(1)).terminateInstances(eq(ec2), captor.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2", "i-3")), captor.getValue());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), results[0].getTerminated());
+        Assert.assertEquals(Collections.singleton("i-3"), results[1].getTerminated());
+        Assert.assertEquals(3, service.getSubmitted());
+    }
+
+    @Test
+    public void terminate_flushWhenBatchIsFull() throws Exception {
+        final TerminationService service = new TerminationService(TimeUnit.HOURS.toMillis(1), 2);
+
+        final TerminationService.Result result = service.terminate(ec2Api, ec2, Arrays.asList("i-1", "i-2"))
+                .get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), result.getTerminated());
+    }
+
+    @Test
+    public void terminate_splitBatchToFindFailedInstances() throws Exception {
+        final AmazonEC2Exception exception = new AmazonEC2Exception("test");
+        doThrow(exception).when(ec2Api).terminateInstances(eq(ec2),
+                argThat((Collection<String> ids) -> ids.contains("i-2")));
+        final TerminationService service = new TerminationService(0, 1000);
+
+        final TerminationService.Result result = service.terminate(
+                ec2Api, ec2, Arrays.asList("i-1", "i-2", "i-3", "i-4")).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-3", "i-4")), result.getTerminated());
+        Assert.assertEquals(Collections.singletonMap("i-2", exception), result.getFailed());
+        Assert.assertTrue(service.getInFlight(ec2).isEmpty());
+    }
+
+    @Test
+    public void terminate_throttledBatchIsNotSplit() throws Exception {
+        final AmazonEC2Exception exception = new AmazonEC2Exception("test");
+        exception.setErrorCode("RequestLimitExceeded");
+        doThrow(exception).when(ec2Api).terminateInstances(eq(ec2), any(Collection.class));
+        final TerminationService service = new TerminationService(0, 1000);
+
+        final TerminationService.Result result = service.terminate(
+                ec2Api, ec2, Arrays.asList("i-1", "i-2")).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), result.getFailed().keySet());
+        Assert.assertEquals(1, service.getTerminateCalls());
+    }
+
+    @Test
+    public void getInFlight_containsSubmittedNotProcessedIds() {
+        final TerminationService service = new TerminationService(TimeUnit.HOURS.toMillis(1), 1000);
+
+        service.terminate(ec2Api, ec2, Arrays.asList("i-1", "i-2"));
+
+        final Set<String> inFlight = service.getInFlight(ec2);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), inFlight);
+        Assert.assertTrue(service.getInFlight(mock(AmazonEC2.class)).isEmpty());
+    }
+
+    @Test
+    public void terminate_emptyIsCompletedImmediately() throws Exception {
+        final TerminationService service = new TerminationService(0, 1000);
+
+        final TerminationService.Result result = service.terminate(
+                ec2Api, ec2, Collections.<String>emptySet()).get(1, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.getTerminated().isEmpty());
+        Assert.assertEquals(0, service.getTerminateCalls());
+    }
+
+}
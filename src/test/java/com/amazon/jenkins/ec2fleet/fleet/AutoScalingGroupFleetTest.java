@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
+import com.amazon.jenkins.ec2fleet.aws.AWSClientCache;
 import com.amazon.jenkins.ec2fleet.aws.AWSUtils;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
@@ -65,6 +66,8 @@ public class AutoScalingGroupFleetTest {
         mockStatic(Jenkins.class);
         when(Jenkins.get()).thenReturn(jenkins);
         when(AWSUtils.getClientConfiguration(ENDPOINT)).thenReturn(clientConfiguration);
+        // clients are shared between calls, make sure each test gets own mock
+        AWSClientCache.get().invalidateAll();
     }
 
     @Test
@@ -279,4 +282,42 @@ public class AutoScalingGroupFleetTest {
         assertEquals(1, result.getInstances().size());
         assertEquals(result.getInstanceTypeWeights(), expectedWeights);
     }
+
+    @Test
+    public void getStateBatchDescribeUpTo100GroupsPerCall() throws Exception {
+        when(AWSCredentialsHelper.getCredentials(CREDS_ID, jenkins)).thenReturn(amazonWebServicesCredentials);
+        PowerMockito.whenNew(AmazonAutoScalingClient.class)
+                .withArguments(amazonWebServicesCredentials, clientConfiguration)
+                .thenReturn(autoScalingClient);
+
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 150; i++) names.add("asg-" + i);
+        when(autoScalingClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class))).thenAnswer(invocation -> {
+            final DescribeAutoScalingGroupsRequest request = invocation.getArgument(0);
+            final List<AutoScalingGroup> groups = new ArrayList<>();
+            for (final String name : request.getAutoScalingGroupNames()) {
+                // asg-0 is deleted
+                if (name.equals("asg-0")) continue;
+                groups.add(new AutoScalingGroup()
+                        .withAutoScalingGroupName(name)
+                        .withDesiredCapacity(1)
+                        .withMixedInstancesPolicy(new MixedInstancesPolicy()
+                                .withLaunchTemplate(new LaunchTemplate()
+                                        .withOverrides(new LaunchTemplateOverrides()
+                                                .withInstanceType("t3.large")
+                                                .withWeightedCapacity("2"))))
+                        .withInstances(new Instance().withInstanceId("i-" + name)));
+            }
+            return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(groups);
+        });
+
+        final Map<String, FleetStateStats> result = new AutoScalingGroupFleet().getStateBatch(CREDS_ID, REGION, ENDPOINT, names);
+
+        assertEquals(149, result.size());
+        assertFalse(result.containsKey("asg-0"));
+        assertEquals(Collections.singleton("i-asg-1"), result.get("asg-1").getInstances());
+        assertEquals(1, result.get("asg-149").getNumDesired());
+        assertEquals(Collections.singletonMap("t3.large", 2d), result.get("asg-149").getInstanceTypeWeights());
+        verify(autoScalingClient, times(2)).describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class));
+    }
 }
@@ -3,6 +3,7 @@ package com.amazon.jenkins.ec2fleet.fleet;
 import com.amazon.jenkins.ec2fleet.aws.EC2Api;
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
 import com.amazon.jenkins.ec2fleet.Registry;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 import hudson.util.ListBoxModel;
@@ -18,6 +19,8 @@ import java.util.*;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -51,6 +54,7 @@ public class EC2EC2FleetTest {
     @After
     public void after() {
         Registry.setEc2Api(new EC2Api());
+        FleetConfigCache.get().invalidateAll();
     }
 
     @Test(expected = IllegalStateException.class)
@@ -105,6 +109,14 @@ public class EC2EC2FleetTest {
 
 
 
+    @Test
+    public void getState_withoutInstancesSkipListOfFleetInstances() {
+        FleetStateStats stats = new EC2EC2Fleet().getState("cred", "region", "", "f", false);
+
+        Assert.assertEquals(Collections.emptySet(), stats.getInstances());
+        verify(ec2, never()).describeFleetInstances(any(DescribeFleetInstancesRequest.class));
+    }
+
     @Test
     public void getState_returnAllPagesDescribedInstancesForFleet() {
         when(ec2.describeFleetInstances(any(DescribeFleetInstancesRequest.class)))
@@ -172,21 +184,17 @@ public class EC2EC2FleetTest {
 
     @Test
     public void getStateBatch_withNoFleetIdsAndNoFleets_returnsAnEmptyMap() {
-        when(ec2.describeFleets(any(DescribeFleetsRequest.class)))
-                .thenReturn(new DescribeFleetsResult());
-
         Collection<String> fleetIds = new ArrayList<>();
 
         Map<String, FleetStateStats> fleetStateStatsMap = new EC2EC2Fleet().getStateBatch("cred", "region", "", fleetIds);
 
         Assert.assertTrue("FleetStateStats Map is expected to be empty when no Fleet Ids are given", fleetStateStatsMap.isEmpty());
+        // no ids means all fleets for describe
+        verify(ec2, never()).describeFleets(any(DescribeFleetsRequest.class));
     }
 
     @Test
     public void getStateBatch_withFleetIdsAndNoFleets_returnsMapWithNoInstances() {
-        when(ec2.describeFleetInstances(any(DescribeFleetInstancesRequest.class)))
-                .thenReturn(new DescribeFleetInstancesResult());
-
         Collection<String> fleetIds = new ArrayList<>();
         fleetIds.add("f1");
         fleetIds.add("f2");
@@ -194,17 +202,39 @@ public class EC2EC2FleetTest {
         Map<String, FleetStateStats> fleetStateStatsMap = new EC2EC2Fleet().getStateBatch("cred", "region", "", fleetIds);
 
         Assert.assertTrue(fleetStateStatsMap.isEmpty());
+        verify(ec2, never()).describeFleetInstances(any(DescribeFleetInstancesRequest.class));
+    }
+
+    @Test
+    public void getStateBatch_describeFleetsOneByOneIfBatchCallFailedByInvalidId() {
+        final AmazonEC2Exception notFound = new AmazonEC2Exception("test");
+        notFound.setErrorType(AmazonServiceException.ErrorType.Client);
+        when(ec2.describeFleets(any(DescribeFleetsRequest.class))).thenThrow(notFound);
+        doReturn(new DescribeFleetsResult()
+                .withFleets(new FleetData()
+                        .withFleetId("f1")
+                        .withFleetState(String.valueOf(BatchState.Active))
+                        .withTargetCapacitySpecification(new TargetCapacitySpecification().withTotalTargetCapacity(1))))
+                .when(ec2).describeFleets(new DescribeFleetsRequest().withFleetIds(Collections.singleton("f1")));
+
+        Map<String, FleetStateStats> statsMap = new EC2EC2Fleet().getStateBatch(
+                "cred", "region", "", Arrays.asList("f1", "f2"));
+
+        Assert.assertEquals(Collections.singleton("f1"), statsMap.keySet());
+        verify(ec2).describeFleets(new DescribeFleetsRequest().withFleetIds(Collections.singleton("f2")));
     }
 
     @Test
     public void getBatchState_withFleetsAndActiveInstances_returnsDescribedInstancesForFleets() {
-        when(ec2.describeFleetInstances(any(DescribeFleetInstancesRequest.class)))
+        // fleets are listed in parallel, so answer by fleet id
+        when(ec2.describeFleetInstances(new DescribeFleetInstancesRequest().withFleetId("f1")))
                 .thenReturn(new DescribeFleetInstancesResult()
                                 .withFleetId("f1")
                                 .withActiveInstances(
                                         new ActiveInstance().withInstanceId("i-1"),
-                                        new ActiveInstance().withInstanceId("i-2")),
-                        new DescribeFleetInstancesResult()
+                                        new ActiveInstance().withInstanceId("i-2")));
+        when(ec2.describeFleetInstances(new DescribeFleetInstancesRequest().withFleetId("f2")))
+                .thenReturn(new DescribeFleetInstancesResult()
                                 .withFleetId("f2")
                                 .withActiveInstances(
                                         new ActiveInstance().withInstanceId("i-3")
@@ -272,6 +302,32 @@ public class EC2EC2FleetTest {
         Assert.assertEquals(6, statsMap.get("f2").getNumDesired());
     }
 
+    @Test
+    public void getBatchState_withFleets_returnsInstanceTypeWeights() {
+        when(ec2.describeFleets(any(DescribeFleetsRequest.class)))
+                .thenReturn(new DescribeFleetsResult()
+                        .withFleets(
+                                new FleetData()
+                                        .withFleetId("f1")
+                                        .withFleetState(String.valueOf(BatchState.Active))
+                                        .withTargetCapacitySpecification(
+                                                new TargetCapacitySpecification()
+                                                        .withTotalTargetCapacity(2))
+                                        .withLaunchTemplateConfigs(new FleetLaunchTemplateConfig()
+                                                .withOverrides(
+                                                        new FleetLaunchTemplateOverrides().withInstanceType("t1").withWeightedCapacity(1.0),
+                                                        new FleetLaunchTemplateOverrides().withInstanceType("t1").withWeightedCapacity(3.0),
+                                                        new FleetLaunchTemplateOverrides().withInstanceType("t2").withWeightedCapacity(2.0)))));
+
+        Map<String, FleetStateStats> statsMap = new EC2EC2Fleet().getStateBatch(
+                "cred", "region", "", Collections.singletonList("f1"));
+
+        Map<String, Double> expected = new HashMap<>();
+        expected.put("t1", 3.0);
+        expected.put("t2", 2.0);
+        Assert.assertEquals(expected, statsMap.get("f1").getInstanceTypeWeights());
+    }
+
 
     @Test
     public void describe_whenAllFleetsEnabled_shouldIncludeAllFleetsInAllStates() {
@@ -3,8 +3,10 @@ package com.amazon.jenkins.ec2fleet.fleet;
 import com.amazon.jenkins.ec2fleet.aws.EC2Api;
 import com.amazon.jenkins.ec2fleet.FleetStateStats;
 import com.amazon.jenkins.ec2fleet.Registry;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.ActiveInstance;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
 import com.amazonaws.services.ec2.model.BatchState;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
@@ -31,6 +33,8 @@ import java.util.Map;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -64,6 +68,7 @@ public class EC2SpotFleetTest {
     @After
     public void after() {
         Registry.setEc2Api(new EC2Api());
+        FleetConfigCache.get().invalidateAll();
     }
 
     @Test(expected = IllegalStateException.class)
@@ -116,6 +121,14 @@ public class EC2SpotFleetTest {
                 .withSpotFleetRequestId("f"));
     }
 
+    @Test
+    public void getState_withoutInstancesSkipListOfFleetInstances() {
+        FleetStateStats stats = new EC2SpotFleet().getState("cred", "region", "", "f", false);
+
+        Assert.assertEquals(Collections.emptySet(), stats.getInstances());
+        verify(ec2, never()).describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class));
+    }
+
     @Test
     public void getState_returnAllPagesDescribedInstancesForFleet() {
         when(ec2.describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class)))
@@ -179,6 +192,132 @@ public class EC2SpotFleetTest {
         Assert.assertEquals(Collections.emptyMap(), stats.getInstanceTypeWeights());
     }
 
+    @Test
+    public void getState_reuseInstanceTypeWeightsTillFleetModified() {
+        when(ec2.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                .thenReturn(new DescribeSpotFleetRequestsResult()
+                        .withSpotFleetRequestConfigs(new SpotFleetRequestConfig()
+                                .withSpotFleetRequestState(BatchState.Active)
+                                .withSpotFleetRequestConfig(new SpotFleetRequestConfigData()
+                                        .withTargetCapacity(1)
+                                        .withLaunchSpecifications(
+                                                new SpotFleetLaunchSpecification().withInstanceType("t1").withWeightedCapacity(3.0)))),
+                        new DescribeSpotFleetRequestsResult()
+                        .withSpotFleetRequestConfigs(new SpotFleetRequestConfig()
+                                .withSpotFleetRequestState(BatchState.Active)
+                                .withSpotFleetRequestConfig(new SpotFleetRequestConfigData()
+                                        .withTargetCapacity(5)
+                                        .withLaunchSpecifications(
+                                                new SpotFleetLaunchSpecification().withInstanceType("t1").withWeightedCapacity(3.0)))),
+                        new DescribeSpotFleetRequestsResult()
+                        .withSpotFleetRequestConfigs(new SpotFleetRequestConfig()
+                                .withSpotFleetRequestState(BatchState.Modifying)
+                                .withSpotFleetRequestConfig(new SpotFleetRequestConfigData()
+                                        .withTargetCapacity(5)
+                                        .withLaunchSpecifications(
+                                                new SpotFleetLaunchSpecification().withInstanceType("t1").withWeightedCapacity(4.0)))));
+
+        FleetStateStats first = new EC2SpotFleet().getState("cred", "region", "", "f-reuse");
+        FleetStateStats second = new EC2SpotFleet().getState("cred", "region", "", "f-reuse");
+        FleetStateStats changed = new EC2SpotFleet().getState("cred", "region", "", "f-reuse");
+
+        Assert.assertEquals(5, second.getNumDesired());
+        Assert.assertSame(first.getInstanceTypeWeights(), second.getInstanceTypeWeights());
+        Assert.assertEquals(Collections.singletonMap("t1", 4.0), changed.getInstanceTypeWeights());
+    }
+
+    @Test
+    public void getStateBatch_withNoFleetIdsReturnEmptyMapWithoutCalls() {
+        Map<String, FleetStateStats> statsMap = new EC2SpotFleet().getStateBatch(
+                "cred", "region", "", Collections.<String>emptyList());
+
+        Assert.assertTrue(statsMap.isEmpty());
+        verify(ec2, never()).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void getStateBatch_returnInstancesAndWeightsForEachDescribedFleet() {
+        when(ec2.describeSpotFleetInstances(new DescribeSpotFleetInstancesRequest().withSpotFleetRequestId("f1")))
+                .thenReturn(new DescribeSpotFleetInstancesResult()
+                        .withActiveInstances(new ActiveInstance().withInstanceId("i-1"), new ActiveInstance().withInstanceId("i-2")));
+        when(ec2.describeSpotFleetInstances(new DescribeSpotFleetInstancesRequest().withSpotFleetRequestId("f2")))
+                .thenReturn(new DescribeSpotFleetInstancesResult()
+                        .withActiveInstances(new ActiveInstance().withInstanceId("i-3")));
+        when(ec2.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                .thenReturn(new DescribeSpotFleetRequestsResult()
+                        .withSpotFleetRequestConfigs(
+                                new SpotFleetRequestConfig()
+                                        .withSpotFleetRequestId("f1")
+                                        .withSpotFleetRequestState(BatchState.Active)
+                                        .withSpotFleetRequestConfig(new SpotFleetRequestConfigData()
+                                                .withTargetCapacity(2)
+                                                .withLaunchSpecifications(
+                                                        new SpotFleetLaunchSpecification().withInstanceType("t1").withWeightedCapacity(2.0))),
+                                new SpotFleetRequestConfig()
+                                        .withSpotFleetRequestId("f2")
+                                        .withSpotFleetRequestState(BatchState.Modifying)
+                                        .withSpotFleetRequestConfig(new SpotFleetRequestConfigData()
+                                                .withTargetCapacity(3))));
+
+        Map<String, FleetStateStats> statsMap = new EC2SpotFleet().getStateBatch(
+                "cred", "region", "", Arrays.asList("f1", "f2"));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), statsMap.get("f1").getInstances());
+        Assert.assertEquals(Collections.singleton("i-3"), statsMap.get("f2").getInstances());
+        Assert.assertEquals(2, statsMap.get("f1").getNumDesired());
+        Assert.assertTrue(statsMap.get("f2").getState().isModifying());
+        Assert.assertEquals(Collections.singletonMap("t1", 2.0), statsMap.get("f1").getInstanceTypeWeights());
+        Assert.assertEquals(Collections.emptyMap(), statsMap.get("f2").getInstanceTypeWeights());
+        verify(ec2).describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest()
+                .withSpotFleetRequestIds(Arrays.asList("f1", "f2")));
+    }
+
+    @Test
+    public void getStateBatch_skipFleetWhichCantBeDescribed() {
+        when(ec2.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                .thenReturn(new DescribeSpotFleetRequestsResult()
+                        .withSpotFleetRequestConfigs(new SpotFleetRequestConfig()
+                                .withSpotFleetRequestId("f1")
+                                .withSpotFleetRequestState(BatchState.Active)
+                                .withSpotFleetRequestConfig(new SpotFleetRequestConfigData().withTargetCapacity(1))));
+
+        Map<String, FleetStateStats> statsMap = new EC2SpotFleet().getStateBatch(
+                "cred", "region", "", Arrays.asList("f1", "f2"));
+
+        Assert.assertEquals(Collections.singleton("f1"), statsMap.keySet());
+        verify(ec2, never()).describeSpotFleetInstances(new DescribeSpotFleetInstancesRequest().withSpotFleetRequestId("f2"));
+    }
+
+    @Test
+    public void getStateBatch_describeFleetsOneByOneIfBatchCallFailedByInvalidId() {
+        final AmazonEC2Exception notFound = new AmazonEC2Exception("test");
+        notFound.setErrorType(AmazonServiceException.ErrorType.Client);
+        when(ec2.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class))).thenThrow(notFound);
+        doReturn(new DescribeSpotFleetRequestsResult()
+                .withSpotFleetRequestConfigs(new SpotFleetRequestConfig()
+                        .withSpotFleetRequestId("f1")
+                        .withSpotFleetRequestState(BatchState.Active)
+                        .withSpotFleetRequestConfig(new SpotFleetRequestConfigData().withTargetCapacity(1))))
+                .when(ec2).describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest()
+                        .withSpotFleetRequestIds(Collections.singleton("f1")));
+
+        Map<String, FleetStateStats> statsMap = new EC2SpotFleet().getStateBatch(
+                "cred", "region", "", Arrays.asList("f1", "f2"));
+
+        Assert.assertEquals(Collections.singleton("f1"), statsMap.keySet());
+        verify(ec2).describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest()
+                .withSpotFleetRequestIds(Collections.singleton("f2")));
+    }
+
+    @Test(expected = AmazonEC2Exception.class)
+    public void getStateBatch_failIfBatchCallFailedNotByClientError() {
+        final AmazonEC2Exception throttled = new AmazonEC2Exception("test");
+        throttled.setErrorType(AmazonServiceException.ErrorType.Service);
+        when(ec2.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class))).thenThrow(throttled);
+
+        new EC2SpotFleet().getStateBatch("cred", "region", "", Arrays.asList("f1", "f2"));
+    }
+
     @Test
     public void describe_whenAllFleetsEnabled_shouldIncludeAllFleetsInAllStates() {
         // given
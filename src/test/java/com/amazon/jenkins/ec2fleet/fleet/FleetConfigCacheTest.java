@@ -0,0 +1,97 @@
+package com.amazon.jenkins.ec2fleet.fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class FleetConfigCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Date created = new Date(1000);
+
+    @Test
+    public void getInstanceTypeWeights_reuseWeightsWhileFleetNotModified() {
+        final FleetConfigCache cache = new FleetConfigCache(60000);
+
+        final Map<String, Double> first = cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+        final Map<String, Double> second = cache.getInstanceTypeWeights("f1", created, false, loader(2.0));
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(Collections.singletonMap("t1", 1.0), second);
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void getInstanceTypeWeights_reloadWhileFleetModifying() {
+        final FleetConfigCache cache = new FleetConfigCache(60000);
+
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+        final Map<String, Double> modifying = cache.getInstanceTypeWeights("f1", created, true, loader(2.0));
+        final Map<String, Double> modified = cache.getInstanceTypeWeights("f1", created, false, loader(3.0));
+
+        Assert.assertEquals(Collections.singletonMap("t1", 2.0), modifying);
+        Assert.assertSame(modifying, modified);
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void getInstanceTypeWeights_reloadIfFleetRecreated() {
+        final FleetConfigCache cache = new FleetConfigCache(60000);
+
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+        final Map<String, Double> recreated = cache.getInstanceTypeWeights("f1", new Date(2000), false, loader(2.0));
+
+        Assert.assertEquals(Collections.singletonMap("t1", 2.0), recreated);
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void getInstanceTypeWeights_reloadIfOlderThanMaxAge() {
+        final FleetConfigCache cache = new FleetConfigCache(-1);
+
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void getInstanceTypeWeights_removeEntriesOlderThanMaxAge() {
+        final FleetConfigCache cache = new FleetConfigCache(-1);
+
+        cache.getInstanceTypeWeights("deleted", created, false, loader(1.0));
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void getInstanceTypeWeights_keepByFleet() {
+        final FleetConfigCache cache = new FleetConfigCache(60000);
+
+        cache.getInstanceTypeWeights("f1", created, false, loader(1.0));
+        final Map<String, Double> other = cache.getInstanceTypeWeights("f2", created, false, loader(2.0));
+
+        Assert.assertEquals(Collections.singletonMap("t1", 2.0), other);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getInstanceTypeWeights_returnUnmodifiableWeights() {
+        new FleetConfigCache(60000).getInstanceTypeWeights("f1", created, false, loader(1.0)).clear();
+    }
+
+    private Supplier<Map<String, Double>> loader(final double weight) {
+        return () -> {
+            loads.incrementAndGet();
+            return new HashMap<>(Collections.singletonMap("t1", weight));
+        };
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.amazon.jenkins.ec2fleet.fleet;
+
+import com.amazon.jenkins.ec2fleet.FleetStateStats;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class FleetStateCoalescerTest {
+
+    private final EC2Fleet ec2Fleet = mock(EC2Fleet.class);
+
+    @Test
+    public void getState_callsInSameWindowShareOneBatch() throws Exception {
+        when(ec2Fleet.getStateBatch(any(), any(), any(), anyCollection()))
+                .thenAnswer(invocation -> statsForAll(invocation.getArgument(3)));
+        final FleetStateCoalescer coalescer = new FleetStateCoalescer(500);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<FleetStateStats> first = executor.submit(getState(coalescer, "cred", "f1"));
+            final Future<FleetStateStats> second = executor.submit(getState(coalescer, "cred", "f2"));
+
+            Assert.assertEquals("f1", first.get().getFleetId());
+            Assert.assertEquals("f2", second.get().getFleetId());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final ArgumentCaptor<Collection<String>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(ec2Fleet, times(1)).getStateBatch(any(), any(), any(), captor.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("f1", "f2")), new HashSet<>(captor.getValue()));
+        verify(ec2Fleet, never()).getState(any(), any(), any(), any());
+        Assert.assertEquals(2, coalescer.getRequests());
+        Assert.assertEquals(1, coalescer.getBatchCalls());
+    }
+
+    @Test
+    public void getState_differentCredentialsAreNotCoalesced() throws Exception {
+        when(ec2Fleet.getStateBatch(any(), any(), any(), anyCollection()))
+                .thenAnswer(invocation -> statsForAll(invocation.getArgument(3)));
+        final FleetStateCoalescer coalescer = new FleetStateCoalescer(500);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<FleetStateStats> first = executor.submit(getState(coalescer, "cred1", "f1"));
+            final Future<FleetStateStats> second = executor.submit(getState(coalescer, "cred2", "f2"));
+            first.get();
+            second.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(ec2Fleet).getStateBatch("cred1", "region", "", Collections.singleton("f1"));
+        verify(ec2Fleet).getStateBatch("cred2", "region", "", Collections.singleton("f2"));
+    }
+
+    @Test
+    public void getState_fallbackToOwnCallIfBatchFailed() {
+        final FleetStateStats stats = stats("f1");
+        when(ec2Fleet.getStateBatch(any(), any(), any(), anyCollection())).thenThrow(new IllegalStateException("test"));
+        when(ec2Fleet.getState("cred", "region", "", "f1")).thenReturn(stats);
+        final FleetStateCoalescer coalescer = new FleetStateCoalescer(0);
+
+        Assert.assertSame(stats, coalescer.getState(ec2Fleet, "cred", "region", "", "f1"));
+    }
+
+    @Test
+    public void getState_fallbackToOwnCallIfFleetAbsentInBatch() {
+        when(ec2Fleet.getStateBatch(any(), any(), any(), anyCollection()))
+                .thenReturn(Collections.<String, FleetStateStats>emptyMap());
+        when(ec2Fleet.getState("cred", "region", "", "f1")).thenThrow(new IllegalStateException("Fleet f1 doesn't exist"));
+        final FleetStateCoalescer coalescer = new FleetStateCoalescer(0);
+
+        try {
+            coalescer.getState(ec2Fleet, "cred", "region", "", "f1");
+            Assert.fail("Exception not raised");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Fleet f1 doesn't exist", e.getMessage());
+        }
+    }
+
+    @Test
+    public void getState_nextCallAfterWindowGetsFreshBatch() {
+        when(ec2Fleet.getStateBatch(any(), any(), any(), anyCollection()))
+                .thenAnswer(invocation -> statsForAll(invocation.getArgument(3)));
+        final FleetStateCoalescer coalescer = new FleetStateCoalescer(0);
+
+        coalescer.getState(ec2Fleet, "cred", "region", "", "f1");
+        coalescer.getState(ec2Fleet, "cred", "region", "", "f1");
+
+        verify(ec2Fleet, times(2)).getStateBatch(any(), any(), any(), anyCollection());
+    }
+
+    private Callable<FleetStateStats> getState(
+            final FleetStateCoalescer coalescer, final String awsCredentialsId, final String id) {
+        return () -> coalescer.getState(ec2Fleet, awsCredentialsId, "region", "", id);
+    }
+
+    private static Map<String, FleetStateStats> statsForAll(final Collection<String> ids) {
+        final Map<String, FleetStateStats> r = new HashMap<>();
+        for (final String id : ids) r.put(id, stats(id));
+        return r;
+    }
+
+    private static FleetStateStats stats(final String id) {
+        return new FleetStateStats(id, 1, FleetStateStats.State.active(),
+                Collections.<String>emptySet(), Collections.<String, Double>emptyMap());
+    }
+
+}